@@ -25,12 +25,9 @@ import java.util.List;
 
 import javolution.util.FastList;
 
-import org.ofbiz.base.util.StringUtil;
-import org.ofbiz.base.util.UtilValidate;
 import org.ofbiz.base.util.UtilXml;
 import org.ofbiz.entity.Delegator;
 import org.ofbiz.entity.datasource.GenericHelperInfo;
-import org.ofbiz.entity.util.EntityDataLoader;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -135,15 +132,9 @@ public class ComponentWorker {
     public static String getEntityDataUrlStringByComponentList(String entityGroupName, List<String> components, String readers, Delegator delegator) {
         GenericHelperInfo helperInfo = delegator.getGroupHelperInfo(entityGroupName);
         String helperName = helperInfo.getHelperBaseName();
-        List<String> readerNames = StringUtil.split(readers, ",");
         
         // get URL list from the component list
-        List<URL> urls = null;
-        if (UtilValidate.isNotEmpty(readerNames)) {
-            urls = EntityDataLoader.getUrlByComponentList(helperName, components, readerNames);
-        } else {
-            urls = EntityDataLoader.getUrlByComponentList(helperName, components);
-        }
+        List<URL> urls = TenantComponentDataCache.getUrls(helperName, components, readers);
         
         // build a String from the list of URL
         StringBuilder filesBuilder = new StringBuilder();
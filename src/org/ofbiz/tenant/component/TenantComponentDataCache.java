@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.component;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.Synchronization;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.StringUtil;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.base.util.cache.UtilCache;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.transaction.GenericTransactionException;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityDataLoader;
+import org.ofbiz.entity.util.EntityUtil;
+import org.ofbiz.entity.util.EntityUtilProperties;
+
+/**
+ * Tenant Component Data Cache
+ * <p>
+ * Remembers the component names of the tenants, the data readers of a set of components and the data URLs
+ * of a set of components by readers and helper name, so provisioning many tenants with the same components
+ * does not repeat the same queries, property lookups and classpath scans. The readers and URLs are keyed by
+ * the component names in order, the component names of a tenant are removed after a transaction which changes
+ * its TenantComponent has ended, and they expire, so a change made on another node is seen in time too.
+ */
+public class TenantComponentDataCache {
+
+    public final static String module = TenantComponentDataCache.class.getName();
+
+    public final static String INITIAL_READERS = "seed,seed-initial,ext";
+    public final static String DEMO_READERS = INITIAL_READERS + ",demo,ext-demo,ext-test";
+
+    private final static UtilCache<String, List<String>> tenantComponentNames = UtilCache.createUtilCache("tenant.TenantComponentNames", 0, 600000);
+    private final static ConcurrentHashMap<String, String> componentReaders = new ConcurrentHashMap<String, String>();
+    private final static ConcurrentHashMap<String, List<URL>> componentUrls = new ConcurrentHashMap<String, List<URL>>();
+
+    /**
+     * get the component names of a tenant in sequence
+     * @param tenantId
+     * @param delegator the base delegator
+     * @return
+     * @throws GenericEntityException
+     */
+    public static List<String> getComponentNames(String tenantId, Delegator delegator) throws GenericEntityException {
+        List<String> componentNames = tenantComponentNames.get(tenantId);
+        if (componentNames == null) {
+            List<GenericValue> tenantComponents = delegator.findByAnd("TenantComponent", UtilMisc.toMap("tenantId", tenantId), UtilMisc.toList("sequenceNum"), false);
+            componentNames = Collections.unmodifiableList(new ArrayList<String>(EntityUtil.getFieldListFromEntityList(tenantComponents, "componentName", true)));
+            tenantComponentNames.put(tenantId, componentNames);
+        }
+        return componentNames;
+    }
+
+    /**
+     * get the data readers of a tenant, the demoLoadData of the first componentDemo.properties
+     * which has one if the tenants are used as demo, otherwise the initial readers
+     * @param tenantId
+     * @param delegator the base delegator
+     * @return
+     * @throws GenericEntityException
+     */
+    public static String getReaders(String tenantId, Delegator delegator) throws GenericEntityException {
+        String isDemo = EntityUtilProperties.getPropertyValue("tenant", "isDemo", "Y", delegator);
+        if (!"Y".equals(isDemo)) {
+            return INITIAL_READERS;
+        }
+        List<String> componentNames = getComponentNames(tenantId, delegator);
+        if (UtilValidate.isEmpty(componentNames)) {
+            return DEMO_READERS;
+        }
+        String key = getKey(componentNames);
+        String readers = componentReaders.get(key);
+        if (readers == null) {
+            for (String componentName : componentNames) {
+                readers = EntityUtilProperties.getPropertyValue(componentName + "Demo", "demoLoadData", delegator);
+                if (UtilValidate.isNotEmpty(readers)) {
+                    break;
+                }
+            }
+            if (UtilValidate.isEmpty(readers)) {
+                Debug.logWarning("There is not any readers specified for components " + componentNames + ", so use demo readers", module);
+                readers = DEMO_READERS;
+            }
+            componentReaders.put(key, readers);
+        }
+        return readers;
+    }
+
+    /**
+     * get the data URLs of components
+     * @param helperName
+     * @param components
+     * @param readers the reader names separated by comma, empty for all readers
+     * @return
+     */
+    public static List<URL> getUrls(String helperName, List<String> components, String readers) {
+        String key = helperName + "|" + (readers == null ? "" : readers) + "|" + getKey(components);
+        List<URL> urls = componentUrls.get(key);
+        if (urls == null) {
+            List<String> readerNames = StringUtil.split(readers, ",");
+            if (UtilValidate.isNotEmpty(readerNames)) {
+                urls = EntityDataLoader.getUrlByComponentList(helperName, components, readerNames);
+            } else {
+                urls = EntityDataLoader.getUrlByComponentList(helperName, components);
+            }
+            urls = Collections.unmodifiableList(new ArrayList<URL>(urls));
+            componentUrls.put(key, urls);
+        }
+        return urls;
+    }
+
+    /**
+     * remove the component names of a tenant, e.g. when its TenantComponent changes
+     * @param tenantId
+     */
+    public static void removeTenant(String tenantId) {
+        tenantComponentNames.remove(tenantId);
+    }
+
+    /**
+     * remove the component names of a tenant now and after the current transaction has ended,
+     * so they are not read again from the uncommitted data in the meantime
+     * @param tenantId
+     * @throws GenericTransactionException
+     */
+    public static void removeTenantAfterTransaction(final String tenantId) throws GenericTransactionException {
+        removeTenant(tenantId);
+        if (TransactionUtil.isTransactionInPlace()) {
+            TransactionUtil.registerSynchronization(new Synchronization() {
+                public void beforeCompletion() {
+                }
+                public void afterCompletion(int status) {
+                    removeTenant(tenantId);
+                }
+            });
+        }
+    }
+
+    /**
+     * clear all, e.g. when a component or its demo properties have been changed
+     */
+    public static void clear() {
+        tenantComponentNames.clear();
+        componentReaders.clear();
+        componentUrls.clear();
+    }
+
+    private static String getKey(List<String> componentNames) {
+        return UtilValidate.isEmpty(componentNames) ? "" : StringUtil.join(componentNames, ",");
+    }
+}
@@ -0,0 +1,223 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.jdbc;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.jdbc.ConnectionFactory;
+
+/**
+ * Tenant admin connection pool
+ * <p>
+ * A small bounded pool of superuser connections to one database server, shared by all
+ * connection handlers of the server. DDL of tenant databases runs through
+ * {@link #execute(AdminCallback)}, which always returns the connection to the pool,
+ * so provisioning many tenants on the same server does not open a connection per tenant.
+ */
+public class TenantAdminConnectionPool {
+
+    public final static String module = TenantAdminConnectionPool.class.getName();
+    
+    private final static ConcurrentHashMap<String, TenantAdminConnectionPool> pools = new ConcurrentHashMap<String, TenantAdminConnectionPool>();
+    
+    private final String jdbcUri;
+    private final String username;
+    private final String password;
+    private final long maxWait;
+    private final Semaphore permits;
+    private final LinkedBlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<Connection>();
+    private volatile boolean closed = false;
+    
+    /**
+     * callback which runs statements on an admin connection
+     */
+    public static interface AdminCallback<T> {
+        public T execute(Connection connection) throws SQLException;
+    }
+    
+    protected TenantAdminConnectionPool(String jdbcUri, String username, String password, int maxSize, long maxWait) {
+        this.jdbcUri = jdbcUri;
+        this.username = username;
+        this.password = password;
+        this.maxWait = maxWait;
+        this.permits = new Semaphore(Math.max(maxSize, 1), true);
+    }
+    
+    /**
+     * get the admin connection pool of a database server, create it at the first time
+     * @param jdbcServerName
+     * @param jdbcUri the JDBC URI of the admin database of the server
+     * @param username
+     * @param password
+     * @param maxSize maximum number of connections
+     * @param maxWait time in milliseconds to wait for a free connection
+     * @return
+     */
+    public static TenantAdminConnectionPool getPool(String jdbcServerName, String jdbcUri, String username, String password, int maxSize, long maxWait) {
+        TenantAdminConnectionPool pool = pools.get(jdbcServerName);
+        if (pool == null) {
+            TenantAdminConnectionPool newPool = new TenantAdminConnectionPool(jdbcUri, username, password, maxSize, maxWait);
+            pool = pools.putIfAbsent(jdbcServerName, newPool);
+            if (pool == null) {
+                pool = newPool;
+                Debug.logInfo("Created admin connection pool for " + jdbcServerName + " with " + maxSize + " connections", module);
+            }
+        }
+        return pool;
+    }
+    
+    /**
+     * close all admin connection pools
+     */
+    public static void closePools() {
+        for (String jdbcServerName : pools.keySet()) {
+            TenantAdminConnectionPool pool = pools.remove(jdbcServerName);
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+    
+    /**
+     * run a callback on a pooled connection
+     * @param callback
+     * @return the result of the callback
+     * @throws SQLException
+     */
+    public <T> T execute(AdminCallback<T> callback) throws SQLException {
+        Connection connection = borrowConnection();
+        boolean broken = true;
+        try {
+            T result = callback.execute(connection);
+            broken = false;
+            return result;
+        } finally {
+            returnConnection(connection, broken);
+        }
+    }
+    
+    /**
+     * run update statements on a pooled connection, each statement is committed on its own
+     * @param sqls
+     * @throws SQLException
+     */
+    public void executeUpdate(final String... sqls) throws SQLException {
+        execute(new AdminCallback<Void>() {
+            public Void execute(Connection connection) throws SQLException {
+                Statement statement = connection.createStatement();
+                try {
+                    for (String sql : sqls) {
+                        statement.executeUpdate(sql);
+                    }
+                } finally {
+                    statement.close();
+                }
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * close the pool, idle connections are closed now and borrowed ones when they are returned
+     */
+    public void close() {
+        closed = true;
+        Connection connection = idleConnections.poll();
+        while (connection != null) {
+            closeQuietly(connection);
+            connection = idleConnections.poll();
+        }
+    }
+    
+    private Connection borrowConnection() throws SQLException {
+        try {
+            if (!permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Could not get an admin connection for " + jdbcUri + " in " + maxWait + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for an admin connection for " + jdbcUri);
+        }
+        if (closed) {
+            permits.release();
+            throw new SQLException("The admin connection pool for " + jdbcUri + " is closed");
+        }
+        try {
+            Connection connection = idleConnections.poll();
+            while (connection != null) {
+                if (isValid(connection)) {
+                    return connection;
+                }
+                closeQuietly(connection);
+                connection = idleConnections.poll();
+            }
+            connection = ConnectionFactory.getConnection(jdbcUri, username, password);
+            if (connection == null) {
+                throw new SQLException("Could not open an admin connection for " + jdbcUri);
+            }
+            connection.setAutoCommit(true);
+            return connection;
+        } catch (SQLException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+    
+    private void returnConnection(Connection connection, boolean broken) {
+        try {
+            if (broken || closed) {
+                closeQuietly(connection);
+            } else {
+                idleConnections.offer(connection);
+                if (closed) {
+                    // the pool has been closed while the connection was returned
+                    close();
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+    
+    private static boolean isValid(Connection connection) {
+        try {
+            return !connection.isClosed() && connection.isValid(5);
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+    
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            Debug.logWarning(e, "Could not close an admin connection", module);
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.jdbc;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Base64;
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.datasource.GenericHelperInfo;
+import org.ofbiz.entity.jdbc.DatabaseUtil;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.model.ModelField;
+import org.ofbiz.entity.model.ModelFieldType;
+import org.ofbiz.entity.model.ModelViewEntity;
+import org.ofbiz.entity.tenant.TenantActivity;
+import org.ofbiz.entity.util.EntityDataLoader;
+import org.ofbiz.tenant.tenant.TenantDataLoader;
+
+/**
+ * Tenant Bulk Loader
+ * <p>
+ * Loads entity data files into a tenant database without the delegator. Values are collected
+ * per entity and inserted in batches over one connection of the tenant JDBC user, through
+ * {@link TenantJdbcConnectionHandler#insertRows} which uses COPY on PostgreSQL. The foreign
+ * keys are dropped before loading and created again at the end, so they are checked once,
+ * which is why it is only used for databases without traffic, like a tenant being installed.
+ * A foreign key which can not be created fails the load.
+ * <p>
+ * A batch which fails, for example because a later file updates a value of an earlier file,
+ * is stored again through the delegator. Entities with binary or object fields and entities
+ * of other groups always go through the delegator. Entity ECAs are not run for bulk inserts.
+ */
+public class TenantBulkLoader {
+
+    public final static String module = TenantBulkLoader.class.getName();
+
+    private final static Set<String> ACTION_ELEMENT_NAMES = UtilMisc.toSet("create", "create-update", "create-replace", "delete");
+    private final static Set<String> BINARY_JAVA_TYPES = UtilMisc.toSet("byte[]", "java.sql.Blob", "Blob", "java.nio.ByteBuffer", "Object", "java.lang.Object");
+
+    protected String tenantId;
+    protected String entityGroupName;
+    protected Delegator delegator;
+    protected Delegator tenantDelegator;
+    protected int batchSize = 1000;
+    protected int transactionTimeout = 7200;
+    protected boolean maintainTimeStamps = false;
+
+    private Map<String, ModelEntity> modelEntities = null;
+    private String helperName = null;
+    private Connection connection = null;
+    private TenantJdbcConnectionHandler connectionHandler = null;
+    private final Map<String, List<GenericValue>> pendingValues = FastMap.newInstance();
+    private final Map<String, String> pendingActions = FastMap.newInstance();
+    private final Map<String, Boolean> bulkEntities = FastMap.newInstance();
+    private final List<String> messages = FastList.newInstance();
+    private long numberLoaded = 0;
+    private final List<URL> loadedUrls = FastList.newInstance();
+
+    /**
+     * Constructor
+     * @param tenantId
+     * @param entityGroupName
+     * @param delegator the base delegator
+     * @param batchSize the number of values of an entity inserted at once
+     */
+    public TenantBulkLoader(String tenantId, String entityGroupName, Delegator delegator, int batchSize) {
+        this.tenantId = tenantId;
+        this.entityGroupName = entityGroupName;
+        this.delegator = delegator;
+        this.tenantDelegator = DelegatorFactory.getDelegator(delegator.getDelegatorBaseName() + "#" + tenantId);
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * check if a tenant may be loaded in bulk, its foreign keys are dropped while loading so it must be
+     * disabled or fresh, which means no data files have been loaded into it yet
+     * @param tenantId
+     * @param delegator the base delegator
+     * @return
+     * @throws GenericEntityException
+     */
+    public static boolean isBulkLoadable(String tenantId, Delegator delegator) throws GenericEntityException {
+        GenericValue tenant = delegator.findOne("Tenant", UtilMisc.toMap("tenantId", tenantId), false);
+        if (UtilValidate.isNotEmpty(tenant) && "Y".equals(tenant.getString("disabled"))) {
+            return true;
+        }
+        return delegator.findCountByCondition("TenantDataFile", EntityCondition.makeCondition("tenantId", tenantId), null, null) == 0;
+    }
+
+    /**
+     * keep the time stamps of the values in the files, otherwise they are set to the current time like the delegator does
+     * @param maintainTimeStamps
+     */
+    public void setMaintainTimeStamps(boolean maintainTimeStamps) {
+        this.maintainTimeStamps = maintainTimeStamps;
+    }
+
+    /**
+     * load data of readers or files, the default readers are used if both are empty
+     * @param readers
+     * @param files
+     * @return the number of values loaded
+     * @throws Exception
+     */
+    public long load(String readers, String files) throws Exception {
+        GenericHelperInfo helperInfo = tenantDelegator.getGroupHelperInfo(entityGroupName);
+        return load(TenantDataLoader.getUrls(tenantId, helperInfo.getHelperBaseName(), readers, files, delegator));
+    }
+
+    /**
+     * load data files in order
+     * @param urls
+     * @return the number of values loaded
+     * @throws Exception
+     */
+    public long load(List<URL> urls) throws Exception {
+        TenantActivity.begin(tenantId);
+        try {
+            if (!isBulkLoadable(tenantId, delegator)) {
+                throw new GenericEntityException("Tenant [" + tenantId + "] is enabled and has loaded data, its foreign keys can not be dropped for a bulk load");
+            }
+            GenericHelperInfo helperInfo = tenantDelegator.getGroupHelperInfo(entityGroupName);
+            helperName = helperInfo.getHelperBaseName();
+            modelEntities = tenantDelegator.getModelEntityMapByGroup(entityGroupName);
+            connectionHandler = TenantConnectionFactory.getTenantJdbcConnectionHandler(tenantId, entityGroupName, delegator);
+
+            // create missing tables and drop foreign keys, they are created again after loading
+            DatabaseUtil dbUtil = new DatabaseUtil(helperInfo);
+            List<String> foreignKeyErrors = FastList.newInstance();
+            try {
+                dbUtil.checkDb(modelEntities, messages, true);
+                for (ModelEntity modelEntity : modelEntities.values()) {
+                    if (!(modelEntity instanceof ModelViewEntity)) {
+                        dbUtil.deleteForeignKeys(modelEntity, modelEntities, messages);
+                    }
+                }
+
+                connection = connectionHandler.getBulkConnection();
+                try {
+                    connection.setAutoCommit(false);
+                    for (URL url : urls) {
+                        loadUrl(url);
+                    }
+                    flushAll();
+                } finally {
+                    connection.close();
+                    connection = null;
+                }
+            } finally {
+                Debug.logInfo("Creating foreign keys of tenant [" + tenantId + "] to check the loaded values", module);
+                for (ModelEntity modelEntity : modelEntities.values()) {
+                    if (!(modelEntity instanceof ModelViewEntity)) {
+                        dbUtil.createForeignKeys(modelEntity, modelEntities, foreignKeyErrors);
+                    }
+                }
+                dbUtil.close();
+                tenantDelegator.clearAllCaches();
+                messages.addAll(foreignKeyErrors);
+            }
+            if (UtilValidate.isNotEmpty(foreignKeyErrors)) {
+                // a value refers to a missing value
+                throw new GenericEntityException("Could not create foreign keys of tenant [" + tenantId + "] : " + foreignKeyErrors);
+            }
+            loadedUrls.addAll(urls);
+            Debug.logInfo("Bulk loaded " + numberLoaded + " values of tenant [" + tenantId + "] from " + urls.size() + " files", module);
+            return numberLoaded;
+        } finally {
+            TenantActivity.end(tenantId);
+        }
+    }
+
+    /**
+     * get the files which have been loaded, all of them or none because the foreign keys are checked at the end
+     * @return
+     */
+    public List<URL> getLoadedUrls() {
+        return loadedUrls;
+    }
+
+    /**
+     * get the messages of the database checks
+     * @return
+     */
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    protected void loadUrl(URL url) throws Exception {
+        Debug.logImportant("Bulk loading [" + tenantDelegator.getDelegatorName() + "] from URL: " + url.toExternalForm(), module);
+        InputStream is = url.openStream();
+        XMLStreamReader reader = null;
+        try {
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+            reader.nextTag();
+            if (!"entity-engine-xml".equals(reader.getLocalName())) {
+                // transform files are loaded by the delegator
+                flushAll();
+                List<Object> errorMessages = FastList.newInstance();
+                numberLoaded += EntityDataLoader.loadData(url, helperName, tenantDelegator, errorMessages, transactionTimeout, false, false, false);
+                if (UtilValidate.isNotEmpty(errorMessages)) {
+                    throw new GenericEntityException("Could not load " + url + " : " + errorMessages);
+                }
+                return;
+            }
+            String action = "create-update";
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                String name = reader.getLocalName();
+                if (ACTION_ELEMENT_NAMES.contains(name)) {
+                    action = name;
+                    while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                        loadValue(readValue(reader, tenantDelegator), action);
+                    }
+                    action = "create-update";
+                } else {
+                    loadValue(readValue(reader, tenantDelegator), action);
+                }
+            }
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+            is.close();
+        }
+    }
+
+    /**
+     * read the value of the current element of an entity-engine-xml file, the reader is at its end element afterwards
+     * @param reader
+     * @param tenantDelegator
+     * @return
+     * @throws Exception
+     */
+    public static GenericValue readValue(XMLStreamReader reader, Delegator tenantDelegator) throws Exception {
+        String entityName = reader.getLocalName();
+        ModelEntity modelEntity = tenantDelegator.getModelReader().getModelEntity(entityName);
+        GenericValue value = tenantDelegator.makeValue(entityName);
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            setField(value, modelEntity, reader.getAttributeLocalName(i), reader.getAttributeValue(i), tenantDelegator);
+        }
+        // long values can be written as child elements
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            setField(value, modelEntity, name, reader.getElementText(), tenantDelegator);
+        }
+        return value;
+    }
+
+    /**
+     * whether an entity has binary fields, which can not be inserted by {@link TenantJdbcConnectionHandler#insertRows}
+     * @param modelEntity
+     * @param tenantDelegator
+     * @return
+     */
+    public static boolean hasBinaryFields(ModelEntity modelEntity, Delegator tenantDelegator) {
+        for (ModelField modelField : modelEntity.getFieldsUnmodifiable()) {
+            ModelFieldType modelFieldType = tenantDelegator.getEntityFieldType(modelEntity, modelField.getType());
+            if (modelFieldType == null || BINARY_JAVA_TYPES.contains(modelFieldType.getJavaType())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    protected static void setField(GenericValue value, ModelEntity modelEntity, String name, String text, Delegator tenantDelegator) throws GenericEntityException {
+        ModelField modelField = modelEntity.getField(name);
+        if (modelField == null) {
+            Debug.logWarning("Ignoring unknown field [" + name + "] of entity [" + modelEntity.getEntityName() + "]", module);
+            return;
+        }
+        if (UtilValidate.isEmpty(text)) {
+            // like EntitySaxReader, an empty value is null
+            value.set(name, null);
+            return;
+        }
+        ModelFieldType modelFieldType = tenantDelegator.getEntityFieldType(modelEntity, modelField.getType());
+        if (modelFieldType != null && BINARY_JAVA_TYPES.contains(modelFieldType.getJavaType())) {
+            value.setBytes(name, Base64.base64Decode(text.getBytes()));
+        } else {
+            value.setString(name, text);
+        }
+    }
+
+    protected void loadValue(GenericValue value, String action) throws Exception {
+        String entityName = value.getEntityName();
+        if ("delete".equals(action) || "create-replace".equals(action)) {
+            // keep the order of the values written before
+            flushAll();
+            tenantDelegator.removeValue(value);
+            if ("create-replace".equals(action)) {
+                tenantDelegator.create(value);
+            }
+            numberLoaded++;
+            return;
+        }
+        // a batch has one action, create fails on existing values while create-update stores them
+        if (!action.equals(pendingActions.get(entityName))) {
+            flush(entityName);
+            pendingActions.put(entityName, action);
+        }
+        List<GenericValue> values = pendingValues.get(entityName);
+        if (values == null) {
+            values = FastList.newInstance();
+            pendingValues.put(entityName, values);
+        }
+        values.add(value);
+        if (values.size() >= batchSize) {
+            flush(entityName);
+        }
+    }
+
+    protected void flushAll() throws Exception {
+        for (String entityName : pendingValues.keySet()) {
+            flush(entityName);
+        }
+    }
+
+    protected void flush(String entityName) throws Exception {
+        List<GenericValue> values = pendingValues.get(entityName);
+        if (UtilValidate.isEmpty(values)) {
+            return;
+        }
+        ModelEntity modelEntity = values.get(0).getModelEntity();
+        boolean isCreate = "create".equals(pendingActions.get(entityName));
+        if (isBulkEntity(modelEntity)) {
+            List<ModelField> modelFields = modelEntity.getFieldsUnmodifiable();
+            List<String> columnNames = FastList.newInstance();
+            for (ModelField modelField : modelFields) {
+                columnNames.add(modelField.getColName());
+            }
+            Timestamp now = UtilDateTime.nowTimestamp();
+            List<Object[]> rows = FastList.newInstance();
+            for (GenericValue value : values) {
+                if (!modelEntity.getNoAutoStamp()) {
+                    setStamp(value, ModelEntity.STAMP_FIELD, now);
+                    setStamp(value, ModelEntity.STAMP_TX_FIELD, now);
+                    setStamp(value, ModelEntity.CREATE_STAMP_FIELD, now);
+                    setStamp(value, ModelEntity.CREATE_STAMP_TX_FIELD, now);
+                }
+                Object[] row = new Object[modelFields.size()];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = value.get(modelFields.get(i).getName());
+                }
+                rows.add(row);
+            }
+            try {
+                connectionHandler.insertRows(connection, modelEntity.getTableName(helperName), columnNames, rows);
+                connection.commit();
+            } catch (SQLException e) {
+                // some values already exist, store the batch through the delegator
+                if (Debug.verboseOn()) Debug.logVerbose("Could not insert " + values.size() + " values of " + entityName + ", storing them: " + e.getMessage(), module);
+                connection.rollback();
+                storeValues(values, isCreate);
+            }
+        } else {
+            storeValues(values, isCreate);
+        }
+        numberLoaded += values.size();
+        values.clear();
+    }
+
+    protected void storeValues(List<GenericValue> values, boolean isCreate) throws GenericEntityException {
+        if (isCreate) {
+            // an existing value is an error
+            for (GenericValue value : values) {
+                tenantDelegator.create(value);
+            }
+        } else {
+            tenantDelegator.storeAll(values);
+        }
+    }
+
+    protected boolean isBulkEntity(ModelEntity modelEntity) throws GenericEntityException {
+        Boolean bulkEntity = bulkEntities.get(modelEntity.getEntityName());
+        if (bulkEntity == null) {
+            bulkEntity = modelEntities.containsKey(modelEntity.getEntityName()) && !(modelEntity instanceof ModelViewEntity)
+                    && !hasBinaryFields(modelEntity, tenantDelegator);
+            bulkEntities.put(modelEntity.getEntityName(), bulkEntity);
+        }
+        return bulkEntity;
+    }
+
+    private void setStamp(GenericValue value, String fieldName, Timestamp stamp) {
+        if (!maintainTimeStamps || value.get(fieldName) == null) {
+            value.set(fieldName, stamp);
+        }
+    }
+}
@@ -19,9 +19,13 @@
 package org.ofbiz.tenant.jdbc;
 
 import java.sql.SQLException;
-import java.util.Map;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import javolution.util.FastMap;
+import javax.transaction.Synchronization;
 
 import org.ofbiz.base.util.Debug;
 import org.ofbiz.base.util.UtilMisc;
@@ -29,12 +33,18 @@ import org.ofbiz.base.util.UtilValidate;
 import org.ofbiz.entity.Delegator;
 import org.ofbiz.entity.GenericEntityException;
 import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.transaction.GenericTransactionException;
+import org.ofbiz.entity.transaction.TransactionUtil;
 import org.ofbiz.tenant.jdbc.TenantDerbyConnectionHandler;
 import org.ofbiz.tenant.jdbc.TenantJdbcConnectionHandler;
 import org.ofbiz.tenant.jdbc.TenantPostgreSqlConnectionHandler;
 
 /**
  * Tenant Connection Factory
+ * <p>
+ * Keeps one connection handler per tenant data source, keyed by tenant ID and entity group name.
+ * A handler holds its TenantDataSource value, so it is removed by the TenantDataSource EECAs
+ * whenever the data source is stored or removed.
  * @author chatree
  *
  */
@@ -42,10 +52,44 @@ public class TenantConnectionFactory {
 
     public final static String module = TenantConnectionFactory.class.getName();
     
-    private final static Map<String, TenantJdbcConnectionHandler> jdbcConnectionHandlers = FastMap.newInstance();
+    private final static ConcurrentMap<String, ConnectionHandlerHolder> jdbcConnectionHandlers = new ConcurrentHashMap<String, ConnectionHandlerHolder>();
+    private final static List<TenantJdbcConnectionHandlerProvider> connectionHandlerProviders = new CopyOnWriteArrayList<TenantJdbcConnectionHandlerProvider>();
+    
+    static {
+        registerConnectionHandlerProvider(new TenantJdbcConnectionHandlerProvider() {
+            public boolean accepts(String jdbcUri) {
+                return jdbcUri.startsWith(TenantDerbyConnectionHandler.URI_PREFIX);
+            }
+            public TenantJdbcConnectionHandler createConnectionHandler(GenericValue tenantDataSource) {
+                Debug.logInfo("Create Derby connection handler", module);
+                return new TenantDerbyConnectionHandler(tenantDataSource);
+            }
+        });
+        registerConnectionHandlerProvider(new TenantJdbcConnectionHandlerProvider() {
+            public boolean accepts(String jdbcUri) {
+                return jdbcUri.startsWith(TenantPostgreSqlConnectionHandler.URI_PREFIX);
+            }
+            public TenantJdbcConnectionHandler createConnectionHandler(GenericValue tenantDataSource) {
+                Debug.logInfo("Create PostgreSQL connection handler", module);
+                return new TenantPostgreSqlConnectionHandler(tenantDataSource);
+            }
+        });
+        for (TenantJdbcConnectionHandlerProvider provider : ServiceLoader.load(TenantJdbcConnectionHandlerProvider.class, TenantConnectionFactory.class.getClassLoader())) {
+            registerConnectionHandlerProvider(provider);
+        }
+    }
+    
+    /**
+     * register a connection handler provider, providers registered later are asked first
+     * @param provider
+     */
+    public static void registerConnectionHandlerProvider(TenantJdbcConnectionHandlerProvider provider) {
+        connectionHandlerProviders.add(0, provider);
+        if (Debug.verboseOn()) Debug.logVerbose("Registered JDBC connection handler provider: " + provider.getClass().getName(), module);
+    }
     
     /**
-     * get tenant JDBC connection handler
+     * get tenant JDBC connection handler, create it at the first time
      * @param tenantId
      * @param entityGroupName
      * @param delegator
@@ -54,37 +98,95 @@ public class TenantConnectionFactory {
      * @throws SQLException
      */
     public static TenantJdbcConnectionHandler getTenantJdbcConnectionHandler(String tenantId, String entityGroupName, Delegator delegator) throws GenericEntityException, SQLException {
+        String key = getKey(tenantId, entityGroupName);
+        ConnectionHandlerHolder holder = jdbcConnectionHandlers.get(key);
+        if (holder == null) {
+            ConnectionHandlerHolder newHolder = new ConnectionHandlerHolder();
+            holder = jdbcConnectionHandlers.putIfAbsent(key, newHolder);
+            if (holder == null) {
+                holder = newHolder;
+            }
+        }
+        return holder.getConnectionHandler(tenantId, entityGroupName, delegator);
+    }
+    
+    /**
+     * remove a tenant JDBC connection handler, the next call of getTenantJdbcConnectionHandler
+     * will read the tenant data source again
+     * @param tenantId
+     * @param entityGroupName
+     */
+    public static void removeTenantJdbcConnectionHandler(String tenantId, String entityGroupName) {
+        if (jdbcConnectionHandlers.remove(getKey(tenantId, entityGroupName)) != null && Debug.verboseOn()) {
+            Debug.logVerbose("Removed JDBC connection handler for tenant: " + tenantId + " with entity group: " + entityGroupName, module);
+        }
+    }
+    
+    /**
+     * remove a tenant JDBC connection handler now and after the current transaction has ended,
+     * so a handler created from the uncommitted tenant data source in the meantime is not kept
+     * @param tenantId
+     * @param entityGroupName
+     * @throws GenericTransactionException
+     */
+    public static void removeTenantJdbcConnectionHandlerAfterTransaction(final String tenantId, final String entityGroupName) throws GenericTransactionException {
+        removeTenantJdbcConnectionHandler(tenantId, entityGroupName);
+        if (TransactionUtil.isTransactionInPlace()) {
+            TransactionUtil.registerSynchronization(new Synchronization() {
+                public void beforeCompletion() {
+                }
+                public void afterCompletion(int status) {
+                    removeTenantJdbcConnectionHandler(tenantId, entityGroupName);
+                }
+            });
+        }
+    }
+    
+    private static String getKey(String tenantId, String entityGroupName) {
+        return tenantId + "@" + entityGroupName;
+    }
+    
+    private static TenantJdbcConnectionHandler createConnectionHandler(String tenantId, String entityGroupName, Delegator delegator) throws GenericEntityException {
         GenericValue tenantDataSource = delegator.findOne("TenantDataSource", UtilMisc.toMap("tenantId", tenantId, "entityGroupName", entityGroupName), false);
-        if (UtilValidate.isNotEmpty(tenantDataSource)) {
-            String jdbcUri = tenantDataSource.getString("jdbcUri");
-            
-            TenantJdbcConnectionHandler jdbcConnectionHandler = jdbcConnectionHandlers.get(jdbcUri);
-            if (UtilValidate.isEmpty(jdbcConnectionHandler)) {
-                Debug.logInfo("Create JDBC connection handler for tenant: " + tenantId + " with entity group: " + entityGroupName, module);
+        if (UtilValidate.isEmpty(tenantDataSource)) {
+            throw new GenericEntityException("Could not find a tenant data source for: " + getKey(tenantId, entityGroupName));
+        }
+        String jdbcUri = tenantDataSource.getString("jdbcUri");
+        Debug.logInfo("Create JDBC connection handler for tenant: " + tenantId + " with entity group: " + entityGroupName, module);
+        for (TenantJdbcConnectionHandlerProvider provider : connectionHandlerProviders) {
+            if (provider.accepts(jdbcUri)) {
                 try {
-                    if (jdbcUri.startsWith(TenantDerbyConnectionHandler.URI_PREFIX)) { // Derby
-                        Debug.logInfo("Create Derby connection handler", module);
-                        jdbcConnectionHandler = new TenantDerbyConnectionHandler(tenantDataSource);
-                        jdbcConnectionHandlers.put(jdbcUri, jdbcConnectionHandler);
-                        return jdbcConnectionHandler;
-                    } else if (jdbcUri.startsWith(TenantPostgreSqlConnectionHandler.URI_PREFIX)) { // PostgreSQL
-                        Debug.logInfo("Create PostgreSQL connection handler", module);
-                        jdbcConnectionHandler = new TenantPostgreSqlConnectionHandler(tenantDataSource);
-                        jdbcConnectionHandlers.put(jdbcUri, jdbcConnectionHandler);
-                        return jdbcConnectionHandler;
-                    } else {
-                        throw new GenericEntityException("Could not find a JDBC connection handler for: " + jdbcUri);
-                    }
+                    return provider.createConnectionHandler(tenantDataSource);
                 } catch (Exception e) {
                     String errMsg = "Could not create a tenant connection handler for " + tenantId + " with entity group name " + entityGroupName + " : " + e.getMessage();
                     Debug.logError(e, errMsg, module);
                     throw new GenericEntityException(errMsg);
                 }
-            } else {
-                return jdbcConnectionHandler;
             }
-        } else {
-            throw new GenericEntityException("Could not find a tenant data source for: " + tenantId + "@" + entityGroupName);
+        }
+        throw new GenericEntityException("Could not find a JDBC connection handler for: " + jdbcUri);
+    }
+    
+    /**
+     * holds the connection handler of a tenant data source, so only one handler is created per key
+     * while handlers of other tenants are created concurrently
+     */
+    private static class ConnectionHandlerHolder {
+        
+        private volatile TenantJdbcConnectionHandler connectionHandler = null;
+        
+        private TenantJdbcConnectionHandler getConnectionHandler(String tenantId, String entityGroupName, Delegator delegator) throws GenericEntityException {
+            TenantJdbcConnectionHandler handler = connectionHandler;
+            if (handler == null) {
+                synchronized (this) {
+                    handler = connectionHandler;
+                    if (handler == null) {
+                        handler = createConnectionHandler(tenantId, entityGroupName, delegator);
+                        connectionHandler = handler;
+                    }
+                }
+            }
+            return handler;
         }
     }
 }
@@ -19,11 +19,13 @@
 package org.ofbiz.tenant.jdbc;
 
 import java.io.File;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -91,73 +93,159 @@ public class TenantDerbyConnectionHandler extends TenantJdbcConnectionHandler {
     @Override
     protected void doCreateDatabase(GenericHelperInfo helperInfo)
             throws GenericEntityException, SQLException {
-        if (!isExist()) {
+        if (!databaseDir.exists()) {
             Connection connection = DriverManager.getConnection(URI_PREFIX + getDatabaseName() + ";create=true");
-            Statement statement = connection.createStatement();
-            
-            // Turn on built-in user
-            
-            // Setting and Confirming requireAuthentication
-            statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
-                "'derby.connection.requireAuthentication', 'true')");
-            ResultSet rs = statement.executeQuery(
-                "VALUES SYSCS_UTIL.SYSCS_GET_DATABASE_PROPERTY(" +
-                "'derby.connection.requireAuthentication')");
-            rs.next();
-            Debug.logInfo("Value of requireAuthentication is " + rs.getString(1), module);
-            
-            // Setting authentication scheme to Derby
-            statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
-                "'derby.authentication.provider', 'BUILTIN')");
-            
-            // Creating a user
-            statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
-                    "'derby.user." + getJdbcUsername() + "', '" + getJdbcPassword() + "')");
-            
-            // Setting default connection mode to no access (user authorization)
-            statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
-                "'derby.database.defaultConnectionMode', 'noAccess')");
+            try {
+                Statement statement = connection.createStatement();
+                try {
+                    createBuiltinUser(statement);
+                } finally {
+                    statement.close();
+                }
+            } finally {
+                connection.close();
+            }
             
-            // Confirming default connection mode
-            rs = statement.executeQuery (
-                "VALUES SYSCS_UTIL.SYSCS_GET_DATABASE_PROPERTY(" +
-                "'derby.database.defaultConnectionMode')");
-            rs.next();
-            Debug.logInfo("Value of defaultConnectionMode is " + rs.getString(1), module);
-            
-            // Defining read-write users
-            statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
-                "'derby.database.fullAccessUsers', '" + getJdbcUsername() + "')");
-            
-            // Confirming full-access users
-            rs = statement.executeQuery(
-                "VALUES SYSCS_UTIL.SYSCS_GET_DATABASE_PROPERTY(" +
-                "'derby.database.fullAccessUsers')");
-            rs.next();
-            Debug.logInfo("Value of fullAccessUsers is " + rs.getString(1), module);
-            
-            // We would set the following property to TRUE only
-            // when we were ready to deploy.
-            statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
-                "'derby.database.propertiesOnly', 'false')");
-            statement.close();
+            shutdown();
+        }
+    }
+    
+    private void createBuiltinUser(Statement statement) throws SQLException {
+        // Turn on built-in user
+        
+        // Setting and Confirming requireAuthentication
+        statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+            "'derby.connection.requireAuthentication', 'true')");
+        Debug.logInfo("Value of requireAuthentication is " + getDatabaseProperty(statement, "derby.connection.requireAuthentication"), module);
+        
+        // Setting authentication scheme to Derby
+        statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+            "'derby.authentication.provider', 'BUILTIN')");
+        
+        // Creating a user
+        statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+                "'derby.user." + getJdbcUsername() + "', '" + getJdbcPassword() + "')");
+        
+        // Setting default connection mode to no access (user authorization)
+        statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+            "'derby.database.defaultConnectionMode', 'noAccess')");
+        
+        // Confirming default connection mode
+        Debug.logInfo("Value of defaultConnectionMode is " + getDatabaseProperty(statement, "derby.database.defaultConnectionMode"), module);
+        
+        // Defining read-write users
+        statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+            "'derby.database.fullAccessUsers', '" + getJdbcUsername() + "')");
+        
+        // Confirming full-access users
+        Debug.logInfo("Value of fullAccessUsers is " + getDatabaseProperty(statement, "derby.database.fullAccessUsers"), module);
+        
+        // We would set the following property to TRUE only
+        // when we were ready to deploy.
+        statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+            "'derby.database.propertiesOnly', 'false')");
+    }
+    
+    private String getDatabaseProperty(Statement statement, String key) throws SQLException {
+        ResultSet rs = statement.executeQuery("VALUES SYSCS_UTIL.SYSCS_GET_DATABASE_PROPERTY('" + key + "')");
+        try {
+            return rs.next() ? rs.getString(1) : null;
+        } finally {
+            rs.close();
+        }
+    }
+
+    @Override
+    public boolean isTemplateSupported() {
+        return true;
+    }
+    
+    @Override
+    protected void doCreateDatabaseFromTemplate(GenericHelperInfo helperInfo, TenantJdbcConnectionHandler templateConnectionHandler)
+            throws GenericEntityException, SQLException {
+        if (!databaseDir.exists()) {
+            // copy the database directory of the template, it must be shut down
+            File templateDir = ((TenantDerbyConnectionHandler) templateConnectionHandler).getDatabaseDir();
+            Debug.logInfo("Copy database directory: " + templateDir + " to " + databaseDir, module);
+            try {
+                TenantUtil.copyDirectory(templateDir, databaseDir);
+            } catch (IOException e) {
+                TenantUtil.deleteDirectory(databaseDir);
+                throw new GenericEntityException("Could not copy the template database " + templateDir, e);
+            }
             
+            // replace the built-in user of the template
+            replaceBuiltinUser(templateConnectionHandler);
             shutdown();
         }
     }
+    
+    @Override
+    protected void doCreateDatabaseFromSpare(GenericHelperInfo helperInfo, TenantJdbcConnectionHandler spareConnectionHandler)
+            throws GenericEntityException, SQLException {
+        File spareDir = ((TenantDerbyConnectionHandler) spareConnectionHandler).getDatabaseDir();
+        Debug.logInfo("Rename database directory: " + spareDir + " to " + databaseDir, module);
+        if (databaseDir.exists() || !spareDir.renameTo(databaseDir)) {
+            throw new GenericEntityException("Could not rename the spare database " + spareDir + " to " + databaseDir);
+        }
+        replaceBuiltinUser(spareConnectionHandler);
+        shutdown();
+    }
+    
+    private void replaceBuiltinUser(TenantJdbcConnectionHandler sourceConnectionHandler) throws SQLException {
+        Connection connection = DriverManager.getConnection(URI_PREFIX + getDatabaseName()
+                , sourceConnectionHandler.getJdbcUsername(), sourceConnectionHandler.getJdbcPassword());
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+                        "'derby.user." + getJdbcUsername() + "', '" + getJdbcPassword() + "')");
+                statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+                        "'derby.database.fullAccessUsers', '" + getJdbcUsername() + "')");
+                if (!getJdbcUsername().equals(sourceConnectionHandler.getJdbcUsername())) {
+                    statement.executeUpdate("CALL SYSCS_UTIL.SYSCS_SET_DATABASE_PROPERTY(" +
+                            "'derby.user." + sourceConnectionHandler.getJdbcUsername() + "', NULL)");
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+    
+    /**
+     * get database directory
+     * @return
+     */
+    public File getDatabaseDir() {
+        return databaseDir;
+    }
 
     @Override
     protected void doDeleteDatabase(GenericHelperInfo helperInfo) throws GenericEntityException, SQLException {
         shutdown();
         if (databaseDir.exists()) {
-            Debug.logInfo("Delete database dirctory: " + databaseDir, module);
-            TenantUtil.deleteDirectory(databaseDir);
+            Debug.logInfo("Delete database directory: " + databaseDir, module);
+            List<String> failures = TenantUtil.deleteDirectory(databaseDir, 4);
+            if (!failures.isEmpty()) {
+                throw new GenericEntityException("Could not delete " + failures.size() + " files of database directory " + databaseDir + " : " + failures);
+            }
         }
     }
     
+    @Override
+    protected void doCloseDatabase(GenericHelperInfo helperInfo) throws GenericEntityException, SQLException {
+        shutdown();
+    }
+    
     private void shutdown() {
         try {
-            DriverManager.getConnection(URI_PREFIX + getDatabaseName() + ";shutdown=true");
+            // a successful shutdown is reported by an SQLException, close the connection if one is returned anyway
+            Connection connection = DriverManager.getConnection(URI_PREFIX + getDatabaseName() + ";shutdown=true");
+            if (connection != null) {
+                connection.close();
+            }
         } catch (Exception e) {
             Debug.logWarning("Shutdown database: " + getDatabaseName(), module);
         }
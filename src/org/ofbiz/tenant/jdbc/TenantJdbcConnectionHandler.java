@@ -18,7 +18,14 @@
  *******************************************************************************/
 package org.ofbiz.tenant.jdbc;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+import java.util.List;
+
+import javolution.util.FastList;
 
 import org.apache.commons.dbcp.PoolableConnection;
 import org.apache.commons.dbcp.managed.TransactionContext;
@@ -37,6 +44,7 @@ import org.ofbiz.entity.connection.DBCPConnectionFactory;
 import org.ofbiz.entity.datasource.GenericHelperInfo;
 import org.ofbiz.entity.jdbc.ConnectionFactory;
 import org.ofbiz.entity.util.EntityUtilProperties;
+import org.ofbiz.tenant.tenant.TenantRuntime;
 
 /**
  * Tenant JDBC connection handler
@@ -126,6 +134,25 @@ public abstract class TenantJdbcConnectionHandler {
      */
     public abstract String getDatabaseName();
     
+    /**
+     * get JDBC URI of another database on the same server
+     * @param databaseName
+     * @return
+     */
+    public String getJdbcUri(String databaseName) {
+        String jdbcUri = this.getJdbcUri();
+        int index = jdbcUri.lastIndexOf(this.getDatabaseName());
+        return jdbcUri.substring(0, index) + databaseName + jdbcUri.substring(index + this.getDatabaseName().length());
+    }
+    
+    /**
+     * check if a database can be created from a template or spare database
+     * @return
+     */
+    public boolean isTemplateSupported() {
+        return false;
+    }
+    
     public void createDatabase() throws GenericEntityException, SQLException {
         Delegator delegator = tenantDataSource.getDelegator();
         GenericHelperInfo helperInfo = delegator.getGroupHelperInfo(this.getEntityGroupName());
@@ -135,6 +162,36 @@ public abstract class TenantJdbcConnectionHandler {
         doCreateDatabase(helperInfo);
     }
     
+    /**
+     * create database as a copy of a template database, the template must not be in use
+     * @param templateConnectionHandler the connection handler of the template database
+     * @throws GenericEntityException
+     * @throws SQLException
+     */
+    public void createDatabaseFromTemplate(TenantJdbcConnectionHandler templateConnectionHandler) throws GenericEntityException, SQLException {
+        Delegator delegator = tenantDataSource.getDelegator();
+        GenericHelperInfo helperInfo = delegator.getGroupHelperInfo(this.getEntityGroupName());
+        helperInfo.setTenantId(this.getTenantId());
+        Datasource datasource = EntityConfigUtil.getDatasource(helperInfo.getHelperBaseName());
+        datasource.inlineJdbc.setJdbcUri(this.getJdbcUri());
+        doCreateDatabaseFromTemplate(helperInfo, templateConnectionHandler);
+    }
+    
+    /**
+     * create database by renaming a pre-provisioned spare database, the spare must not be in use
+     * @param spareConnectionHandler the connection handler of the spare database
+     * @throws GenericEntityException
+     * @throws SQLException
+     */
+    public void createDatabaseFromSpare(TenantJdbcConnectionHandler spareConnectionHandler) throws GenericEntityException, SQLException {
+        Delegator delegator = tenantDataSource.getDelegator();
+        GenericHelperInfo helperInfo = delegator.getGroupHelperInfo(this.getEntityGroupName());
+        helperInfo.setTenantId(this.getTenantId());
+        Datasource datasource = EntityConfigUtil.getDatasource(helperInfo.getHelperBaseName());
+        datasource.inlineJdbc.setJdbcUri(this.getJdbcUri());
+        doCreateDatabaseFromSpare(helperInfo, spareConnectionHandler);
+    }
+    
     /**
      * delete database
      * @return
@@ -173,14 +230,149 @@ public abstract class TenantJdbcConnectionHandler {
         // remove delegator
         String tenantDelegatorName = delegator.getDelegatorBaseName() + "#" + this.getTenantId();
         DelegatorFactory.removeDelegator(tenantDelegatorName);
+        TenantRuntime.removeTenantRuntime(this.getTenantId());
         
         // remove connection
         managedConnectionFactory.removeConnection(helperInfo);
     }
     
+    /**
+     * close database, release the connection pool of the tenant so it can be reopened by the next connection
+     * @throws GenericEntityException
+     * @throws SQLException
+     */
+    public void closeDatabase() throws GenericEntityException, SQLException {
+        Delegator delegator = tenantDataSource.getDelegator();
+        GenericHelperInfo helperInfo = delegator.getGroupHelperInfo(this.getEntityGroupName());
+        helperInfo.setTenantId(this.getTenantId());
+        
+        // close pool
+        DBCPConnectionFactory managedConnectionFactory = (DBCPConnectionFactory) ConnectionFactory.getManagedConnectionFactory();
+        managedConnectionFactory.removeConnection(helperInfo);
+        
+        // do close database
+        doCloseDatabase(helperInfo);
+    }
+    
+    protected void doCloseDatabase(GenericHelperInfo helperInfo) throws GenericEntityException, SQLException {
+    }
+    
+    /**
+     * get a connection of the JDBC user outside of the connection pool and transactions, for bulk loads
+     * @return
+     * @throws SQLException
+     */
+    public Connection getBulkConnection() throws SQLException {
+        return ConnectionFactory.getConnection(this.getJdbcUri(), this.getJdbcUsername(), this.getJdbcPassword());
+    }
+    
+    /**
+     * get read only connections of the JDBC user outside of the connection pool and transactions, for backups,
+     * the connections see the same snapshot of the database only if {@link #isSnapshotSupported()}
+     * @param count
+     * @return
+     * @throws SQLException
+     */
+    public List<Connection> getSnapshotConnections(int count) throws SQLException {
+        List<Connection> connections = FastList.newInstance();
+        try {
+            for (int i = 0; i < count; i++) {
+                Connection connection = this.getBulkConnection();
+                connections.add(connection);
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+            }
+        } catch (SQLException e) {
+            closeConnections(connections);
+            throw e;
+        }
+        return connections;
+    }
+    
+    /**
+     * whether the connections of {@link #getSnapshotConnections(int)} see the same snapshot of the database
+     * @return
+     */
+    public boolean isSnapshotSupported() {
+        return false;
+    }
+    
+    /**
+     * roll back and close connections, errors are logged
+     * @param connections
+     */
+    public static void closeConnections(List<Connection> connections) {
+        for (Connection connection : connections) {
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                }
+                connection.close();
+            } catch (SQLException e) {
+                Debug.logWarning(e, "Could not close connection: " + e.getMessage(), module);
+            }
+        }
+    }
+    
+    /**
+     * insert rows into a table in JDBC batches, the caller commits
+     * @param connection a connection from {@link #getBulkConnection()}
+     * @param tableName
+     * @param columnNames
+     * @param rows the column values of each row in the order of the column names
+     * @throws SQLException
+     */
+    public void insertRows(Connection connection, String tableName, List<String> columnNames, List<Object[]> rows) throws SQLException {
+        StringBuilder sqlBuilder = new StringBuilder("INSERT INTO ").append(tableName).append(" (");
+        StringBuilder valuesBuilder = new StringBuilder();
+        for (int i = 0; i < columnNames.size(); i++) {
+            if (i > 0) {
+                sqlBuilder.append(", ");
+                valuesBuilder.append(", ");
+            }
+            sqlBuilder.append(columnNames.get(i));
+            valuesBuilder.append("?");
+        }
+        sqlBuilder.append(") VALUES (").append(valuesBuilder).append(")");
+        
+        PreparedStatement statement = connection.prepareStatement(sqlBuilder.toString());
+        try {
+            // some drivers need the SQL type of a null value
+            int[] sqlTypes = new int[columnNames.size()];
+            for (int i = 0; i < sqlTypes.length; i++) {
+                try {
+                    sqlTypes[i] = statement.getParameterMetaData().getParameterType(i + 1);
+                } catch (SQLException e) {
+                    sqlTypes[i] = Types.VARCHAR;
+                }
+            }
+            for (Object[] row : rows) {
+                for (int i = 0; i < row.length; i++) {
+                    if (row[i] == null) {
+                        statement.setNull(i + 1, sqlTypes[i]);
+                    } else {
+                        statement.setObject(i + 1, row[i]);
+                    }
+                }
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        } finally {
+            statement.close();
+        }
+    }
+    
+    protected void doCreateDatabaseFromTemplate(GenericHelperInfo helperInfo, TenantJdbcConnectionHandler templateConnectionHandler) throws GenericEntityException, SQLException {
+        throw new SQLFeatureNotSupportedException("Could not create a database from a template for: " + this.getJdbcUri());
+    }
+    
+    protected void doCreateDatabaseFromSpare(GenericHelperInfo helperInfo, TenantJdbcConnectionHandler spareConnectionHandler) throws GenericEntityException, SQLException {
+        throw new SQLFeatureNotSupportedException("Could not create a database from a spare database for: " + this.getJdbcUri());
+    }
+    
     public abstract boolean isExist() ;
     protected abstract void doCreateDatabase(GenericHelperInfo helperInfo) throws GenericEntityException, SQLException;
     protected abstract void doDeleteDatabase(GenericHelperInfo helperInfo) throws GenericEntityException, SQLException;
     
-    protected abstract String getJdbcServerName();
+    public abstract String getJdbcServerName();
 }
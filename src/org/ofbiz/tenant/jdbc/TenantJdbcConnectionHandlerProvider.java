@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.jdbc;
+
+import org.ofbiz.entity.GenericValue;
+
+/**
+ * Tenant JDBC connection handler provider
+ * <p>
+ * Creates the connection handlers of one database type. Providers are registered with
+ * {@link TenantConnectionFactory#registerConnectionHandlerProvider(TenantJdbcConnectionHandlerProvider)}
+ * or listed in <code>META-INF/services/org.ofbiz.tenant.jdbc.TenantJdbcConnectionHandlerProvider</code>.
+ */
+public interface TenantJdbcConnectionHandlerProvider {
+
+    /**
+     * check if this provider handles a JDBC URI
+     * @param jdbcUri
+     * @return
+     */
+    public boolean accepts(String jdbcUri);
+
+    /**
+     * create a connection handler for a tenant data source
+     * @param tenantDataSource
+     * @return
+     * @throws Exception
+     */
+    public TenantJdbcConnectionHandler createConnectionHandler(GenericValue tenantDataSource) throws Exception;
+}
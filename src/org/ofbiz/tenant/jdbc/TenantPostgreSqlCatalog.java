@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.jdbc;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.ofbiz.base.util.Debug;
+
+/**
+ * Tenant PostgreSQL catalog
+ * <p>
+ * A snapshot of the database and role names of a PostgreSQL server, loaded with one query
+ * over a pooled admin connection instead of one connection per tenant data source. The snapshot is updated by the DDL run
+ * through the connection handlers and reloaded after the snapshot timeout, so changes made
+ * outside of OFBiz are seen as well.
+ */
+public class TenantPostgreSqlCatalog {
+
+    public final static String module = TenantPostgreSqlCatalog.class.getName();
+    
+    private final static String CATALOG_QUERY = "SELECT 'D' AS kind, datname AS name FROM pg_database WHERE datistemplate = false"
+            + " UNION ALL SELECT 'R' AS kind, rolname AS name FROM pg_roles";
+    
+    private final static ConcurrentHashMap<String, TenantPostgreSqlCatalog> catalogs = new ConcurrentHashMap<String, TenantPostgreSqlCatalog>();
+    
+    private final String jdbcServerName;
+    private final TenantAdminConnectionPool adminConnectionPool;
+    private final long snapshotTimeout;
+    private volatile Snapshot snapshot = null;
+    
+    protected TenantPostgreSqlCatalog(String jdbcServerName, TenantAdminConnectionPool adminConnectionPool, long snapshotTimeout) {
+        this.jdbcServerName = jdbcServerName;
+        this.adminConnectionPool = adminConnectionPool;
+        this.snapshotTimeout = snapshotTimeout;
+    }
+    
+    /**
+     * get the catalog of a PostgreSQL server, create it at the first time
+     * @param jdbcServerName
+     * @param adminConnectionPool the admin connection pool of the server
+     * @param snapshotTimeout time in milliseconds before the snapshot is reloaded, 0 means never
+     * @return
+     */
+    public static TenantPostgreSqlCatalog getCatalog(String jdbcServerName, TenantAdminConnectionPool adminConnectionPool, long snapshotTimeout) {
+        TenantPostgreSqlCatalog catalog = catalogs.get(jdbcServerName);
+        if (catalog == null) {
+            TenantPostgreSqlCatalog newCatalog = new TenantPostgreSqlCatalog(jdbcServerName, adminConnectionPool, snapshotTimeout);
+            catalog = catalogs.putIfAbsent(jdbcServerName, newCatalog);
+            if (catalog == null) {
+                catalog = newCatalog;
+            }
+        }
+        return catalog;
+    }
+    
+    /**
+     * clear the snapshots of all PostgreSQL servers
+     */
+    public static void clearCatalogs() {
+        for (TenantPostgreSqlCatalog catalog : catalogs.values()) {
+            catalog.refresh();
+        }
+    }
+    
+    /**
+     * check if a database exists
+     * @param databaseName
+     * @return
+     * @throws SQLException
+     */
+    public boolean hasDatabase(String databaseName) throws SQLException {
+        return getSnapshot().databaseNames.contains(databaseName);
+    }
+    
+    /**
+     * check if a role exists
+     * @param roleName
+     * @return
+     * @throws SQLException
+     */
+    public boolean hasRole(String roleName) throws SQLException {
+        return getSnapshot().roleNames.contains(roleName);
+    }
+    
+    /**
+     * get database names
+     * @return
+     * @throws SQLException
+     */
+    public Set<String> getDatabaseNames() throws SQLException {
+        return getSnapshot().databaseNames;
+    }
+    
+    /**
+     * get role names
+     * @return
+     * @throws SQLException
+     */
+    public Set<String> getRoleNames() throws SQLException {
+        return getSnapshot().roleNames;
+    }
+    
+    /**
+     * record a created database
+     * @param databaseName
+     */
+    public synchronized void addDatabase(String databaseName) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            Set<String> databaseNames = new HashSet<String>(current.databaseNames);
+            databaseNames.add(databaseName);
+            snapshot = new Snapshot(databaseNames, current.roleNames, current.loadedTime);
+        }
+    }
+    
+    /**
+     * record a dropped database
+     * @param databaseName
+     */
+    public synchronized void removeDatabase(String databaseName) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            Set<String> databaseNames = new HashSet<String>(current.databaseNames);
+            databaseNames.remove(databaseName);
+            snapshot = new Snapshot(databaseNames, current.roleNames, current.loadedTime);
+        }
+    }
+    
+    /**
+     * record a created role
+     * @param roleName
+     */
+    public synchronized void addRole(String roleName) {
+        Snapshot current = snapshot;
+        if (current != null) {
+            Set<String> roleNames = new HashSet<String>(current.roleNames);
+            roleNames.add(roleName);
+            snapshot = new Snapshot(current.databaseNames, roleNames, current.loadedTime);
+        }
+    }
+    
+    /**
+     * drop the snapshot, it will be loaded again at the next lookup
+     */
+    public synchronized void refresh() {
+        snapshot = null;
+    }
+    
+    private Snapshot getSnapshot() throws SQLException {
+        Snapshot current = snapshot;
+        if (current == null || current.isExpired(snapshotTimeout)) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null || current.isExpired(snapshotTimeout)) {
+                    current = loadSnapshot();
+                    snapshot = current;
+                }
+            }
+        }
+        return current;
+    }
+    
+    private Snapshot loadSnapshot() throws SQLException {
+        final Set<String> databaseNames = new HashSet<String>();
+        final Set<String> roleNames = new HashSet<String>();
+        adminConnectionPool.execute(new TenantAdminConnectionPool.AdminCallback<Void>() {
+            public Void execute(Connection connection) throws SQLException {
+                Statement statement = connection.createStatement();
+                try {
+                    ResultSet resultSet = statement.executeQuery(CATALOG_QUERY);
+                    while (resultSet.next()) {
+                        if ("D".equals(resultSet.getString("kind"))) {
+                            databaseNames.add(resultSet.getString("name"));
+                        } else {
+                            roleNames.add(resultSet.getString("name"));
+                        }
+                    }
+                    resultSet.close();
+                } finally {
+                    statement.close();
+                }
+                return null;
+            }
+        });
+        if (Debug.verboseOn()) Debug.logVerbose("Loaded catalog of " + jdbcServerName + ": " + databaseNames.size() + " databases, " + roleNames.size() + " roles", module);
+        return new Snapshot(databaseNames, roleNames, System.currentTimeMillis());
+    }
+    
+    private static class Snapshot {
+        
+        private final Set<String> databaseNames;
+        private final Set<String> roleNames;
+        private final long loadedTime;
+        
+        private Snapshot(Set<String> databaseNames, Set<String> roleNames, long loadedTime) {
+            this.databaseNames = Collections.unmodifiableSet(databaseNames);
+            this.roleNames = Collections.unmodifiableSet(roleNames);
+            this.loadedTime = loadedTime;
+        }
+        
+        private boolean isExpired(long timeout) {
+            return timeout > 0 && System.currentTimeMillis() - loadedTime > timeout;
+        }
+    }
+}
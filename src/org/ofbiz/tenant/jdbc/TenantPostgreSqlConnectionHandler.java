@@ -18,20 +18,27 @@
  *******************************************************************************/
 package org.ofbiz.tenant.jdbc;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javolution.util.FastList;
+
 import org.ofbiz.base.util.Debug;
 import org.ofbiz.entity.Delegator;
 import org.ofbiz.entity.GenericEntityException;
 import org.ofbiz.entity.GenericValue;
 import org.ofbiz.entity.datasource.GenericHelperInfo;
 import org.ofbiz.entity.jdbc.ConnectionFactory;
-import org.ofbiz.entity.jdbc.SQLProcessor;
+import org.ofbiz.entity.util.EntityUtilProperties;
 import org.ofbiz.tenant.jdbc.TenantJdbcConnectionHandler;
 
 /**
@@ -45,8 +52,10 @@ public class TenantPostgreSqlConnectionHandler extends TenantJdbcConnectionHandl
     
     public final static String URI_PREFIX = "jdbc:postgresql:";
     
-    private boolean exists = false;
-
+    private final static String OBJECT_IN_USE_STATE = "55006";
+    private final static int DROP_MAX_ATTEMPTS = 6;
+    private final static long DROP_RETRY_DELAY = 500;
+    
     /**
      * Constructor
      * @param jdbcUri
@@ -54,24 +63,6 @@ public class TenantPostgreSqlConnectionHandler extends TenantJdbcConnectionHandl
      */
     public TenantPostgreSqlConnectionHandler(GenericValue tenantDataSource) {
         super(tenantDataSource);
-        try {
-            Delegator delegator = tenantDataSource.getDelegator();
-            GenericHelperInfo helperInfo = delegator.getGroupHelperInfo(this.getEntityGroupName());
-            Connection connection = ConnectionFactory.getConnection(this.getPostgresJdbcUri(), this.getSuperUsername(), this.getSuperPassword());
-            SQLProcessor sqlProcessor = new SQLProcessor(helperInfo, connection);
-            ResultSet rs = sqlProcessor.executeQuery("SELECT COUNT(*) AS count FROM pg_database WHERE datname='" + this.getDatabaseName() + "' AND datistemplate = false");
-            if (rs.next()) {
-                int count = rs.getInt("count");
-                sqlProcessor.close();
-                connection.close();
-                exists = (count > 0);
-            } else {
-                exists = false;
-            }
-        } catch (Exception e) {
-            Debug.logWarning(e, module);
-            exists = false;
-        }
     }
     /**
      * get JDBC Server name
@@ -104,46 +95,274 @@ public class TenantPostgreSqlConnectionHandler extends TenantJdbcConnectionHandl
         return databaseName;
     }
     
+    /**
+     * check the catalog on every call, the database may have been created or dropped since this handler was created
+     */
     @Override
     public boolean isExist() {
-        return exists;
+        try {
+            return this.getCatalog().hasDatabase(this.getDatabaseName());
+        } catch (Exception e) {
+            Debug.logWarning(e, module);
+            return false;
+        }
     }
     
     @Override
     protected void doCreateDatabase(GenericHelperInfo helperInfo)
             throws GenericEntityException, SQLException {
-        if (!isExist()) {
-            Debug.logInfo("Create database " + this.getJdbcUsername() + "@" + this.getJdbcUri() + " with " + this.getJdbcPassword(), module);
+        TenantPostgreSqlCatalog catalog = this.getCatalog();
+        if (!catalog.hasDatabase(this.getDatabaseName())) {
+            Debug.logInfo("Create database " + this.getJdbcUsername() + "@" + this.getJdbcUri(), module);
+            TenantAdminConnectionPool adminConnectionPool = this.getAdminConnectionPool();
+            
             // check if the user is not exist then create the user
-            Debug.logInfo("Check a user[" + this.getJdbcUsername() + "] by " + this.getSuperUsername() + "@" + this.getPostgresJdbcUri() + " with " + this.getSuperPassword(), module);
-            Connection superConnection = ConnectionFactory.getConnection(this.getPostgresJdbcUri(), this.getSuperUsername(), this.getSuperPassword());
-            Statement statement = superConnection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_UPDATABLE);
-            ResultSet resultSet = statement.executeQuery("SELECT * FROM pg_roles WHERE rolname='" + this.getJdbcUsername() + "';");
-            if (!resultSet.next()) {
-                // create JDBC username
-                statement.executeUpdate("CREATE USER \"" + this.getJdbcUsername() + "\" WITH PASSWORD '" + this.getJdbcPassword() +"' LOGIN;");
-                statement.close();
-            }
+            createUser(catalog, adminConnectionPool);
             
             // create a new database
-            SQLProcessor sqlProcessor = new SQLProcessor(helperInfo, superConnection);
-            sqlProcessor.executeUpdate("CREATE DATABASE \"" + this.getDatabaseName() + "\"");
-            sqlProcessor.executeUpdate("ALTER DATABASE \"" + this.getDatabaseName() + "\" OWNER TO \"" + this.getJdbcUsername() + "\"");
-            sqlProcessor.executeUpdate("GRANT ALL PRIVILEGES ON DATABASE \"" + this.getDatabaseName() + "\" TO \"" + this.getJdbcUsername() + "\"");
-            sqlProcessor.close();
-            superConnection.close();
+            adminConnectionPool.executeUpdate("CREATE DATABASE \"" + this.getDatabaseName() + "\""
+                    , "ALTER DATABASE \"" + this.getDatabaseName() + "\" OWNER TO \"" + this.getJdbcUsername() + "\""
+                    , "GRANT ALL PRIVILEGES ON DATABASE \"" + this.getDatabaseName() + "\" TO \"" + this.getJdbcUsername() + "\"");
+            catalog.addDatabase(this.getDatabaseName());
         } else {
-            Debug.logWarning("Could not create teh database because it is already exist.", module);
+            Debug.logWarning("Could not create the database because it already exists.", module);
+        }
+    }
+
+    @Override
+    public boolean isTemplateSupported() {
+        return true;
+    }
+    
+    @Override
+    protected void doCreateDatabaseFromTemplate(GenericHelperInfo helperInfo, TenantJdbcConnectionHandler templateConnectionHandler)
+            throws GenericEntityException, SQLException {
+        TenantPostgreSqlCatalog catalog = this.getCatalog();
+        if (!catalog.hasDatabase(this.getDatabaseName())) {
+            Debug.logInfo("Create database " + this.getJdbcUsername() + "@" + this.getJdbcUri() + " from template " + templateConnectionHandler.getDatabaseName(), module);
+            TenantAdminConnectionPool adminConnectionPool = this.getAdminConnectionPool();
+            createUser(catalog, adminConnectionPool);
+            
+            // copy the template database, it must not have any open connections
+            adminConnectionPool.executeUpdate("CREATE DATABASE \"" + this.getDatabaseName() + "\" TEMPLATE \"" + templateConnectionHandler.getDatabaseName() + "\" OWNER \"" + this.getJdbcUsername() + "\""
+                    , "GRANT ALL PRIVILEGES ON DATABASE \"" + this.getDatabaseName() + "\" TO \"" + this.getJdbcUsername() + "\"");
+            catalog.addDatabase(this.getDatabaseName());
+            
+            // the copied tables are still owned by the template user
+            reassignTables(templateConnectionHandler.getJdbcUsername());
+        } else {
+            Debug.logWarning("Could not create the database because it already exists.", module);
+        }
+    }
+
+    @Override
+    protected void doCreateDatabaseFromSpare(GenericHelperInfo helperInfo, TenantJdbcConnectionHandler spareConnectionHandler)
+            throws GenericEntityException, SQLException {
+        Debug.logInfo("Rename database " + spareConnectionHandler.getDatabaseName() + " to " + this.getDatabaseName(), module);
+        TenantPostgreSqlCatalog catalog = this.getCatalog();
+        TenantAdminConnectionPool adminConnectionPool = this.getAdminConnectionPool();
+        createUser(catalog, adminConnectionPool);
+        adminConnectionPool.executeUpdate("ALTER DATABASE \"" + spareConnectionHandler.getDatabaseName() + "\" RENAME TO \"" + this.getDatabaseName() + "\""
+                , "ALTER DATABASE \"" + this.getDatabaseName() + "\" OWNER TO \"" + this.getJdbcUsername() + "\""
+                , "GRANT ALL PRIVILEGES ON DATABASE \"" + this.getDatabaseName() + "\" TO \"" + this.getJdbcUsername() + "\"");
+        catalog.removeDatabase(spareConnectionHandler.getDatabaseName());
+        catalog.addDatabase(this.getDatabaseName());
+        reassignTables(spareConnectionHandler.getJdbcUsername());
+    }
+    
+    /**
+     * give the tables of another user to the JDBC user
+     * @param username
+     * @throws SQLException
+     */
+    private void reassignTables(String username) throws SQLException {
+        if (username.equals(this.getJdbcUsername())) {
+            return;
+        }
+        Connection connection = ConnectionFactory.getConnection(this.getJdbcUri(), this.getSuperUsername(), this.getSuperPassword());
+        try {
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeUpdate("DO $$DECLARE r record; BEGIN"
+                        + " FOR r IN SELECT schemaname, tablename FROM pg_tables WHERE tableowner = '" + username + "' LOOP"
+                        + " EXECUTE 'ALTER TABLE ' || quote_ident(r.schemaname) || '.' || quote_ident(r.tablename) || ' OWNER TO \"" + this.getJdbcUsername() + "\"';"
+                        + " END LOOP; END$$");
+            } finally {
+                statement.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * get read only connections which see the same snapshot, exported by the first connection
+     */
+    @Override
+    public List<Connection> getSnapshotConnections(int count) throws SQLException {
+        // the first connection exports its snapshot and the others import it, all of them before the first query
+        List<Connection> connections = FastList.newInstance();
+        try {
+            Connection exportConnection = this.getBulkConnection();
+            connections.add(exportConnection);
+            exportConnection.setAutoCommit(false);
+            exportConnection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            exportConnection.setReadOnly(true);
+            String snapshotId = null;
+            Statement statement = exportConnection.createStatement();
+            try {
+                ResultSet resultSet = statement.executeQuery("SELECT pg_export_snapshot()");
+                resultSet.next();
+                snapshotId = resultSet.getString(1);
+                resultSet.close();
+            } finally {
+                statement.close();
+            }
+            for (int i = 1; i < count; i++) {
+                Connection connection = this.getBulkConnection();
+                connections.add(connection);
+                connection.setAutoCommit(false);
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                connection.setReadOnly(true);
+                statement = connection.createStatement();
+                try {
+                    statement.execute("SET TRANSACTION SNAPSHOT '" + snapshotId + "'");
+                } finally {
+                    statement.close();
+                }
+            }
+        } catch (SQLException e) {
+            closeConnections(connections);
+            throw e;
+        }
+        return connections;
+    }
+    
+    @Override
+    public boolean isSnapshotSupported() {
+        return true;
+    }
+    
+    /**
+     * insert rows by COPY FROM STDIN in CSV format, the PostgreSQL driver is used through
+     * reflection so it is not needed at compile time. JDBC batches are used if the connection
+     * is not a PostgreSQL connection.
+     */
+    @Override
+    public void insertRows(Connection connection, String tableName, List<String> columnNames, List<Object[]> rows) throws SQLException {
+        Object copyManager = null;
+        try {
+            Class<?> pgConnectionClass = Class.forName("org.postgresql.PGConnection");
+            Object pgConnection = connection.unwrap(pgConnectionClass);
+            copyManager = pgConnectionClass.getMethod("getCopyAPI").invoke(pgConnection);
+        } catch (Exception e) {
+            if (Debug.verboseOn()) Debug.logVerbose("Could not use COPY, insert rows in batches: " + e.getMessage(), module);
+            super.insertRows(connection, tableName, columnNames, rows);
+            return;
+        }
+        
+        StringBuilder sqlBuilder = new StringBuilder("COPY ").append(tableName).append(" (");
+        for (int i = 0; i < columnNames.size(); i++) {
+            if (i > 0) {
+                sqlBuilder.append(", ");
+            }
+            sqlBuilder.append(columnNames.get(i));
+        }
+        sqlBuilder.append(") FROM STDIN WITH CSV");
+        
+        // an empty unquoted value is NULL, all other values are quoted
+        StringBuilder csvBuilder = new StringBuilder();
+        for (Object[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    csvBuilder.append(',');
+                }
+                if (row[i] != null) {
+                    String value = row[i] instanceof BigDecimal ? ((BigDecimal) row[i]).toPlainString() : row[i].toString();
+                    csvBuilder.append('"').append(value.replace("\"", "\"\"")).append('"');
+                }
+            }
+            csvBuilder.append('\n');
+        }
+        
+        try {
+            copyManager.getClass().getMethod("copyIn", String.class, Reader.class).invoke(copyManager, sqlBuilder.toString(), new StringReader(csvBuilder.toString()));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof SQLException) {
+                throw (SQLException) e.getCause();
+            }
+            throw new SQLException("Could not copy rows into " + tableName, e.getCause());
+        } catch (Exception e) {
+            throw new SQLException("Could not copy rows into " + tableName, e);
         }
     }
 
     @Override
     protected void doDeleteDatabase(GenericHelperInfo helperInfo) throws GenericEntityException, SQLException {
-        Connection conn = ConnectionFactory.getConnection(this.getPostgresJdbcUri(), this.getJdbcUsername(), this.getJdbcPassword());
-        SQLProcessor sqlProcessor = new SQLProcessor(helperInfo, conn);
-        sqlProcessor.executeUpdate("DROP DATABASE \"" + this.getDatabaseName() + "\"");
-        sqlProcessor.close();
-        conn.close();
+        // the pools of other nodes may still hold sessions, which make DROP DATABASE fail,
+        // so terminate them and retry with a growing delay until the database is dropped
+        final String databaseName = this.getDatabaseName();
+        TenantAdminConnectionPool adminConnectionPool = this.getAdminConnectionPool();
+        long delay = DROP_RETRY_DELAY;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                adminConnectionPool.execute(new TenantAdminConnectionPool.AdminCallback<Void>() {
+                    public Void execute(Connection connection) throws SQLException {
+                        Statement statement = connection.createStatement();
+                        try {
+                            statement.execute("SELECT pg_terminate_backend(pid) FROM pg_stat_activity WHERE datname = '" + databaseName + "' AND pid <> pg_backend_pid()");
+                        } finally {
+                            statement.close();
+                        }
+                        return null;
+                    }
+                });
+                // a spare database may have been renamed already
+                adminConnectionPool.executeUpdate("DROP DATABASE IF EXISTS \"" + databaseName + "\"");
+                break;
+            } catch (SQLException e) {
+                if (!OBJECT_IN_USE_STATE.equals(e.getSQLState()) || attempt >= DROP_MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Debug.logWarning("Database " + databaseName + " is still in use, retrying to drop it in " + delay + " ms", module);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                delay *= 2;
+            }
+        }
+        this.getCatalog().removeDatabase(databaseName);
+    }
+    
+    private void createUser(TenantPostgreSqlCatalog catalog, TenantAdminConnectionPool adminConnectionPool) throws SQLException {
+        if (!catalog.hasRole(this.getJdbcUsername())) {
+            adminConnectionPool.executeUpdate("CREATE USER \"" + this.getJdbcUsername() + "\" WITH PASSWORD '" + this.getJdbcPassword() +"' LOGIN");
+            catalog.addRole(this.getJdbcUsername());
+        }
+    }
+    
+    /**
+     * get the admin connection pool of the PostgreSQL server
+     * @return
+     */
+    protected TenantAdminConnectionPool getAdminConnectionPool() {
+        Delegator delegator = tenantDataSource.getDelegator();
+        int maxSize = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant.properties", "adminPoolMaxSize", "4", delegator));
+        long maxWait = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant.properties", "adminPoolMaxWait", "30000", delegator));
+        return TenantAdminConnectionPool.getPool(this.getJdbcServerName(), this.getPostgresJdbcUri(), this.getSuperUsername(), this.getSuperPassword(), maxSize, maxWait);
+    }
+    
+    /**
+     * get the catalog snapshot of the PostgreSQL server
+     * @return
+     */
+    protected TenantPostgreSqlCatalog getCatalog() {
+        Delegator delegator = tenantDataSource.getDelegator();
+        long snapshotTimeout = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant.properties", "catalogSnapshotTimeout", "60000", delegator));
+        return TenantPostgreSqlCatalog.getCatalog(this.getJdbcServerName(), this.getAdminConnectionPool(), snapshotTimeout);
     }
     
     protected String getPostgresJdbcUri() {
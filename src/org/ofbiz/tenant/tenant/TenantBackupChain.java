@@ -0,0 +1,201 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+import javolution.util.FastList;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.util.EntityUtil;
+
+/**
+ * Tenant Backup Chain
+ * <p>
+ * An incremental backup is based on the latest backup of the tenant, a differential backup on the latest
+ * full backup. The base of a backup is kept as a ContentAssoc of type TENANT_BACKUP_BASE from the content
+ * of the backup to the content of its base, so a backup is restored by replaying its chain from the full
+ * backup on. A backup can not be deleted while other backups are based on it.
+ */
+public class TenantBackupChain {
+
+    public final static String module = TenantBackupChain.class.getName();
+
+    public final static String BASE_ASSOC_TYPE_ID = "TENANT_BACKUP_BASE";
+
+    /**
+     * get the file of a backup
+     * @param content
+     * @return
+     * @throws GenericEntityException
+     * @throws URISyntaxException
+     */
+    public static File getBackupFile(GenericValue content) throws GenericEntityException, URISyntaxException {
+        GenericValue dataResource = content.getRelatedOne("DataResource", false);
+        if (UtilValidate.isEmpty(dataResource)) {
+            throw new GenericEntityException("Could not find data resource of content: " + content.getString("contentId"));
+        }
+        return new File(new URI(dataResource.getString("objectInfo")));
+    }
+
+    /**
+     * get the contents of the active backups of a tenant, the latest first
+     * @param tenantId
+     * @param delegator the base delegator
+     * @return
+     * @throws GenericEntityException
+     */
+    public static List<GenericValue> getBackupContents(String tenantId, Delegator delegator) throws GenericEntityException {
+        List<GenericValue> contents = FastList.newInstance();
+        GenericValue tenantUserLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", tenantId), false);
+        if (UtilValidate.isEmpty(tenantUserLogin)) {
+            return contents;
+        }
+        List<GenericValue> partyContents = delegator.findList("PartyContent", EntityCondition.makeCondition(
+                EntityCondition.makeCondition("partyId", tenantUserLogin.getString("partyId"))
+                , EntityCondition.makeCondition("partyContentTypeId", "TENANT_BACKUP")
+                , EntityUtil.getFilterByDateExpr()), null, UtilMisc.toList("-fromDate"), null, false);
+        for (GenericValue partyContent : partyContents) {
+            contents.add(partyContent.getRelatedOne("Content", false));
+        }
+        return contents;
+    }
+
+    /**
+     * get the base of a new backup of a tenant
+     * @param tenantId
+     * @param backupType
+     * @param delegator the base delegator
+     * @return the content of the base, null if a full backup has to be written
+     * @throws GenericEntityException
+     * @throws IOException
+     * @throws URISyntaxException
+     */
+    public static GenericValue getBase(String tenantId, String backupType, Delegator delegator) throws GenericEntityException, IOException, URISyntaxException {
+        if (!TenantBackupWriter.TYPE_INCREMENTAL.equals(backupType) && !TenantBackupWriter.TYPE_DIFFERENTIAL.equals(backupType)) {
+            return null;
+        }
+        for (GenericValue content : getBackupContents(tenantId, delegator)) {
+            File file = getBackupFile(content);
+            if (!file.exists()) {
+                Debug.logWarning("Backup file " + file + " of tenant [" + tenantId + "] does not exist, a full backup is written", module);
+                return null;
+            }
+            Properties manifest = TenantBackupRestorer.getManifest(file);
+            String type = manifest.getProperty("backupType", TenantBackupWriter.TYPE_FULL);
+            if (TenantBackupWriter.TYPE_DIFFERENTIAL.equals(backupType) && !TenantBackupWriter.TYPE_FULL.equals(type)) {
+                continue;
+            }
+            String highWaterStamp = manifest.getProperty("highWaterStamp");
+            if (highWaterStamp == null) {
+                Debug.logWarning("Backup " + content.getString("contentId") + " of tenant [" + tenantId + "] does not have a high water stamp, a full backup is written", module);
+                return null;
+            }
+
+            // a restore since the base puts back older values with older stamps
+            List<GenericValue> restoreProgresses = delegator.findList("TenantRestoreProgress", EntityCondition.makeCondition(
+                    EntityCondition.makeCondition("tenantId", tenantId)
+                    , EntityCondition.makeCondition("startDate", EntityOperator.GREATER_THAN_EQUAL_TO, Timestamp.valueOf(highWaterStamp)))
+                    , null, null, null, false);
+            if (UtilValidate.isNotEmpty(restoreProgresses)) {
+                Debug.logInfo("Tenant [" + tenantId + "] has been restored since backup " + content.getString("contentId") + ", a full backup is written", module);
+                return null;
+            }
+            return content;
+        }
+        return null;
+    }
+
+    /**
+     * record the base of a backup
+     * @param contentId
+     * @param baseContentId
+     * @param delegator the base delegator
+     * @throws GenericEntityException
+     */
+    public static void setBase(String contentId, String baseContentId, Delegator delegator) throws GenericEntityException {
+        GenericValue contentAssoc = delegator.makeValue("ContentAssoc", UtilMisc.toMap("contentId", contentId, "contentIdTo", baseContentId
+                , "contentAssocTypeId", BASE_ASSOC_TYPE_ID, "fromDate", UtilDateTime.nowTimestamp()));
+        delegator.create(contentAssoc);
+    }
+
+    /**
+     * get the chain of a backup, from its full backup to the backup
+     * @param contentId
+     * @param delegator the base delegator
+     * @return the contents of the chain
+     * @throws GenericEntityException
+     */
+    public static List<GenericValue> getChain(String contentId, Delegator delegator) throws GenericEntityException {
+        List<GenericValue> chain = FastList.newInstance();
+        Set<String> contentIds = FastSet.newInstance();
+        while (contentId != null) {
+            if (!contentIds.add(contentId)) {
+                throw new GenericEntityException("The chain of backup " + contentId + " has a cycle");
+            }
+            GenericValue content = delegator.findOne("Content", UtilMisc.toMap("contentId", contentId), false);
+            if (UtilValidate.isEmpty(content)) {
+                throw new GenericEntityException("Could not find backup content: " + contentId);
+            }
+            chain.add(0, content);
+            List<GenericValue> contentAssocs = EntityUtil.filterByDate(delegator.findByAnd("ContentAssoc"
+                    , UtilMisc.toMap("contentId", contentId, "contentAssocTypeId", BASE_ASSOC_TYPE_ID), null, false));
+            GenericValue contentAssoc = EntityUtil.getFirst(contentAssocs);
+            contentId = contentAssoc == null ? null : contentAssoc.getString("contentIdTo");
+        }
+        return chain;
+    }
+
+    /**
+     * get the active backups which are based on a backup
+     * @param contentId
+     * @param delegator the base delegator
+     * @return the content ids
+     * @throws GenericEntityException
+     */
+    public static List<String> getDependentContentIds(String contentId, Delegator delegator) throws GenericEntityException {
+        List<String> dependentContentIds = FastList.newInstance();
+        List<GenericValue> contentAssocs = EntityUtil.filterByDate(delegator.findByAnd("ContentAssoc"
+                , UtilMisc.toMap("contentIdTo", contentId, "contentAssocTypeId", BASE_ASSOC_TYPE_ID), null, false));
+        for (GenericValue contentAssoc : contentAssocs) {
+            List<GenericValue> partyContents = EntityUtil.filterByDate(delegator.findByAnd("PartyContent"
+                    , UtilMisc.toMap("contentId", contentAssoc.getString("contentId"), "partyContentTypeId", "TENANT_BACKUP"), null, false));
+            if (UtilValidate.isNotEmpty(partyContents)) {
+                dependentContentIds.add(contentAssoc.getString("contentId"));
+            }
+        }
+        return dependentContentIds;
+    }
+}
@@ -0,0 +1,731 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.StringUtil;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.datasource.GenericHelperInfo;
+import org.ofbiz.entity.jdbc.DatabaseUtil;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.model.ModelField;
+import org.ofbiz.entity.model.ModelRelation;
+import org.ofbiz.entity.model.ModelViewEntity;
+import org.ofbiz.entity.tenant.TenantActivity;
+import org.ofbiz.entity.tenant.TenantRoutingTable;
+import org.ofbiz.tenant.jdbc.TenantBulkLoader;
+import org.ofbiz.tenant.jdbc.TenantConnectionFactory;
+import org.ofbiz.tenant.jdbc.TenantJdbcConnectionHandler;
+
+/**
+ * Tenant Backup Restorer
+ * <p>
+ * Restores a zip file of {@link TenantBackupWriter}, or of entityExportAll, into the databases of a tenant.
+ * The databases of the tenant data sources are deleted and created again, then every entry is read straight
+ * out of the zip file and its values are inserted in batches by {@link TenantJdbcConnectionHandler#insertRows}
+ * over a bulk connection of its data source, without extracting the zip file to disk.
+ * <p>
+ * The entities are loaded by a pool of worker threads in levels of their foreign key dependencies, so the
+ * entities an entity refers to are loaded before it. The foreign keys are dropped while loading because
+ * the entity model has cycles and self references, and they are created again at the end to check the values.
+ * The progress of every entity is stored in TenantRestoreProgress, and the number of values and the checksum
+ * of every entry are verified against the manifest of the backup.
+ * <p>
+ * An incremental or differential backup is restored by its chain, see {@link TenantBackupChain}. The full backup
+ * is loaded first, then the entries of every later backup either replace the values of their entity, or remove
+ * the primary keys of their delete element and replace the changed values, and the number of values of every
+ * changed entity is checked against the manifest.
+ * <p>
+ * The entries of a backup written into a {@link TenantBackupStore} are read out of their chunks in the store.
+ */
+public class TenantBackupRestorer {
+
+    public final static String module = TenantBackupRestorer.class.getName();
+
+    public final static String STATUS_PENDING = "TNT_RST_PENDING";
+    public final static String STATUS_RUNNING = "TNT_RST_RUNNING";
+    public final static String STATUS_COMPLETED = "TNT_RST_COMPLETED";
+    public final static String STATUS_FAILED = "TNT_RST_FAILED";
+
+    private final static int BUFFER_SIZE = 65536;
+
+    protected String tenantId;
+    protected Delegator delegator;
+    protected Delegator tenantDelegator;
+    protected int batchSize = 1000;
+    protected int maxThreads = 4;
+    protected TenantBackupStore backupStore = null;
+
+    private Properties manifest = null;
+    private boolean incremental = false;
+    private final AtomicLong numberLoaded = new AtomicLong();
+    private final List<String> messages = FastList.newInstance();
+    private volatile boolean aborted = false;
+
+    /**
+     * Constructor
+     * @param tenantId the tenant restored, which may differ from the tenant of the backup
+     * @param delegator the base delegator
+     * @param batchSize the number of values of an entity inserted at once
+     * @param maxThreads the number of worker threads, and of the bulk connections of every data source
+     */
+    public TenantBackupRestorer(String tenantId, Delegator delegator, int batchSize, int maxThreads) {
+        this.tenantId = tenantId;
+        this.delegator = delegator;
+        this.batchSize = Math.max(batchSize, 1);
+        this.maxThreads = Math.max(maxThreads, 1);
+    }
+
+    /**
+     * set the store of the chunks of the backups
+     * @param backupStore
+     */
+    public void setBackupStore(TenantBackupStore backupStore) {
+        this.backupStore = backupStore;
+    }
+
+    /**
+     * get the chunks of every entity of a backup in the store, empty if the backup is not in the store
+     * @param manifest
+     * @return the hash of every chunk reference
+     */
+    public static List<String> getChunks(Properties manifest) {
+        List<String> hashes = FastList.newInstance();
+        if (!TenantBackupWriter.STORAGE_CHUNKS.equals(manifest.getProperty("storage"))) {
+            return hashes;
+        }
+        for (String entityName : StringUtil.split(manifest.getProperty("entities", ""), ",")) {
+            String chunks = manifest.getProperty(entityName.trim() + ".chunks");
+            if (chunks != null) {
+                hashes.addAll(StringUtil.split(chunks, ","));
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * get the manifest of a backup file, empty if the backup has no manifest
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Properties getManifest(File file) throws IOException {
+        ZipFile zipFile = new ZipFile(file);
+        try {
+            return getManifest(zipFile);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    protected static Properties getManifest(ZipFile zipFile) throws IOException {
+        Properties manifest = new Properties();
+        ZipEntry manifestEntry = zipFile.getEntry(TenantBackupWriter.MANIFEST_ENTRY_NAME);
+        if (manifestEntry != null) {
+            InputStream manifestIn = zipFile.getInputStream(manifestEntry);
+            try {
+                manifest.load(manifestIn);
+            } finally {
+                manifestIn.close();
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * replace the databases of the tenant with the entities of a backup file
+     * @param file
+     * @param contentId the content of the backup, stored with the progress
+     * @return the number of values restored
+     * @throws Exception
+     */
+    public long restore(File file, String contentId) throws Exception {
+        return restore(UtilMisc.toList(file), UtilMisc.toList(contentId));
+    }
+
+    /**
+     * replace the databases of the tenant with the entities of a full backup, then apply the
+     * changes of the incremental and differential backups based on it in order. The tenant is
+     * disabled and deactivated while it is restored, a failed restore leaves it disabled.
+     * @param files the chain of backup files, from the full backup on
+     * @param contentIds the contents of the backups, stored with the progress
+     * @return the number of values restored
+     * @throws Exception
+     */
+    public long restore(List<File> files, List<String> contentIds) throws Exception {
+        TenantActivity.begin(tenantId);
+        try {
+            long startTime = System.currentTimeMillis();
+            GenericValue tenant = delegator.findOne("Tenant", UtilMisc.toMap("tenantId", tenantId), false);
+            if (UtilValidate.isEmpty(tenant)) {
+                throw new GenericEntityException("Could not find tenant: " + tenantId);
+            }
+
+            // no request or service may use the databases while they are replaced, the routes of a disabled tenant are not used
+            String disabled = tenant.getString("disabled");
+            tenant.set("disabled", "Y");
+            tenant.store();
+            TenantRoutingTable.refreshTenant(tenantId, delegator);
+            TenantRuntime.deactivateTenant(tenantId, delegator);
+
+            Map<String, TenantJdbcConnectionHandler> connectionHandlers = FastMap.newInstance();
+            List<GenericValue> tenantDataSources = delegator.findByAnd("TenantDataSource", UtilMisc.toMap("tenantId", tenantId), null, false);
+            for (GenericValue tenantDataSource : tenantDataSources) {
+                String entityGroupName = tenantDataSource.getString("entityGroupName");
+                connectionHandlers.put(entityGroupName, TenantConnectionFactory.getTenantJdbcConnectionHandler(tenantId, entityGroupName, delegator));
+            }
+            if (connectionHandlers.isEmpty()) {
+                throw new GenericEntityException("Tenant [" + tenantId + "] does not have any data sources");
+            }
+
+            // delete and create the databases again, the tenant delegator is removed with them
+            for (Map.Entry<String, TenantJdbcConnectionHandler> connectionHandler : connectionHandlers.entrySet()) {
+                Debug.logInfo("Recreating database of tenant [" + tenantId + "] with entity group name " + connectionHandler.getKey(), module);
+                connectionHandler.getValue().deleteDatabase();
+                connectionHandler.getValue().createDatabase();
+            }
+            tenantDelegator = DelegatorFactory.getDelegator(delegator.getDelegatorBaseName() + "#" + tenantId);
+
+            // create the tables and drop the foreign keys, they are created again after loading
+            Map<String, DatabaseUtil> dbUtils = FastMap.newInstance();
+            List<String> foreignKeyErrors = FastList.newInstance();
+            Map<String, BlockingQueue<Connection>> groupConnections = FastMap.newInstance();
+            List<Connection> connections = FastList.newInstance();
+            ExecutorService executor = Executors.newFixedThreadPool(maxThreads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "tenant-restore-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            try {
+                for (String entityGroupName : connectionHandlers.keySet()) {
+                    GenericHelperInfo helperInfo = tenantDelegator.getGroupHelperInfo(entityGroupName);
+                    Map<String, ModelEntity> modelEntities = tenantDelegator.getModelEntityMapByGroup(entityGroupName);
+                    DatabaseUtil dbUtil = new DatabaseUtil(helperInfo);
+                    dbUtils.put(entityGroupName, dbUtil);
+                    dbUtil.checkDb(modelEntities, messages, true);
+                    for (ModelEntity modelEntity : modelEntities.values()) {
+                        if (!(modelEntity instanceof ModelViewEntity)) {
+                            dbUtil.deleteForeignKeys(modelEntity, modelEntities, messages);
+                        }
+                    }
+
+                    BlockingQueue<Connection> bulkConnections = new LinkedBlockingQueue<Connection>();
+                    for (int i = 0; i < maxThreads; i++) {
+                        Connection connection = connectionHandlers.get(entityGroupName).getBulkConnection();
+                        connections.add(connection);
+                        connection.setAutoCommit(false);
+                        bulkConnections.add(connection);
+                    }
+                    groupConnections.put(entityGroupName, bulkConnections);
+                }
+
+                // the full backup, then the changes of every backup of the chain
+                String previousHighWaterStamp = null;
+                for (int i = 0; i < files.size(); i++) {
+                    ZipFile zipFile = new ZipFile(files.get(i));
+                    try {
+                        manifest = getManifest(zipFile);
+                        incremental = i > 0;
+                        String backupType = manifest.getProperty("backupType", TenantBackupWriter.TYPE_FULL);
+                        if (!incremental && !TenantBackupWriter.TYPE_FULL.equals(backupType)) {
+                            throw new GenericEntityException("The chain of backup " + contentIds.get(i) + " does not begin with a full backup");
+                        }
+                        if (incremental && TenantBackupWriter.TYPE_FULL.equals(backupType)) {
+                            throw new GenericEntityException("Backup " + contentIds.get(i) + " is a full backup in the middle of a chain");
+                        }
+                        if (incremental && !manifest.getProperty("baseHighWaterStamp", "").equals(previousHighWaterStamp)) {
+                            throw new GenericEntityException("Backup " + contentIds.get(i) + " is not based on backup " + contentIds.get(i - 1));
+                        }
+                        previousHighWaterStamp = manifest.getProperty("highWaterStamp");
+                        Debug.logInfo("Restoring " + backupType + " backup " + files.get(i) + " of tenant [" + tenantId + "]", module);
+                        restoreBackup(zipFile, contentIds.get(i), connectionHandlers.keySet(), groupConnections, executor);
+                    } finally {
+                        zipFile.close();
+                    }
+                }
+            } finally {
+                aborted = true;
+                executor.shutdownNow();
+                TenantJdbcConnectionHandler.closeConnections(connections);
+                Debug.logInfo("Creating foreign keys of tenant [" + tenantId + "] to check the restored values", module);
+                for (Map.Entry<String, DatabaseUtil> dbUtil : dbUtils.entrySet()) {
+                    Map<String, ModelEntity> modelEntities = tenantDelegator.getModelEntityMapByGroup(dbUtil.getKey());
+                    for (ModelEntity modelEntity : modelEntities.values()) {
+                        if (!(modelEntity instanceof ModelViewEntity)) {
+                            dbUtil.getValue().createForeignKeys(modelEntity, modelEntities, foreignKeyErrors);
+                        }
+                    }
+                    dbUtil.getValue().close();
+                }
+                tenantDelegator.clearAllCaches();
+                TenantRuntime.removeTenantRuntime(tenantId);
+            }
+            if (!foreignKeyErrors.isEmpty()) {
+                messages.addAll(foreignKeyErrors);
+                throw new GenericEntityException("Could not create the foreign keys of tenant [" + tenantId + "], the restored values are not consistent: "
+                        + foreignKeyErrors.get(0));
+            }
+
+            // the tenant is enabled again as it was before
+            tenant.set("disabled", disabled);
+            tenant.store();
+            TenantRoutingTable.refreshTenant(tenantId, delegator);
+            Debug.logInfo("Restored " + numberLoaded.get() + " values of tenant [" + tenantId + "] from " + files.size() + " backups in "
+                    + (System.currentTimeMillis() - startTime) + " ms", module);
+            return numberLoaded.get();
+        } finally {
+            TenantActivity.end(tenantId);
+        }
+    }
+
+    /**
+     * load the entities of a backup in levels of their dependencies
+     * @param zipFile
+     * @param contentId
+     * @param groupNames the entity groups of the tenant data sources
+     * @param groupConnections
+     * @param executor
+     * @throws Exception
+     */
+    protected void restoreBackup(ZipFile zipFile, String contentId, Set<String> groupNames, Map<String, BlockingQueue<Connection>> groupConnections
+            , ExecutorService executor) throws Exception {
+        Map<String, String> entityGroupNames = FastMap.newInstance();
+        for (String entityName : getEntityNames(zipFile)) {
+            ModelEntity modelEntity = tenantDelegator.getModelReader().getModelEntityNoCheck(entityName);
+            String entityGroupName = modelEntity == null ? null : tenantDelegator.getEntityGroupName(entityName);
+            if (modelEntity == null || modelEntity instanceof ModelViewEntity || !groupNames.contains(entityGroupName)) {
+                messages.add("Skipped entity " + entityName + " which is not in a data source of tenant " + tenantId);
+                continue;
+            }
+            entityGroupNames.put(entityName, entityGroupName);
+        }
+        Map<String, Integer> levels = getLevels(entityGroupNames.keySet());
+        initProgress(levels, contentId);
+
+        // load the levels in order, the entities of a level at the same time
+        TreeMap<Integer, List<String>> levelEntityNames = new TreeMap<Integer, List<String>>();
+        for (Map.Entry<String, Integer> level : levels.entrySet()) {
+            List<String> levelNames = levelEntityNames.get(level.getValue());
+            if (levelNames == null) {
+                levelNames = FastList.newInstance();
+                levelEntityNames.put(level.getValue(), levelNames);
+            }
+            levelNames.add(level.getKey());
+        }
+        List<String> failures = FastList.newInstance();
+        for (Map.Entry<Integer, List<String>> levelNames : levelEntityNames.entrySet()) {
+            Map<String, Future<?>> futures = FastMap.newInstance();
+            for (String entityName : levelNames.getValue()) {
+                futures.put(entityName, executor.submit(new RestoreTask(zipFile, entityName, groupConnections.get(entityGroupNames.get(entityName)))));
+            }
+            for (Map.Entry<String, Future<?>> future : futures.entrySet()) {
+                try {
+                    future.getValue().get();
+                } catch (Exception e) {
+                    aborted = true;
+                    Throwable cause = e.getCause() == null ? e : e.getCause();
+                    failures.add(future.getKey() + " : " + cause.getMessage());
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw new GenericEntityException("Could not restore " + failures.size() + " entities of tenant " + tenantId + " : " + StringUtil.join(failures, ", "));
+            }
+        }
+    }
+
+    /**
+     * get the messages of the database checks and the skipped entities
+     * @return
+     */
+    public List<String> getMessages() {
+        return messages;
+    }
+
+    /**
+     * get the entities of the manifest with the entities which only have a count, or of the entries of a backup without manifest
+     * @param zipFile
+     * @return
+     */
+    protected List<String> getEntityNames(ZipFile zipFile) {
+        List<String> entityNames = FastList.newInstance();
+        String entities = manifest.getProperty("entities");
+        if (entities != null) {
+            for (String entityName : StringUtil.split(entities, ",")) {
+                entityNames.add(entityName.trim());
+            }
+            for (String propertyName : new TreeSet<String>(manifest.stringPropertyNames())) {
+                if (propertyName.endsWith(".count")) {
+                    String entityName = propertyName.substring(0, propertyName.length() - 6);
+                    if (!entityNames.contains(entityName)) {
+                        entityNames.add(entityName);
+                    }
+                }
+            }
+            return entityNames;
+        }
+        Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry zipEntry = zipEntries.nextElement();
+            String name = zipEntry.getName();
+            if (!zipEntry.isDirectory() && name.endsWith(".xml") && name.indexOf('/') < 0) {
+                entityNames.add(name.substring(0, name.length() - 4));
+            }
+        }
+        return entityNames;
+    }
+
+    /**
+     * get the level of every entity, an entity has a higher level than the entities of its one relations,
+     * a relation which closes a cycle is ignored
+     * @param entityNames
+     * @return the levels by entity name, in order of the entity names
+     */
+    protected Map<String, Integer> getLevels(Set<String> entityNames) {
+        Map<String, Integer> levels = new TreeMap<String, Integer>();
+        Set<String> visiting = FastSet.newInstance();
+        for (String entityName : new TreeSet<String>(entityNames)) {
+            getLevel(entityName, entityNames, levels, visiting);
+        }
+        return levels;
+    }
+
+    private int getLevel(String entityName, Set<String> entityNames, Map<String, Integer> levels, Set<String> visiting) {
+        Integer level = levels.get(entityName);
+        if (level != null) {
+            return level.intValue();
+        }
+        visiting.add(entityName);
+        int maxLevel = -1;
+        ModelEntity modelEntity = tenantDelegator.getModelEntity(entityName);
+        Set<String> relEntityNames = new TreeSet<String>();
+        for (ModelRelation modelRelation : modelEntity.getRelationsOneList()) {
+            relEntityNames.add(modelRelation.getRelEntityName());
+        }
+        for (String relEntityName : relEntityNames) {
+            if (!relEntityName.equals(entityName) && entityNames.contains(relEntityName) && !visiting.contains(relEntityName)) {
+                maxLevel = Math.max(maxLevel, getLevel(relEntityName, entityNames, levels, visiting));
+            }
+        }
+        visiting.remove(entityName);
+        levels.put(entityName, Integer.valueOf(maxLevel + 1));
+        return maxLevel + 1;
+    }
+
+    /**
+     * replace the progress of the tenant with a pending progress of every entity
+     * @param levels
+     * @param contentId
+     * @throws GenericEntityException
+     */
+    protected void initProgress(Map<String, Integer> levels, String contentId) throws GenericEntityException {
+        delegator.removeByAnd("TenantRestoreProgress", UtilMisc.toMap("tenantId", tenantId));
+        List<GenericValue> progresses = FastList.newInstance();
+        for (Map.Entry<String, Integer> level : levels.entrySet()) {
+            GenericValue progress = delegator.makeValue("TenantRestoreProgress", UtilMisc.toMap("tenantId", tenantId, "entityName", level.getKey()
+                    , "contentId", contentId, "sequenceNum", Long.valueOf(level.getValue().longValue()), "statusId", STATUS_PENDING, "loadedCount", Long.valueOf(0)));
+            String rows = manifest.getProperty(level.getKey() + ".rows");
+            if (rows != null) {
+                progress.set("expectedCount", Long.valueOf(rows));
+            }
+            progresses.add(progress);
+        }
+        delegator.storeAll(progresses);
+    }
+
+    protected void storeProgress(String entityName, Map<String, ? extends Object> fields) {
+        try {
+            delegator.storeByCondition("TenantRestoreProgress", fields, EntityCondition.makeCondition(UtilMisc.toMap("tenantId", tenantId, "entityName", entityName)));
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, "Could not store restore progress of entity " + entityName + " of tenant " + tenantId, module);
+        }
+    }
+
+    /**
+     * stream the values of an entity out of its zip entry into the database, the entry of an incremental
+     * backup replaces the values of the entity or only has the values changed and removed since its base.
+     * An entity without entry has no values, or no changes if it is not written in full.
+     * @param zipFile
+     * @param entityName
+     * @param connection
+     * @throws Exception
+     */
+    protected void restoreEntity(ZipFile zipFile, String entityName, Connection connection) throws Exception {
+        ModelEntity modelEntity = tenantDelegator.getModelEntity(entityName);
+        String helperName = tenantDelegator.getEntityHelperName(modelEntity);
+        String tableName = modelEntity.getTableName(helperName);
+        TenantJdbcConnectionHandler connectionHandler = TenantConnectionFactory.getTenantJdbcConnectionHandler(tenantId, tenantDelegator.getEntityGroupName(entityName), delegator);
+        boolean bulkEntity = !TenantBulkLoader.hasBinaryFields(modelEntity, tenantDelegator);
+        boolean changesOnly = TenantBackupWriter.MODE_CHANGES.equals(manifest.getProperty(entityName + ".mode"));
+        List<ModelField> modelFields = modelEntity.getFieldsUnmodifiable();
+        List<String> columnNames = FastList.newInstance();
+        for (ModelField modelField : modelFields) {
+            columnNames.add(modelField.getColName());
+        }
+        boolean hasEntry = manifest.getProperty(entityName + ".chunks") != null || zipFile.getEntry(entityName + ".xml") != null;
+        String mode = manifest.getProperty(entityName + ".mode");
+        if (incremental && (TenantBackupWriter.MODE_FULL.equals(mode) || (mode == null && hasEntry))) {
+            // the entity is replaced, the delete is committed at once because values with binary fields
+            // are stored by the delegator over another connection
+            Statement statement = connection.createStatement();
+            try {
+                statement.executeUpdate("DELETE FROM " + tableName);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                statement.close();
+            }
+        }
+
+        MessageDigest digest = MessageDigest.getInstance(manifest.getProperty("checksumAlgorithm", TenantBackupWriter.CHECKSUM_ALGORITHM));
+        long loaded = 0;
+        long removed = 0;
+        if (hasEntry) {
+            DigestInputStream entryIn = new DigestInputStream(openEntry(zipFile, entityName), digest);
+            XMLStreamReader reader = null;
+            try {
+                reader = XMLInputFactory.newInstance().createXMLStreamReader(entryIn, "UTF-8");
+                reader.nextTag();
+                List<GenericValue> values = FastList.newInstance();
+                while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                    if (aborted) {
+                        throw new IOException("The restore of tenant " + tenantId + " has been aborted");
+                    }
+                    if ("delete".equals(reader.getLocalName())) {
+                        // the primary keys removed since the base
+                        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                            values.add(TenantBulkLoader.readValue(reader, tenantDelegator));
+                            if (values.size() >= batchSize) {
+                                removed += removeValues(entityName, values);
+                            }
+                        }
+                        removed += removeValues(entityName, values);
+                        continue;
+                    }
+                    if (!entityName.equals(reader.getLocalName())) {
+                        throw new IOException("Found a value of " + reader.getLocalName() + " in the entry of entity " + entityName);
+                    }
+                    values.add(TenantBulkLoader.readValue(reader, tenantDelegator));
+                    if (values.size() >= batchSize) {
+                        loaded += insertValues(values, changesOnly, bulkEntity, connectionHandler, connection, tableName, columnNames, modelFields);
+                        storeProgress(entityName, UtilMisc.toMap("loadedCount", Long.valueOf(loaded)));
+                    }
+                }
+                loaded += insertValues(values, changesOnly, bulkEntity, connectionHandler, connection, tableName, columnNames, modelFields);
+                connection.commit();
+
+                // digest the rest of the entry
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (entryIn.read(buffer) != -1) {
+                    continue;
+                }
+            } finally {
+                if (reader != null) {
+                    reader.close();
+                }
+                entryIn.close();
+            }
+        }
+        numberLoaded.addAndGet(loaded);
+
+        String expectedRows = manifest.getProperty(entityName + ".rows");
+        if (expectedRows != null && Long.parseLong(expectedRows) != loaded) {
+            throw new IOException("Restored " + loaded + " values of entity " + entityName + " but the backup has " + expectedRows);
+        }
+        String expectedRemoved = manifest.getProperty(entityName + ".removed");
+        if (expectedRemoved != null && Long.parseLong(expectedRemoved) != removed) {
+            throw new IOException("Removed " + removed + " values of entity " + entityName + " but the backup has " + expectedRemoved);
+        }
+        String expectedChecksum = manifest.getProperty(entityName + ".checksum");
+        if (hasEntry && expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(StringUtil.toHexString(digest.digest()))) {
+            throw new IOException("The checksum of entity " + entityName + " does not match the manifest of the backup");
+        }
+        String expectedCount = manifest.getProperty(entityName + ".count");
+        if (expectedCount != null && incremental) {
+            long count = countValues(tableName, connection);
+            if (Long.parseLong(expectedCount) != count) {
+                throw new IOException("Entity " + entityName + " has " + count + " values after the changes but the backup has " + expectedCount);
+            }
+        }
+        storeProgress(entityName, UtilMisc.toMap("statusId", STATUS_COMPLETED, "loadedCount", Long.valueOf(loaded), "endDate", UtilDateTime.nowTimestamp()));
+    }
+
+    /**
+     * open the entry of an entity in the zip file or in the chunks of the store
+     * @param zipFile
+     * @param entityName
+     * @return
+     * @throws IOException
+     */
+    protected InputStream openEntry(ZipFile zipFile, String entityName) throws IOException {
+        String chunks = manifest.getProperty(entityName + ".chunks");
+        if (chunks != null) {
+            if (backupStore == null) {
+                throw new IOException("The entry of entity " + entityName + " is in a backup store which has not been set");
+            }
+            return backupStore.open(StringUtil.split(chunks, ","));
+        }
+        ZipEntry zipEntry = zipFile.getEntry(entityName + ".xml");
+        if (zipEntry == null) {
+            throw new IOException("Could not find entry of entity " + entityName);
+        }
+        return zipFile.getInputStream(zipEntry);
+    }
+
+    private long insertValues(List<GenericValue> values, boolean changesOnly, boolean bulkEntity, TenantJdbcConnectionHandler connectionHandler, Connection connection
+            , String tableName, List<String> columnNames, List<ModelField> modelFields) throws GenericEntityException, SQLException {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        if (bulkEntity) {
+            if (changesOnly) {
+                // the changed values replace the values of the base
+                tenantDelegator.removeByCondition(values.get(0).getEntityName(), getPrimaryKeyCondition(values));
+            }
+            List<Object[]> rows = FastList.newInstance();
+            for (GenericValue value : values) {
+                Object[] row = new Object[modelFields.size()];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = value.get(modelFields.get(i).getName());
+                }
+                rows.add(row);
+            }
+            try {
+                connectionHandler.insertRows(connection, tableName, columnNames, rows);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            }
+        } else {
+            // binary fields go through the delegator
+            tenantDelegator.storeAll(values);
+        }
+        long inserted = values.size();
+        values.clear();
+        return inserted;
+    }
+
+    private long removeValues(String entityName, List<GenericValue> pks) throws GenericEntityException {
+        if (pks.isEmpty()) {
+            return 0;
+        }
+        tenantDelegator.removeByCondition(entityName, getPrimaryKeyCondition(pks));
+        long removed = pks.size();
+        pks.clear();
+        return removed;
+    }
+
+    private static EntityCondition getPrimaryKeyCondition(List<GenericValue> values) {
+        List<EntityCondition> conds = FastList.newInstance();
+        for (GenericValue value : values) {
+            conds.add(EntityCondition.makeCondition(value.getPrimaryKey()));
+        }
+        return EntityCondition.makeCondition(conds, EntityOperator.OR);
+    }
+
+    private static long countValues(String tableName, Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + tableName);
+            resultSet.next();
+            long count = resultSet.getLong(1);
+            resultSet.close();
+            return count;
+        } finally {
+            statement.close();
+        }
+    }
+
+    private class RestoreTask implements Runnable {
+        private final ZipFile zipFile;
+        private final String entityName;
+        private final BlockingQueue<Connection> connections;
+
+        private RestoreTask(ZipFile zipFile, String entityName, BlockingQueue<Connection> connections) {
+            this.zipFile = zipFile;
+            this.entityName = entityName;
+            this.connections = connections;
+        }
+
+        public void run() {
+            if (aborted) {
+                return;
+            }
+            storeProgress(entityName, UtilMisc.toMap("statusId", STATUS_RUNNING, "startDate", UtilDateTime.nowTimestamp()));
+            try {
+                Connection connection = connections.take();
+                try {
+                    restoreEntity(zipFile, entityName, connection);
+                } finally {
+                    connections.put(connection);
+                }
+            } catch (Exception e) {
+                Debug.logError(e, "Could not restore entity " + entityName + " of tenant " + tenantId, module);
+                storeProgress(entityName, UtilMisc.toMap("statusId", STATUS_FAILED, "endDate", UtilDateTime.nowTimestamp(), "errorMessage", e.getMessage()));
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+    }
+}
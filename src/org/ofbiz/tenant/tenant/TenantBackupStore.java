@@ -0,0 +1,416 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.StringUtil;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityUtilProperties;
+
+/**
+ * Tenant Backup Store
+ * <p>
+ * Keeps the chunks of the backup entries once in a directory of the backup.outpath, as deflated files named
+ * by the SHA-256 hash of their bytes, so the same seed and type data of many tenants and of many days is
+ * stored and written once. The number of backups referring to a chunk is kept in TenantBackupChunk, and a
+ * chunk is removed when its last backup is deleted.
+ * <p>
+ * The reference count is changed by compare and set, so several nodes can share the store. A chunk being
+ * removed has a reference count of -1 and the removalId of its remover until its file is gone, a backup which
+ * needs it meanwhile waits and writes it again. A removal which has not finished within 30 seconds, e.g. of a
+ * stopped node, is taken over by the backup which waits for it and writes the chunk file again. The remover
+ * renews its removedDate right before it moves the file away, and only deletes the moved file while it still
+ * holds its removalId, otherwise it moves the file back. A backup which stops before it is recorded keeps its
+ * references, the chunks are not lost.
+ */
+public class TenantBackupStore {
+
+    public final static String module = TenantBackupStore.class.getName();
+
+    public final static String HASH_ALGORITHM = "SHA-256";
+
+    private final static int MAX_ATTEMPTS = 600;
+    private final static long RETRY_INTERVAL = 100;
+    private final static long REMOVE_TIMEOUT = 30000;
+
+    protected File chunkDir;
+    protected Delegator delegator;
+    protected int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Constructor
+     * @param chunkDir the directory of the chunk files
+     * @param delegator the base delegator
+     * @param deflateLevel the level of the chunk files
+     */
+    public TenantBackupStore(File chunkDir, Delegator delegator, int deflateLevel) {
+        this.chunkDir = chunkDir;
+        this.delegator = delegator;
+        this.deflateLevel = deflateLevel;
+    }
+
+    /**
+     * get the store in the chunks directory of the backup.outpath
+     * @param delegator the base delegator
+     * @return
+     */
+    public static TenantBackupStore getBackupStore(Delegator delegator) {
+        String outpath = EntityUtilProperties.getPropertyValue("tenant", "backup.outpath", delegator);
+        int deflateLevel = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "backup.deflateLevel", "6", delegator));
+        return new TenantBackupStore(new File(outpath, "chunks"), delegator, deflateLevel);
+    }
+
+    /**
+     * get the file of a chunk
+     * @param hash
+     * @return
+     */
+    public File getChunkFile(String hash) {
+        return new File(new File(chunkDir, hash.substring(0, 2)), hash);
+    }
+
+    /**
+     * add a reference to a chunk, the chunk file is only written if it is not in the store yet
+     * @param data
+     * @param length
+     * @return the hash of the chunk
+     * @throws GenericEntityException
+     * @throws IOException
+     */
+    public String put(byte[] data, int length) throws GenericEntityException, IOException {
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update(data, 0, length);
+        String hash = StringUtil.toHexString(digest.digest());
+
+        // the reference keeps the chunk from being removed, then it is written if it is missing or was being removed
+        boolean tookOver = acquire(hash, length);
+        File chunkFile = getChunkFile(hash);
+        if (tookOver || !chunkFile.exists()) {
+            writeChunk(chunkFile, data, length);
+        }
+        return hash;
+    }
+
+    /**
+     * open the bytes of chunks in order
+     * @param hashes
+     * @return
+     */
+    public InputStream open(final List<String> hashes) {
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            private final Iterator<String> iterator = hashes.iterator();
+
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+
+            public InputStream nextElement() {
+                String hash = iterator.next();
+                try {
+                    return new InflaterInputStream(new BufferedInputStream(new FileInputStream(getChunkFile(hash))));
+                } catch (IOException e) {
+                    // a missing chunk fails the checksum of its entry
+                    Debug.logError(e, "Could not open backup chunk " + hash, module);
+                    return new EmptyInputStream();
+                }
+            }
+        });
+    }
+
+    /**
+     * remove a reference of every chunk, a chunk without references is removed
+     * @param hashes a hash for every reference
+     * @return the number of chunks removed
+     * @throws GenericEntityException
+     */
+    public int release(Collection<String> hashes) throws GenericEntityException {
+        int numberRemoved = 0;
+        for (String hash : hashes) {
+            if (release(hash)) {
+                numberRemoved++;
+            }
+        }
+        return numberRemoved;
+    }
+
+    /**
+     * remove the references of a backup to its chunks once, the released references are recorded with
+     * the reference count so the release of a backup can be run again after it has stopped
+     * @param contentId the backup
+     * @param hashes a hash for every reference
+     * @return the number of chunks removed
+     * @throws GenericEntityException
+     */
+    public int release(String contentId, Collection<String> hashes) throws GenericEntityException {
+        Map<String, Long> referenceCounts = FastMap.newInstance();
+        for (String hash : hashes) {
+            Long referenceCount = referenceCounts.get(hash);
+            referenceCounts.put(hash, Long.valueOf(referenceCount == null ? 1 : referenceCount.longValue() + 1));
+        }
+        int numberRemoved = 0;
+        for (Map.Entry<String, Long> entry : referenceCounts.entrySet()) {
+            String hash = entry.getKey();
+            GenericValue chunkRelease = delegator.findOne("TenantBackupChunkRelease", UtilMisc.toMap("contentId", contentId, "chunkHash", hash), false);
+            long releasedCount = chunkRelease == null ? 0 : chunkRelease.getLong("releasedCount").longValue();
+            if (releasedCount >= entry.getValue().longValue()) {
+                // released before, the removal of its last reference may have stopped
+                if (removeStale(hash)) {
+                    numberRemoved++;
+                }
+                continue;
+            }
+            for (releasedCount++; releasedCount <= entry.getValue().longValue(); releasedCount++) {
+                String removalId = null;
+                boolean beganTransaction = TransactionUtil.begin();
+                try {
+                    removalId = decrement(hash);
+                    delegator.createOrStore(delegator.makeValue("TenantBackupChunkRelease", UtilMisc.toMap("contentId", contentId
+                            , "chunkHash", hash, "releasedCount", Long.valueOf(releasedCount))));
+                    TransactionUtil.commit(beganTransaction);
+                } catch (GenericEntityException e) {
+                    TransactionUtil.rollback(beganTransaction, "Could not release backup chunk " + hash + " of backup " + contentId, e);
+                    throw e;
+                }
+                if (removalId != null && remove(hash, removalId)) {
+                    numberRemoved++;
+                }
+            }
+        }
+        delegator.removeByAnd("TenantBackupChunkRelease", UtilMisc.toMap("contentId", contentId));
+        return numberRemoved;
+    }
+
+    /**
+     * add a reference to a chunk
+     * @param hash
+     * @param length
+     * @return true if a stale removal of the chunk has been taken over, its file must be written again
+     * @throws GenericEntityException
+     */
+    protected boolean acquire(String hash, int length) throws GenericEntityException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            GenericValue chunk = delegator.findOne("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash), false);
+            if (chunk == null) {
+                try {
+                    delegator.create("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash, "refCount", Long.valueOf(1)
+                            , "chunkSize", Long.valueOf(length), "createdDate", UtilDateTime.nowTimestamp()));
+                    return false;
+                } catch (GenericEntityException e) {
+                    // created by another backup
+                    continue;
+                }
+            }
+            long refCount = chunk.getLong("refCount").longValue();
+            if (refCount < 0) {
+                // being removed, a removal which has not renewed its removedDate within the timeout has stopped
+                Timestamp removedDate = chunk.getTimestamp("removedDate");
+                String removalId = chunk.getString("removalId");
+                if ((removedDate == null || removedDate.getTime() < System.currentTimeMillis() - REMOVE_TIMEOUT)
+                        && delegator.storeByCondition("TenantBackupChunk", UtilMisc.toMap("refCount", Long.valueOf(1), "removedDate", null, "removalId", null)
+                                , EntityCondition.makeCondition(UtilMisc.toMap("chunkHash", hash, "refCount", Long.valueOf(-1), "removalId", removalId))) == 1) {
+                    Debug.logWarning("Took over backup chunk " + hash + " which has been removed since " + removedDate, module);
+                    return true;
+                }
+                pause();
+                continue;
+            }
+            if (compareAndSet(hash, refCount, refCount + 1)) {
+                return false;
+            }
+        }
+        throw new GenericEntityException("Could not add a reference to backup chunk " + hash);
+    }
+
+    protected boolean release(String hash) throws GenericEntityException {
+        String removalId = decrement(hash);
+        return removalId != null && remove(hash, removalId);
+    }
+
+    /**
+     * remove a reference of a chunk, the last reference marks the chunk as being removed
+     * @param hash
+     * @return the removal ID if the chunk is to be removed
+     * @throws GenericEntityException
+     */
+    protected String decrement(String hash) throws GenericEntityException {
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            GenericValue chunk = delegator.findOne("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash), false);
+            if (chunk == null || chunk.getLong("refCount").longValue() <= 0) {
+                Debug.logWarning("Backup chunk " + hash + " does not have any references", module);
+                return null;
+            }
+            long refCount = chunk.getLong("refCount").longValue();
+            if (refCount > 1) {
+                if (compareAndSet(hash, refCount, refCount - 1)) {
+                    return null;
+                }
+                continue;
+            }
+            String removalId = UUID.randomUUID().toString();
+            if (delegator.storeByCondition("TenantBackupChunk", UtilMisc.toMap("refCount", Long.valueOf(-1), "removedDate", UtilDateTime.nowTimestamp(), "removalId", removalId)
+                    , EntityCondition.makeCondition(UtilMisc.toMap("chunkHash", hash, "refCount", Long.valueOf(1)))) == 1) {
+                return removalId;
+            }
+        }
+        throw new GenericEntityException("Could not remove a reference of backup chunk " + hash);
+    }
+
+    /**
+     * take over a removal of a chunk which has not finished within the timeout
+     * @param hash
+     * @return true if the chunk has been removed
+     * @throws GenericEntityException
+     */
+    protected boolean removeStale(String hash) throws GenericEntityException {
+        GenericValue chunk = delegator.findOne("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash), false);
+        if (chunk == null || chunk.getLong("refCount").longValue() >= 0) {
+            return false;
+        }
+        Timestamp removedDate = chunk.getTimestamp("removedDate");
+        if (removedDate != null && removedDate.getTime() >= System.currentTimeMillis() - REMOVE_TIMEOUT) {
+            return false;
+        }
+        String removalId = UUID.randomUUID().toString();
+        if (delegator.storeByCondition("TenantBackupChunk", UtilMisc.toMap("removedDate", UtilDateTime.nowTimestamp(), "removalId", removalId)
+                , EntityCondition.makeCondition(UtilMisc.toMap("chunkHash", hash, "refCount", Long.valueOf(-1), "removalId", chunk.getString("removalId")))) != 1) {
+            return false;
+        }
+        return remove(hash, removalId);
+    }
+
+    /**
+     * remove a chunk which has been marked as being removed with a removal ID
+     * @param hash
+     * @param removalId
+     * @return true if the chunk has been removed, false if its removal has been taken over
+     * @throws GenericEntityException
+     */
+    protected boolean remove(String hash, String removalId) throws GenericEntityException {
+        EntityCondition removalCondition = EntityCondition.makeCondition(UtilMisc.toMap("chunkHash", hash, "removalId", removalId));
+
+        // renew the removal right before the file is moved, it can not be taken over within the timeout
+        if (delegator.storeByCondition("TenantBackupChunk", UtilMisc.toMap("removedDate", UtilDateTime.nowTimestamp()), removalCondition) != 1) {
+            Debug.logWarning("The removal of backup chunk " + hash + " has been taken over, the chunk is kept", module);
+            return false;
+        }
+        File chunkFile = getChunkFile(hash);
+        File removedFile = new File(chunkFile.getParentFile(), chunkFile.getName() + "." + removalId + ".removed");
+        if (chunkFile.exists() && !chunkFile.renameTo(removedFile)) {
+            // keep the chunk, it is removed by the next release
+            delegator.storeByCondition("TenantBackupChunk", UtilMisc.toMap("refCount", Long.valueOf(1), "removedDate", null, "removalId", null), removalCondition);
+            throw new GenericEntityException("Could not delete backup chunk " + chunkFile);
+        }
+
+        // the moved file is only deleted if the removal is still ours, a backup which took it over writes the chunk again
+        if (delegator.removeByCondition("TenantBackupChunk", removalCondition) != 1) {
+            if (removedFile.exists() && !chunkFile.exists() && removedFile.renameTo(chunkFile)) {
+                Debug.logWarning("The removal of backup chunk " + hash + " has been taken over, the chunk file has been moved back", module);
+            } else {
+                removedFile.delete();
+            }
+            return false;
+        }
+        removedFile.delete();
+        return true;
+    }
+
+    private boolean compareAndSet(String hash, long expected, long refCount) throws GenericEntityException {
+        return delegator.storeByCondition("TenantBackupChunk", UtilMisc.toMap("refCount", Long.valueOf(refCount))
+                , EntityCondition.makeCondition(UtilMisc.toMap("chunkHash", hash, "refCount", Long.valueOf(expected)))) == 1;
+    }
+
+    private void writeChunk(File chunkFile, byte[] data, int length) throws IOException {
+        File dir = chunkFile.getParentFile();
+        if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        // written to a temporary file which is renamed, another backup may write the same chunk
+        File tempFile = File.createTempFile(chunkFile.getName(), ".tmp", dir);
+        Deflater deflater = new Deflater(deflateLevel);
+        boolean written = false;
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            try {
+                DeflaterOutputStream deflaterOut = new DeflaterOutputStream(fileOut, deflater, 65536);
+                deflaterOut.write(data, 0, length);
+                deflaterOut.finish();
+                fileOut.getChannel().force(true);
+            } finally {
+                fileOut.close();
+            }
+            written = tempFile.renameTo(chunkFile) || chunkFile.exists();
+        } finally {
+            deflater.end();
+            if (!written || tempFile.exists()) {
+                tempFile.delete();
+            }
+        }
+        if (!written) {
+            throw new IOException("Could not write backup chunk " + chunkFile);
+        }
+    }
+
+    private static void pause() throws GenericEntityException {
+        try {
+            Thread.sleep(RETRY_INTERVAL);
+        } catch (InterruptedException e) {
+            throw new GenericEntityException("Interrupted while waiting for a backup chunk");
+        }
+    }
+
+    private static class EmptyInputStream extends InputStream {
+        @Override
+        public int read() {
+            return -1;
+        }
+    }
+}
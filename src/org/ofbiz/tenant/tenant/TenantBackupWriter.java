@@ -0,0 +1,889 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.StringUtil;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericPK;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.jdbc.SqlJdbcUtil;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.model.ModelField;
+import org.ofbiz.entity.model.ModelFieldTypeReader;
+import org.ofbiz.entity.model.ModelViewEntity;
+import org.ofbiz.entity.serialize.XmlSerializer;
+import org.ofbiz.entity.tenant.TenantActivity;
+import org.ofbiz.tenant.jdbc.TenantConnectionFactory;
+import org.ofbiz.tenant.jdbc.TenantJdbcConnectionHandler;
+
+/**
+ * Tenant Backup Writer
+ * <p>
+ * Writes the values of every entity of the tenant data sources into its own entry of a zip file, in the
+ * same entity-engine-xml format as entityExportAll, without a temporary directory. The entities are read
+ * over several read only connections of every data source which see the same snapshot if the database
+ * supports it, see {@link TenantJdbcConnectionHandler#getSnapshotConnections(int)}. Every entity is
+ * serialized and deflated by a thread of the node backup pool, and the deflated chunks are written
+ * into the zip file in order of the entity names by the calling thread with {@link TenantZipWriter}.
+ * An entity waits while its chunks are not written yet, so the memory is bounded by the threads.
+ * <p>
+ * The number of values and the SHA-256 checksum of the uncompressed bytes of every entry are written to
+ * the manifest entry at the end. The zip file is written to a .part file which is renamed when it is complete.
+ * <p>
+ * An incremental or differential backup has a base backup, see {@link #setBase(String, Properties, long)}. Its
+ * entries only have the values whose lastUpdatedTxStamp is not older than the high water stamp of the base,
+ * and a delete element with the primary keys removed since then, which are read from the EntitySyncRemove
+ * journal of the tenant. The manifest keeps the number of values of every entity, and an entity whose number
+ * of values does not match its base with the changes, e.g. because of removes which are not in the journal,
+ * or which has no stamps, is written in full. An entity written in full is in the manifest even when it has
+ * no values, so it is emptied by the restore.
+ * <p>
+ * With a {@link TenantBackupStore} the entries are cut into chunks at positions chosen by a gear hash of their
+ * bytes, so the same values give the same chunks even when other values are added before them. The chunks are
+ * put into the store by the backup threads, and the zip file only has the manifest with the chunks of every entity.
+ */
+public class TenantBackupWriter {
+
+    public final static String module = TenantBackupWriter.class.getName();
+
+    public final static String MANIFEST_ENTRY_NAME = "manifest.properties";
+    public final static String CHECKSUM_ALGORITHM = "SHA-256";
+    public final static String TYPE_FULL = "FULL";
+    public final static String TYPE_INCREMENTAL = "INCREMENTAL";
+    public final static String TYPE_DIFFERENTIAL = "DIFFERENTIAL";
+    public final static String MODE_FULL = "full";
+    public final static String MODE_CHANGES = "changes";
+    public final static String REMOVE_JOURNAL_ENTITY_NAME = "EntitySyncRemove";
+    public final static String STORAGE_CHUNKS = "chunks";
+
+    private final static int CHUNK_SIZE = 65536;
+    private final static int FETCH_SIZE = 1000;
+    private final static byte[] END_OF_ENTRY = new byte[0];
+    private final static long[] GEAR = new long[256];
+    static {
+        // the chunk positions of every backup depend on the same table
+        Random random = new Random(0x74656e616e74L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private static ThreadPoolExecutor executor = null;
+
+    protected String tenantId;
+    protected Delegator delegator;
+    protected Delegator tenantDelegator;
+    protected int deflateLevel = Deflater.DEFAULT_COMPRESSION;
+    protected int bufferSize = 1048576;
+    protected int maxThreads = 4;
+    protected String backupType = TYPE_FULL;
+    protected Properties baseManifest = null;
+    protected Timestamp baseHighWaterStamp = null;
+    protected Timestamp changedSinceStamp = null;
+    protected TenantBackupStore backupStore = null;
+    protected int chunkSize = 65536;
+
+    private Timestamp highWaterStamp = null;
+    private final Map<String, List<Removal>> entityRemovals = FastMap.newInstance();
+    private final Map<String, Long> entityCounts = FastMap.newInstance();
+    private final Map<String, Long> entityRemoved = FastMap.newInstance();
+    private final Map<String, String> entityModes = FastMap.newInstance();
+    private final Map<String, List<String>> entityChunks = FastMap.newInstance();
+    private final List<String> acquiredHashes = Collections.synchronizedList(FastList.<String>newInstance());
+    private final List<String> entityNames = FastList.newInstance();
+    private final Map<String, Long> entityRows = FastMap.newInstance();
+    private final Map<String, String> entityChecksums = FastMap.newInstance();
+    private volatile boolean aborted = false;
+
+    /**
+     * Constructor
+     * @param tenantId
+     * @param delegator the base delegator
+     * @param deflateLevel the level of the zip entries, 0 stores them without compression
+     * @param bufferSize the size in bytes of the file buffer and of the deflated chunks waiting for every entity
+     * @param maxThreads the number of node backup threads when they are created, every data source gets as many connections as there are threads
+     */
+    public TenantBackupWriter(String tenantId, Delegator delegator, int deflateLevel, int bufferSize, int maxThreads) {
+        this.tenantId = tenantId;
+        this.delegator = delegator;
+        this.tenantDelegator = DelegatorFactory.getDelegator(delegator.getDelegatorBaseName() + "#" + tenantId);
+        this.deflateLevel = deflateLevel;
+        this.bufferSize = Math.max(bufferSize, CHUNK_SIZE);
+        this.maxThreads = Math.max(maxThreads, 1);
+    }
+
+    /**
+     * write only the changes since a base backup
+     * @param backupType {@link #TYPE_INCREMENTAL} or {@link #TYPE_DIFFERENTIAL}
+     * @param baseManifest the manifest of the base backup
+     * @param overlap in milliseconds, the changes of this time before the high water stamp of the base are written again
+     *  for transactions which were not committed when the base was written and for the clocks of other nodes
+     * @throws GenericEntityException if the base has no high water stamp
+     */
+    public void setBase(String backupType, Properties baseManifest, long overlap) throws GenericEntityException {
+        String baseHighWater = baseManifest.getProperty("highWaterStamp");
+        if (baseHighWater == null) {
+            throw new GenericEntityException("The base backup of tenant " + tenantId + " does not have a high water stamp");
+        }
+        this.backupType = backupType;
+        this.baseManifest = baseManifest;
+        this.baseHighWaterStamp = Timestamp.valueOf(baseHighWater);
+        this.changedSinceStamp = new Timestamp(baseHighWaterStamp.getTime() - overlap);
+    }
+
+    /**
+     * put the entries into a backup store instead of the zip file
+     * @param backupStore
+     * @param chunkSize the average size in bytes of the chunks, a power of 2
+     */
+    public void setBackupStore(TenantBackupStore backupStore, int chunkSize) {
+        this.backupStore = backupStore;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * write all entities of the tenant data sources into a zip file
+     * @param outFile
+     * @return the number of values written
+     * @throws GenericEntityException
+     * @throws IOException
+     * @throws SQLException
+     */
+    public long write(File outFile) throws GenericEntityException, IOException, SQLException {
+        TenantActivity.begin(tenantId);
+        try {
+            long startTime = System.currentTimeMillis();
+
+            // the entities of every data source, in order of their names
+            Map<String, BlockingQueue<Connection>> groupConnections = FastMap.newInstance();
+            List<Connection> connections = FastList.newInstance();
+            TreeMap<String, String> entityGroupNames = new TreeMap<String, String>();
+            File partFile = new File(outFile.getParentFile(), outFile.getName() + ".part");
+            long numberWritten = 0;
+            boolean completed = false;
+            try {
+                // a data source has a connection for every thread, so a started entity never waits for a connection
+                // held by a later entity which waits for its turn to be written
+                ThreadPoolExecutor backupExecutor = getExecutor(maxThreads);
+                int threads = backupExecutor.getMaximumPoolSize();
+
+                // the values changed from this stamp on are written by the next incremental backup
+                highWaterStamp = UtilDateTime.nowTimestamp();
+                List<GenericValue> tenantDataSources = delegator.findByAnd("TenantDataSource", UtilMisc.toMap("tenantId", tenantId), null, false);
+                for (GenericValue tenantDataSource : tenantDataSources) {
+                    String entityGroupName = tenantDataSource.getString("entityGroupName");
+                    TenantJdbcConnectionHandler connectionHandler = TenantConnectionFactory.getTenantJdbcConnectionHandler(tenantId, entityGroupName, delegator);
+                    if (!connectionHandler.isSnapshotSupported()) {
+                        Debug.logWarning("The connections of tenant [" + tenantId + "] entity group " + entityGroupName
+                                + " do not see the same snapshot, the entities are read at different times", module);
+                    }
+                    List<Connection> snapshotConnections = connectionHandler.getSnapshotConnections(threads);
+                    connections.addAll(snapshotConnections);
+                    groupConnections.put(entityGroupName, new LinkedBlockingQueue<Connection>(snapshotConnections));
+                    for (ModelEntity modelEntity : tenantDelegator.getModelEntityMapByGroup(entityGroupName).values()) {
+                        if (!(modelEntity instanceof ModelViewEntity)) {
+                            entityGroupNames.put(modelEntity.getEntityName(), entityGroupName);
+                        }
+                    }
+                }
+
+                // the removes since the base, before the entities are read
+                String journalGroupName = entityGroupNames.get(REMOVE_JOURNAL_ENTITY_NAME);
+                if (baseManifest != null && journalGroupName != null) {
+                    BlockingQueue<Connection> journalConnections = groupConnections.get(journalGroupName);
+                    Connection connection = journalConnections.take();
+                    try {
+                        readRemovals(connection);
+                    } finally {
+                        journalConnections.put(connection);
+                    }
+                }
+
+                // entities are submitted in order, so an entity is started before all later ones
+                List<BackupEntry> backupEntries = FastList.newInstance();
+                for (Map.Entry<String, String> entityGroupName : entityGroupNames.entrySet()) {
+                    BackupEntry backupEntry = new BackupEntry(entityGroupName.getKey(), Math.max(bufferSize / CHUNK_SIZE, 1));
+                    backupEntries.add(backupEntry);
+                    backupExecutor.execute(new BackupTask(backupEntry, groupConnections.get(entityGroupName.getValue())));
+                }
+
+                FileOutputStream fileOut = new FileOutputStream(partFile);
+                try {
+                    TenantZipWriter zipWriter = new TenantZipWriter(new BufferedOutputStream(fileOut, bufferSize));
+                    long time = System.currentTimeMillis();
+                    for (BackupEntry backupEntry : backupEntries) {
+                        numberWritten += writeEntry(backupEntry, zipWriter, time);
+                    }
+                    zipWriter.writeEntry(MANIFEST_ENTRY_NAME, time, getManifest(), deflateLevel);
+                    zipWriter.finish();
+                    fileOut.getChannel().force(true);
+                    completed = true;
+                } finally {
+                    fileOut.close();
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while backing up tenant " + tenantId);
+            } finally {
+                // stop the entities of a failed backup which are still waiting
+                aborted = !completed;
+                TenantJdbcConnectionHandler.closeConnections(connections);
+                if (!completed) {
+                    partFile.delete();
+                    releaseChunks();
+                }
+            }
+            if (!partFile.renameTo(outFile)) {
+                partFile.delete();
+                releaseChunks();
+                throw new IOException("Could not rename " + partFile + " to " + outFile);
+            }
+            Debug.logInfo("Backed up " + numberWritten + " values of " + entityNames.size() + " entities of tenant [" + tenantId + "] " + backupType + " to "
+                    + outFile + " in " + (System.currentTimeMillis() - startTime) + " ms", module);
+            return numberWritten;
+        } finally {
+            TenantActivity.end(tenantId);
+        }
+    }
+
+    /**
+     * get the names of the entities written, in order of the zip entries
+     * @return
+     */
+    public List<String> getEntityNames() {
+        return entityNames;
+    }
+
+    /**
+     * get the number of values written of an entity
+     * @param entityName
+     * @return
+     */
+    public long getRows(String entityName) {
+        Long rows = entityRows.get(entityName);
+        return rows == null ? 0 : rows.longValue();
+    }
+
+    /**
+     * get the checksum of the zip entry of an entity
+     * @param entityName
+     * @return
+     */
+    public String getChecksum(String entityName) {
+        return entityChecksums.get(entityName);
+    }
+
+    /**
+     * get the chunks of the entry of an entity in the backup store
+     * @param entityName
+     * @return
+     */
+    public List<String> getChunks(String entityName) {
+        return entityChunks.get(entityName);
+    }
+
+    /**
+     * get the stamp from which the values changed are written by a backup based on this one
+     * @return
+     */
+    public Timestamp getHighWaterStamp() {
+        return highWaterStamp;
+    }
+
+    /**
+     * shut down the node backup threads
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * write the deflated chunks of an entity into its zip entry while they are deflated, an entity without values
+     * has no entry, and is only in the manifest of an incremental or differential backup if it is written in full
+     * @param backupEntry
+     * @param zipWriter
+     * @param time
+     * @return the number of values written
+     * @throws IOException
+     */
+    protected long writeEntry(BackupEntry backupEntry, TenantZipWriter zipWriter, long time) throws IOException {
+        boolean begun = false;
+        while (true) {
+            byte[] chunk = null;
+            try {
+                chunk = backupEntry.chunks.take();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while backing up entity " + backupEntry.entityName + " of tenant " + tenantId);
+            }
+            if (chunk == END_OF_ENTRY) {
+                break;
+            }
+            if (!begun) {
+                zipWriter.beginEntry(backupEntry.entityName + ".xml", time);
+                begun = true;
+            }
+            zipWriter.writeDeflated(chunk, 0, chunk.length);
+        }
+        if (backupEntry.error != null) {
+            throw new IOException("Could not back up entity " + backupEntry.entityName + " of tenant " + tenantId + " : " + backupEntry.error.getMessage(), backupEntry.error);
+        }
+        entityCounts.put(backupEntry.entityName, Long.valueOf(backupEntry.count));
+        if (begun || !backupEntry.chunkHashes.isEmpty() || (baseManifest != null && MODE_FULL.equals(backupEntry.mode))) {
+            if (begun) {
+                zipWriter.endEntry(backupEntry.crc, backupEntry.size, backupEntry.csize);
+            } else {
+                entityChunks.put(backupEntry.entityName, backupEntry.chunkHashes);
+            }
+            entityNames.add(backupEntry.entityName);
+            entityRows.put(backupEntry.entityName, Long.valueOf(backupEntry.rows));
+            entityRemoved.put(backupEntry.entityName, Long.valueOf(backupEntry.removed));
+            entityModes.put(backupEntry.entityName, backupEntry.mode);
+            entityChecksums.put(backupEntry.entityName, backupEntry.checksum);
+        }
+        return backupEntry.rows;
+    }
+
+    /**
+     * read the removes since the base from the journal, the journal values which can not be read are counted by the entity counts
+     * @param connection
+     * @throws GenericEntityException
+     * @throws SQLException
+     */
+    protected void readRemovals(Connection connection) throws GenericEntityException, SQLException {
+        ModelEntity modelEntity = tenantDelegator.getModelEntity(REMOVE_JOURNAL_ENTITY_NAME);
+        String helperName = tenantDelegator.getEntityHelperName(modelEntity);
+        PreparedStatement statement = connection.prepareStatement("SELECT " + modelEntity.getField("primaryKeyRemoved").getColName()
+                + ", " + modelEntity.getField(ModelEntity.STAMP_TX_FIELD).getColName() + " FROM " + modelEntity.getTableName(helperName)
+                + " WHERE " + modelEntity.getField(ModelEntity.STAMP_TX_FIELD).getColName() + " >= ?");
+        int numberRemoved = 0;
+        try {
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setTimestamp(1, changedSinceStamp);
+            ResultSet resultSet = statement.executeQuery();
+            while (resultSet.next()) {
+                String primaryKeyRemoved = resultSet.getString(1);
+                Object removedPk = null;
+                try {
+                    removedPk = XmlSerializer.deserialize(primaryKeyRemoved, tenantDelegator);
+                } catch (Exception e) {
+                    Debug.logWarning("Could not read removed primary key of tenant " + tenantId + " : " + e.getMessage(), module);
+                }
+                if (removedPk instanceof GenericPK) {
+                    GenericPK pk = (GenericPK) removedPk;
+                    List<Removal> removals = entityRemovals.get(pk.getEntityName());
+                    if (removals == null) {
+                        removals = FastList.newInstance();
+                        entityRemovals.put(pk.getEntityName(), removals);
+                    }
+                    removals.add(new Removal(pk, resultSet.getTimestamp(2)));
+                    numberRemoved++;
+                }
+            }
+            resultSet.close();
+        } finally {
+            statement.close();
+        }
+        Debug.logInfo("Found " + numberRemoved + " removed values of tenant [" + tenantId + "] since " + changedSinceStamp, module);
+    }
+
+    /**
+     * read the values of an entity and write them deflated into the chunks of its entry
+     * @param backupEntry
+     * @param connection
+     * @throws GenericEntityException
+     * @throws IOException
+     * @throws SQLException
+     */
+    protected void readEntity(BackupEntry backupEntry, Connection connection) throws GenericEntityException, IOException, SQLException {
+        ModelEntity modelEntity = tenantDelegator.getModelEntity(backupEntry.entityName);
+        String helperName = tenantDelegator.getEntityHelperName(modelEntity);
+        String tableName = modelEntity.getTableName(helperName);
+        ModelFieldTypeReader modelFieldTypeReader = ModelFieldTypeReader.getModelFieldTypeReader(helperName);
+        List<ModelField> modelFields = modelEntity.getFieldsUnmodifiable();
+        StringBuilder sqlBuilder = new StringBuilder("SELECT ");
+        for (int i = 0; i < modelFields.size(); i++) {
+            if (i > 0) {
+                sqlBuilder.append(", ");
+            }
+            sqlBuilder.append(modelFields.get(i).getColName());
+        }
+        sqlBuilder.append(" FROM ").append(tableName);
+
+        // only the changes if the values of the base with the changes are all values
+        List<Removal> removals = Collections.emptyList();
+        boolean changesOnly = false;
+        if (baseManifest != null && !modelEntity.getNoAutoStamp() && modelEntity.getField(ModelEntity.STAMP_TX_FIELD) != null
+                && modelEntity.getField(ModelEntity.CREATE_STAMP_TX_FIELD) != null) {
+            long inserted = 0;
+            PreparedStatement countStatement = connection.prepareStatement("SELECT COUNT(*), COUNT(CASE WHEN "
+                    + modelEntity.getField(ModelEntity.CREATE_STAMP_TX_FIELD).getColName() + " >= ? THEN 1 END) FROM " + tableName);
+            try {
+                countStatement.setTimestamp(1, baseHighWaterStamp);
+                ResultSet resultSet = countStatement.executeQuery();
+                resultSet.next();
+                backupEntry.count = resultSet.getLong(1);
+                inserted = resultSet.getLong(2);
+                resultSet.close();
+            } finally {
+                countStatement.close();
+            }
+            if (entityRemovals.containsKey(backupEntry.entityName)) {
+                removals = entityRemovals.get(backupEntry.entityName);
+            }
+            long removed = 0;
+            for (Removal removal : removals) {
+                if (!removal.stamp.before(baseHighWaterStamp)) {
+                    removed++;
+                }
+            }
+            String baseCount = baseManifest.getProperty(backupEntry.entityName + ".count");
+            changesOnly = baseCount != null && Long.parseLong(baseCount) + inserted - removed == backupEntry.count;
+            if (!changesOnly) {
+                removals = Collections.emptyList();
+                if (baseCount != null) {
+                    Debug.logInfo("Entity " + backupEntry.entityName + " of tenant [" + tenantId + "] has removes which are not in the journal, it is written in full", module);
+                }
+            }
+        }
+        if (changesOnly) {
+            backupEntry.mode = MODE_CHANGES;
+            sqlBuilder.append(" WHERE ").append(modelEntity.getField(ModelEntity.STAMP_TX_FIELD).getColName()).append(" >= ?");
+        }
+        List<ModelField> pkFields = modelEntity.getPkFieldsUnmodifiable();
+        for (int i = 0; i < pkFields.size(); i++) {
+            sqlBuilder.append(i == 0 ? " ORDER BY " : ", ").append(pkFields.get(i).getColName());
+        }
+
+        PreparedStatement statement = connection.prepareStatement(sqlBuilder.toString());
+        EntryOutputStream entryOut = null;
+        try {
+            statement.setFetchSize(FETCH_SIZE);
+            if (changesOnly) {
+                statement.setTimestamp(1, changedSinceStamp);
+            }
+            ResultSet resultSet = statement.executeQuery();
+            PrintWriter writer = null;
+            if (!removals.isEmpty()) {
+                entryOut = new EntryOutputStream(backupEntry);
+                writer = getEntryWriter(entryOut);
+                writer.println("<delete>");
+                for (Removal removal : removals) {
+                    removal.pk.writeXmlText(writer, "");
+                    backupEntry.removed++;
+                }
+                writer.println("</delete>");
+            }
+            while (resultSet.next()) {
+                if (entryOut != null && entryOut.error != null) {
+                    throw entryOut.error;
+                }
+                GenericValue value = tenantDelegator.makeValue(backupEntry.entityName);
+                for (int i = 0; i < modelFields.size(); i++) {
+                    SqlJdbcUtil.getValue(resultSet, i + 1, modelFields.get(i), value, modelFieldTypeReader);
+                }
+                if (writer == null) {
+                    entryOut = new EntryOutputStream(backupEntry);
+                    writer = getEntryWriter(entryOut);
+                }
+                value.writeXmlText(writer, "");
+                backupEntry.rows++;
+            }
+            resultSet.close();
+            if (!changesOnly) {
+                backupEntry.count = backupEntry.rows;
+            }
+            if (writer != null) {
+                writer.println("</entity-engine-xml>");
+                writer.flush();
+                if (writer.checkError() || entryOut.error != null) {
+                    throw entryOut.error != null ? entryOut.error : new IOException("Could not write entity " + backupEntry.entityName);
+                }
+                entryOut.close();
+            }
+        } finally {
+            if (entryOut != null) {
+                entryOut.end();
+            }
+            statement.close();
+        }
+    }
+
+    private PrintWriter getEntryWriter(EntryOutputStream entryOut) throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(entryOut, "UTF-8"), CHUNK_SIZE));
+        writer.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        writer.println("<entity-engine-xml>");
+        return writer;
+    }
+
+    /**
+     * get the manifest with the number of values and the checksum of every entity
+     * @return
+     * @throws IOException
+     */
+    protected byte[] getManifest() throws IOException {
+        Properties manifest = new Properties();
+        manifest.setProperty("tenantId", tenantId);
+        manifest.setProperty("createdDate", UtilDateTime.nowTimestamp().toString());
+        manifest.setProperty("checksumAlgorithm", CHECKSUM_ALGORITHM);
+        manifest.setProperty("backupType", backupType);
+        if (backupStore != null) {
+            manifest.setProperty("storage", STORAGE_CHUNKS);
+        }
+        manifest.setProperty("highWaterStamp", highWaterStamp.toString());
+        if (baseHighWaterStamp != null) {
+            manifest.setProperty("baseHighWaterStamp", baseHighWaterStamp.toString());
+        }
+        manifest.setProperty("entities", StringUtil.join(entityNames, ","));
+        for (String entityName : entityNames) {
+            manifest.setProperty(entityName + ".mode", entityModes.get(entityName));
+            manifest.setProperty(entityName + ".rows", String.valueOf(getRows(entityName)));
+            manifest.setProperty(entityName + ".removed", String.valueOf(entityRemoved.get(entityName)));
+            if (getChecksum(entityName) != null) {
+                manifest.setProperty(entityName + ".checksum", getChecksum(entityName));
+            }
+            if (entityChunks.containsKey(entityName)) {
+                manifest.setProperty(entityName + ".chunks", StringUtil.join(entityChunks.get(entityName), ","));
+            }
+        }
+        // the number of values of all entities, also of those without an entry
+        for (Map.Entry<String, Long> entityCount : entityCounts.entrySet()) {
+            manifest.setProperty(entityCount.getKey() + ".count", String.valueOf(entityCount.getValue()));
+        }
+        ByteArrayOutputStream manifestOut = new ByteArrayOutputStream();
+        manifest.store(manifestOut, "Tenant backup of " + tenantId);
+        return manifestOut.toByteArray();
+    }
+
+    /**
+     * remove the references of a backup which has not been written
+     */
+    private void releaseChunks() {
+        if (backupStore == null || acquiredHashes.isEmpty()) {
+            return;
+        }
+        try {
+            synchronized (acquiredHashes) {
+                backupStore.release(acquiredHashes);
+                acquiredHashes.clear();
+            }
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, "Could not release the backup chunks of tenant " + tenantId + ", they are kept", module);
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor(int maxThreads) {
+        if (executor == null) {
+            executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(maxThreads, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "tenant-backup-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else if (executor.getMaximumPoolSize() != maxThreads) {
+            // running backups have as many connections as threads, the pool keeps its size until it is shut down
+            Debug.logWarning("Tenant backups run on " + executor.getMaximumPoolSize() + " threads instead of " + maxThreads
+                    + ", the new number is used after the backup threads have been shut down", module);
+        }
+        return executor;
+    }
+
+    private class BackupTask implements Runnable {
+        private final BackupEntry backupEntry;
+        private final BlockingQueue<Connection> connections;
+
+        private BackupTask(BackupEntry backupEntry, BlockingQueue<Connection> connections) {
+            this.backupEntry = backupEntry;
+            this.connections = connections;
+        }
+
+        public void run() {
+            try {
+                if (aborted) {
+                    return;
+                }
+                Connection connection = connections.take();
+                try {
+                    readEntity(backupEntry, connection);
+                } finally {
+                    connections.put(connection);
+                }
+            } catch (Throwable t) {
+                backupEntry.error = t;
+            } finally {
+                try {
+                    backupEntry.put(END_OF_ENTRY);
+                } catch (IOException e) {
+                    // the backup has been aborted
+                }
+            }
+        }
+    }
+
+    private class BackupEntry {
+        private final String entityName;
+        private final BlockingQueue<byte[]> chunks;
+        private String mode = MODE_FULL;
+        private long rows = 0;
+        private long removed = 0;
+        private long count = 0;
+        private long crc = 0;
+        private long size = 0;
+        private long csize = 0;
+        private String checksum = null;
+        private Throwable error = null;
+        private final List<String> chunkHashes = FastList.newInstance();
+
+        private BackupEntry(String entityName, int capacity) {
+            this.entityName = entityName;
+            this.chunks = new ArrayBlockingQueue<byte[]>(capacity);
+        }
+
+        private void put(byte[] chunk) throws IOException {
+            try {
+                while (!chunks.offer(chunk, 1, TimeUnit.SECONDS)) {
+                    if (aborted) {
+                        throw new IOException("The backup of tenant " + tenantId + " has been aborted");
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while backing up entity " + entityName + " of tenant " + tenantId);
+            }
+        }
+    }
+
+    private static class Removal {
+        private final GenericPK pk;
+        private final Timestamp stamp;
+
+        private Removal(GenericPK pk, Timestamp stamp) {
+            this.pk = pk;
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * cuts bytes into chunks at the positions chosen by a gear hash of their bytes, the same bytes
+     * are cut at the same positions wherever they are
+     */
+    public static class Chunker {
+        private final int minChunkSize;
+        private final int maxChunkSize;
+        private final long chunkMask;
+        private int chunkLength = 0;
+        private long gear = 0;
+
+        /**
+         * Constructor
+         * @param chunkSize the average size in bytes of the chunks, a power of 2
+         */
+        public Chunker(int chunkSize) {
+            int bits = Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(chunkSize, 1024)));
+            this.minChunkSize = (1 << bits) / 4;
+            this.maxChunkSize = (1 << bits) * 4;
+            // the high bits of the gear hash depend on the last 64 bytes
+            this.chunkMask = ((1L << bits) - 1) << (64 - bits);
+        }
+
+        /**
+         * add the next byte of the chunk
+         * @param b
+         * @return true if the chunk ends with this byte
+         */
+        public boolean add(byte b) {
+            chunkLength++;
+            gear = (gear << 1) + GEAR[b & 0xff];
+            if ((chunkLength >= minChunkSize && (gear & chunkMask) == 0) || chunkLength == maxChunkSize) {
+                chunkLength = 0;
+                gear = 0;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * get the size in bytes of the shortest chunk, except the last one
+         * @return
+         */
+        public int getMinChunkSize() {
+            return minChunkSize;
+        }
+
+        /**
+         * get the size in bytes of the longest chunk
+         * @return
+         */
+        public int getMaxChunkSize() {
+            return maxChunkSize;
+        }
+    }
+
+    /**
+     * digests and deflates the bytes of an entry into chunks
+     */
+    private class EntryOutputStream extends OutputStream {
+        private final BackupEntry backupEntry;
+        private final CRC32 crc = new CRC32();
+        private final MessageDigest digest;
+        private final Deflater deflater = new Deflater(deflateLevel, true);
+        private final Chunker chunker = backupStore == null ? null : new Chunker(chunkSize);
+        private byte[] chunk = new byte[chunker == null ? CHUNK_SIZE : chunker.getMaxChunkSize()];
+        private int chunkLength = 0;
+        private IOException error = null;
+
+        private EntryOutputStream(BackupEntry backupEntry) throws IOException {
+            this.backupEntry = backupEntry;
+            try {
+                this.digest = MessageDigest.getInstance(CHECKSUM_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                crc.update(b, off, len);
+                digest.update(b, off, len);
+                backupEntry.size += len;
+                if (backupStore != null) {
+                    writeChunked(b, off, len);
+                    return;
+                }
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput()) {
+                    deflate();
+                }
+            } catch (IOException e) {
+                // the print writer swallows the exception
+                error = e;
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (backupStore != null) {
+                if (chunkLength > 0) {
+                    putChunk();
+                }
+                backupEntry.crc = crc.getValue();
+                backupEntry.checksum = StringUtil.toHexString(digest.digest());
+                return;
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            if (chunkLength > 0) {
+                byte[] lastChunk = new byte[chunkLength];
+                System.arraycopy(chunk, 0, lastChunk, 0, chunkLength);
+                backupEntry.put(lastChunk);
+            }
+            backupEntry.crc = crc.getValue();
+            backupEntry.checksum = StringUtil.toHexString(digest.digest());
+        }
+
+        private void end() {
+            deflater.end();
+        }
+
+        private void writeChunked(byte[] b, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                chunk[chunkLength++] = b[i];
+                if (chunker.add(b[i])) {
+                    putChunk();
+                }
+            }
+        }
+
+        private void putChunk() throws IOException {
+            if (aborted) {
+                throw new IOException("The backup of tenant " + tenantId + " has been aborted");
+            }
+            String hash = null;
+            try {
+                hash = backupStore.put(chunk, chunkLength);
+            } catch (GenericEntityException e) {
+                throw new IOException(e);
+            }
+            acquiredHashes.add(hash);
+            backupEntry.chunkHashes.add(hash);
+            chunkLength = 0;
+        }
+
+        private void deflate() throws IOException {
+            int len = deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+            chunkLength += len;
+            backupEntry.csize += len;
+            if (chunkLength == chunk.length) {
+                backupEntry.put(chunk);
+                chunk = new byte[CHUNK_SIZE];
+                chunkLength = 0;
+            }
+        }
+    }
+}
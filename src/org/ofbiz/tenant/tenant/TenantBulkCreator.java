@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilGenerics;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.base.util.UtilXml;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityFunction;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityUtil;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+/**
+ * Tenant Bulk Creator
+ * <p>
+ * Creates many tenants from tenant specs. The Tenant, TenantDataSource, TenantComponent and
+ * TenantDomainName values of a batch of tenants are stored in one transaction together with
+ * their queued provisioning steps, so the databases are created later by the provisioning
+ * workers of {@link TenantProvisionTask} instead of one by one while the values are stored.
+ * <p>
+ * A spec is a map with tenantId, tenantName, disabled, dataSources (maps with entityGroupName,
+ * jdbcUri, jdbcUsername and jdbcPassword), components (component names) and domainNames
+ * (maps with domainName and initialPath). Specs can be read from a file like:
+ * <pre>
+ * &lt;tenants&gt;
+ *     &lt;tenant tenant-id="shop1" tenant-name="Shop 1"&gt;
+ *         &lt;data-source entity-group-name="org.ofbiz" jdbc-uri="jdbc:postgresql://db1/shop1" jdbc-username="shop1" jdbc-password="..."/&gt;
+ *         &lt;component name="ecommerce"/&gt;
+ *         &lt;domain name="shop1.example.com" initial-path="/"/&gt;
+ *     &lt;/tenant&gt;
+ * &lt;/tenants&gt;
+ * </pre>
+ */
+public class TenantBulkCreator {
+
+    public final static String module = TenantBulkCreator.class.getName();
+
+    protected Delegator delegator;
+    protected int batchSize = 100;
+
+    /**
+     * Constructor
+     * @param delegator the base delegator
+     * @param batchSize the number of tenants stored in one transaction
+     */
+    public TenantBulkCreator(Delegator delegator, int batchSize) {
+        this.delegator = delegator;
+        this.batchSize = Math.max(batchSize, 1);
+    }
+
+    /**
+     * read tenant specs from a file
+     * @param url
+     * @return
+     * @throws Exception
+     */
+    public static List<Map<String, Object>> readSpecs(URL url) throws Exception {
+        List<Map<String, Object>> specs = FastList.newInstance();
+        Document document = UtilXml.readXmlDocument(url, false);
+        for (Element tenantElement : UtilXml.childElementList(document.getDocumentElement(), "tenant")) {
+            Map<String, Object> spec = FastMap.newInstance();
+            spec.put("tenantId", tenantElement.getAttribute("tenant-id"));
+            spec.put("tenantName", tenantElement.getAttribute("tenant-name"));
+            spec.put("disabled", tenantElement.getAttribute("disabled"));
+            List<Map<String, Object>> dataSources = FastList.newInstance();
+            for (Element dataSourceElement : UtilXml.childElementList(tenantElement, "data-source")) {
+                Map<String, Object> dataSource = FastMap.newInstance();
+                dataSource.put("entityGroupName", dataSourceElement.getAttribute("entity-group-name"));
+                dataSource.put("jdbcUri", dataSourceElement.getAttribute("jdbc-uri"));
+                dataSource.put("jdbcUsername", dataSourceElement.getAttribute("jdbc-username"));
+                dataSource.put("jdbcPassword", dataSourceElement.getAttribute("jdbc-password"));
+                dataSources.add(dataSource);
+            }
+            spec.put("dataSources", dataSources);
+            List<String> components = FastList.newInstance();
+            for (Element componentElement : UtilXml.childElementList(tenantElement, "component")) {
+                components.add(componentElement.getAttribute("name"));
+            }
+            spec.put("components", components);
+            List<Map<String, Object>> domainNames = FastList.newInstance();
+            for (Element domainElement : UtilXml.childElementList(tenantElement, "domain")) {
+                Map<String, Object> domainName = FastMap.newInstance();
+                domainName.put("domainName", domainElement.getAttribute("name"));
+                domainName.put("initialPath", domainElement.getAttribute("initial-path"));
+                domainNames.add(domainName);
+            }
+            spec.put("domainNames", domainNames);
+            specs.add(spec);
+        }
+        return specs;
+    }
+
+    /**
+     * check tenant specs before anything is stored
+     * @param specs
+     * @return error messages, empty if all specs are valid
+     * @throws GenericEntityException
+     */
+    public List<String> validate(List<Map<String, Object>> specs) throws GenericEntityException {
+        List<String> errorMessages = FastList.newInstance();
+        Set<String> tenantIds = FastSet.newInstance();
+        Set<String> domainNames = FastSet.newInstance();
+        Set<String> componentNames = FastSet.newInstance();
+        for (Map<String, Object> spec : specs) {
+            String tenantId = (String) spec.get("tenantId");
+            if (UtilValidate.isEmpty(tenantId)) {
+                errorMessages.add("A tenant spec does not have a tenant ID");
+                continue;
+            }
+            if (!tenantIds.add(tenantId)) {
+                errorMessages.add("Tenant [" + tenantId + "] is in the specs more than once");
+            }
+            if (TenantTemplate.isTemplateTenant(tenantId) || TenantWarmPool.isSpareTenant(tenantId)) {
+                errorMessages.add("Tenant [" + tenantId + "] has the prefix of a template or spare tenant");
+            }
+            List<Map<String, Object>> dataSources = UtilGenerics.checkList(spec.get("dataSources"));
+            if (UtilValidate.isNotEmpty(dataSources)) {
+                for (Map<String, Object> dataSource : dataSources) {
+                    if (UtilValidate.isEmpty(dataSource.get("entityGroupName")) || UtilValidate.isEmpty(dataSource.get("jdbcUri"))) {
+                        errorMessages.add("A data source of tenant [" + tenantId + "] does not have an entity group name or a JDBC URI");
+                    }
+                }
+            }
+            List<String> components = UtilGenerics.checkList(spec.get("components"));
+            if (UtilValidate.isNotEmpty(components)) {
+                componentNames.addAll(components);
+            }
+            List<Map<String, Object>> tenantDomainNames = UtilGenerics.checkList(spec.get("domainNames"));
+            if (UtilValidate.isNotEmpty(tenantDomainNames)) {
+                for (Map<String, Object> tenantDomainName : tenantDomainNames) {
+                    String domainName = (String) tenantDomainName.get("domainName");
+                    if (UtilValidate.isEmpty(domainName) || !domainName.trim().matches("^(\\*\\.)?[^*]+$")) {
+                        errorMessages.add("Invalid domain name of tenant [" + tenantId + "]: " + domainName);
+                    } else if (!domainNames.add(domainName.trim().toLowerCase())) {
+                        errorMessages.add("Domain name [" + domainName + "] is in the specs more than once");
+                    }
+                }
+            }
+        }
+
+        // look up existing tenants, domain names and components in chunks
+        List<String> tenantIdList = FastList.newInstance();
+        tenantIdList.addAll(tenantIds);
+        for (String existingTenantId : findExisting("Tenant", "tenantId", tenantIdList, false)) {
+            errorMessages.add("Tenant [" + existingTenantId + "] already exists");
+        }
+        List<String> domainNameList = FastList.newInstance();
+        domainNameList.addAll(domainNames);
+        for (String existingDomainName : findExisting("TenantDomainName", "domainName", domainNameList, true)) {
+            errorMessages.add("Domain name [" + existingDomainName + "] already exists");
+        }
+        List<String> componentNameList = FastList.newInstance();
+        componentNameList.addAll(componentNames);
+        List<String> existingComponentNames = findExisting("Component", "componentName", componentNameList, false);
+        for (String componentName : componentNameList) {
+            if (!existingComponentNames.contains(componentName)) {
+                errorMessages.add("Could not find a component: " + componentName);
+            }
+        }
+        return errorMessages;
+    }
+
+    /**
+     * find the values of a field which already exist
+     * @param entityName
+     * @param fieldName
+     * @param values
+     * @param lowerCase whether the values are lowercased and compared with the lowercased field
+     * @return
+     * @throws GenericEntityException
+     */
+    protected List<String> findExisting(String entityName, String fieldName, List<String> values, boolean lowerCase) throws GenericEntityException {
+        List<String> existingValues = FastList.newInstance();
+        for (int i = 0; i < values.size(); i += batchSize) {
+            List<String> chunk = values.subList(i, Math.min(i + batchSize, values.size()));
+            EntityCondition condition = lowerCase ? EntityCondition.makeCondition(EntityFunction.LOWER_FIELD(fieldName), EntityOperator.IN, chunk)
+                    : EntityCondition.makeCondition(fieldName, EntityOperator.IN, chunk);
+            List<GenericValue> existing = delegator.findList(entityName, condition, UtilMisc.toSet(fieldName), null, null, false);
+            existingValues.addAll(EntityUtil.<String>getFieldListFromEntityList(existing, fieldName, true));
+        }
+        return existingValues;
+    }
+
+    /**
+     * store the tenants of the specs in batches and queue their provisioning
+     * @param specs
+     * @return the IDs of the created tenants
+     * @throws GenericEntityException
+     */
+    public List<String> create(List<Map<String, Object>> specs) throws GenericEntityException {
+        List<String> tenantIds = FastList.newInstance();
+        for (int i = 0; i < specs.size(); i += batchSize) {
+            List<Map<String, Object>> batchSpecs = specs.subList(i, Math.min(i + batchSize, specs.size()));
+            List<GenericValue> tenants = FastList.newInstance();
+            List<GenericValue> values = FastList.newInstance();
+            List<GenericValue> tenantDataSources = FastList.newInstance();
+            List<String> batchTenantIds = FastList.newInstance();
+            for (Map<String, Object> spec : batchSpecs) {
+                String tenantId = (String) spec.get("tenantId");
+                batchTenantIds.add(tenantId);
+                tenants.add(delegator.makeValue("Tenant", UtilMisc.toMap("tenantId", tenantId
+                        , "tenantName", UtilValidate.isNotEmpty(spec.get("tenantName")) ? spec.get("tenantName") : tenantId
+                        , "disabled", UtilValidate.isNotEmpty(spec.get("disabled")) ? spec.get("disabled") : null)));
+                List<String> components = UtilGenerics.checkList(spec.get("components"));
+                if (UtilValidate.isNotEmpty(components)) {
+                    for (int j = 0; j < components.size(); j++) {
+                        values.add(delegator.makeValue("TenantComponent", UtilMisc.toMap("tenantId", tenantId
+                                , "componentName", components.get(j), "sequenceNum", Long.valueOf((j + 1) * 10))));
+                    }
+                }
+                List<Map<String, Object>> domainNames = UtilGenerics.checkList(spec.get("domainNames"));
+                if (UtilValidate.isNotEmpty(domainNames)) {
+                    for (Map<String, Object> domainName : domainNames) {
+                        values.add(delegator.makeValue("TenantDomainName", UtilMisc.toMap("tenantId", tenantId
+                                , "domainName", ((String) domainName.get("domainName")).trim(), "initialPath", domainName.get("initialPath"))));
+                    }
+                }
+                // the steps are queued before the data sources, so storing them does not create databases
+                for (int j = 0; j < TenantProvisioner.STEP_IDS.size(); j++) {
+                    values.add(delegator.makeValue("TenantProvisionStep", UtilMisc.toMap("tenantId", tenantId, "stepId", TenantProvisioner.STEP_IDS.get(j)
+                            , "sequenceNum", Long.valueOf((j + 1) * 10), "statusId", TenantProvisioner.STATUS_PENDING, "attempts", Long.valueOf(0))));
+                }
+                List<Map<String, Object>> dataSources = UtilGenerics.checkList(spec.get("dataSources"));
+                if (UtilValidate.isNotEmpty(dataSources)) {
+                    for (Map<String, Object> dataSource : dataSources) {
+                        tenantDataSources.add(delegator.makeValue("TenantDataSource", UtilMisc.toMap("tenantId", tenantId
+                                , "entityGroupName", ((String) dataSource.get("entityGroupName")).trim(), "jdbcUri", ((String) dataSource.get("jdbcUri")).trim()
+                                , "jdbcUsername", dataSource.get("jdbcUsername"), "jdbcPassword", dataSource.get("jdbcPassword"))));
+                    }
+                }
+            }
+
+            boolean beganTransaction = TransactionUtil.begin();
+            try {
+                delegator.storeAll(tenants);
+                delegator.storeAll(values);
+                delegator.storeAll(tenantDataSources);
+                TransactionUtil.commit(beganTransaction);
+            } catch (GenericEntityException e) {
+                TransactionUtil.rollback(beganTransaction, "Could not create tenants " + batchTenantIds, e);
+                throw e;
+            }
+            tenantIds.addAll(batchTenantIds);
+            Debug.logInfo("Created " + tenantIds.size() + " of " + specs.size() + " tenants", module);
+        }
+        return tenantIds;
+    }
+}
@@ -20,6 +20,7 @@ package org.ofbiz.tenant.tenant;
 
 import java.io.File;
 import java.util.List;
+import java.util.Timer;
 
 import org.ofbiz.base.component.ComponentConfig;
 import org.ofbiz.base.container.Container;
@@ -32,10 +33,16 @@ import org.ofbiz.base.util.UtilValidate;
 import org.ofbiz.base.util.UtilXml;
 import org.ofbiz.entity.Delegator;
 import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericEntityException;
 import org.ofbiz.entity.GenericValue;
 import org.ofbiz.entity.config.EntityConfigUtil;
 import org.ofbiz.entity.config.model.Datasource;
 import org.ofbiz.entity.datasource.GenericHelperInfo;
+import org.ofbiz.entity.tenant.TenantRoutingTable;
+import org.ofbiz.entity.util.EntityUtilProperties;
+import org.ofbiz.service.LocalDispatcher;
+import org.ofbiz.service.ServiceContainer;
+import org.ofbiz.tenant.jdbc.TenantAdminConnectionPool;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 
@@ -53,6 +60,12 @@ public class TenantContainer implements Container {
     
     protected String name = null;
     protected String configFile = null;
+    protected Timer evictionTimer = null;
+    protected Timer warmPoolTimer = null;
+    protected Timer provisionTimer = null;
+    protected TenantProvisionTask provisionTask = null;
+    protected Timer teardownTimer = null;
+    protected TenantTeardownTask teardownTask = null;
 
     public void init(String[] args, String name, String configFile)
             throws ContainerException {
@@ -116,11 +129,90 @@ public class TenantContainer implements Container {
             Debug.logWarning(e, module);
         }
         
+        // load tenant routes, so requests do not need to look up TenantDomainName
+        try {
+            TenantRoutingTable.load(delegator);
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, "Could not load the tenant routing table, it will be loaded by the first request", module);
+        }
+        
+        // schedule deactivating idle tenants
+        int maxActiveTenants = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "maxActiveTenants", "0", delegator));
+        long idleTimeout = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "tenantIdleTimeout", "0", delegator));
+        int minFreeMemoryPercent = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "minFreeMemoryPercent", "0", delegator));
+        int maxEvictionsPerRun = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "maxEvictionsPerRun", "10", delegator));
+        long evictionInterval = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "tenantEvictionInterval", "60000", delegator));
+        if (maxActiveTenants > 0 || idleTimeout > 0 || minFreeMemoryPercent > 0) {
+            evictionTimer = new Timer("tenant-eviction", true);
+            evictionTimer.schedule(new TenantEvictionTask(delegator, maxActiveTenants, idleTimeout, minFreeMemoryPercent, maxEvictionsPerRun)
+                    , evictionInterval, evictionInterval);
+        }
+        
+        // schedule refilling spare tenants
+        int warmPoolSize = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "warmPoolSize", "0", delegator));
+        int warmPoolRefillRate = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "warmPoolRefillRate", "2", delegator));
+        long warmPoolRefillInterval = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "warmPoolRefillInterval", "300000", delegator));
+        long warmPoolMaxAge = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "warmPoolMaxAge", "604800000", delegator));
+        long warmPoolMaxBuildAge = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "warmPoolMaxBuildAge", "86400000", delegator));
+        if (warmPoolSize > 0 && TenantTemplate.isEnabled(delegator)) {
+            warmPoolTimer = new Timer("tenant-warm-pool", true);
+            warmPoolTimer.schedule(new TenantWarmPoolTask(delegator, warmPoolSize, warmPoolRefillRate, warmPoolMaxAge, warmPoolMaxBuildAge)
+                    , warmPoolRefillInterval, warmPoolRefillInterval);
+        }
+        
+        // schedule running queued provisioning steps
+        if (TenantProvisioner.isEnabled(delegator)) {
+            int provisionMaxThreads = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "provisionMaxThreads", "2", delegator));
+            int provisionMaxThreadsPerServer = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "provisionMaxThreadsPerServer", "2", delegator));
+            int provisionMaxAttempts = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "provisionMaxAttempts", "3", delegator));
+            long provisionPollInterval = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "provisionPollInterval", "5000", delegator));
+            long provisionStepTimeout = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "provisionStepTimeout", "3600000", delegator));
+            long provisionRetryDelay = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "provisionRetryDelay", "60000", delegator));
+            try {
+                LocalDispatcher dispatcher = ServiceContainer.getLocalDispatcher("tenant-provisioner", delegator);
+                provisionTask = new TenantProvisionTask(delegator, dispatcher, provisionMaxThreads, provisionMaxThreadsPerServer, provisionMaxAttempts, provisionStepTimeout, provisionRetryDelay);
+                provisionTimer = new Timer("tenant-provisioner", true);
+                provisionTimer.schedule(provisionTask, provisionPollInterval, provisionPollInterval);
+            } catch (Exception e) {
+                Debug.logError(e, "Could not start the tenant provisioner", module);
+            }
+        }
+        
+        // schedule tearing down deleted tenants
+        int teardownMaxTenants = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "teardownMaxTenants", "2", delegator));
+        int teardownMaxThreads = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "teardownMaxThreads", "4", delegator));
+        int teardownMaxAttempts = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "teardownMaxAttempts", "3", delegator));
+        long teardownPollInterval = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "teardownPollInterval", "10000", delegator));
+        long teardownTimeout = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "teardownTimeout", "3600000", delegator));
+        try {
+            LocalDispatcher dispatcher = ServiceContainer.getLocalDispatcher("tenant-teardown", delegator);
+            teardownTask = new TenantTeardownTask(delegator, dispatcher, teardownMaxTenants, teardownMaxThreads, teardownMaxAttempts, teardownTimeout);
+            teardownTimer = new Timer("tenant-teardown", true);
+            teardownTimer.schedule(teardownTask, teardownPollInterval, teardownPollInterval);
+        } catch (Exception e) {
+            Debug.logError(e, "Could not start the tenant teardown", module);
+        }
+        
         return false;
     }
 
     public void stop() throws ContainerException {
-
+        if (evictionTimer != null) {
+            evictionTimer.cancel();
+        }
+        if (warmPoolTimer != null) {
+            warmPoolTimer.cancel();
+        }
+        if (provisionTimer != null) {
+            provisionTask.cancel();
+            provisionTimer.cancel();
+        }
+        if (teardownTimer != null) {
+            teardownTask.cancel();
+            teardownTimer.cancel();
+        }
+        TenantBackupWriter.shutdown();
+        TenantAdminConnectionPool.closePools();
     }
 
     public String getName() {
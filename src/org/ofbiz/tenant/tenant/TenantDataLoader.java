@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.component.ComponentConfig;
+import org.ofbiz.base.location.FlexibleLocation;
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.StringUtil;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.datasource.GenericHelperInfo;
+import org.ofbiz.entity.jdbc.DatabaseUtil;
+import org.ofbiz.entity.model.ModelEntity;
+import org.ofbiz.entity.model.ModelReader;
+import org.ofbiz.entity.model.ModelRelation;
+import org.ofbiz.entity.tenant.TenantActivity;
+import org.ofbiz.entity.util.EntityDataLoader;
+import org.ofbiz.tenant.component.TenantComponentDataCache;
+
+/**
+ * Tenant Data Loader
+ * <p>
+ * Loads the data files of a tenant in parallel. The entities of every file are read first and
+ * compared with the foreign keys of the tenant entity model, a file is loaded after every earlier
+ * file which writes the same entities or the entities it refers to. Files without such a
+ * dependency are loaded at the same time, each in its own thread, transaction and connection.
+ * <p>
+ * Transform files and files with entities which are not in the tenant entity model are loaded
+ * alone, in the order of the readers.
+ */
+public class TenantDataLoader {
+
+    public final static String module = TenantDataLoader.class.getName();
+
+    public final static String ENTITY_GROUP_NAME = "org.ofbiz";
+
+    private final static Set<String> ACTION_ELEMENT_NAMES = UtilMisc.toSet("create", "create-update", "create-replace", "delete");
+
+    protected String tenantId;
+    protected Delegator delegator;
+    protected Delegator tenantDelegator;
+    protected int maxThreads = 4;
+    protected int transactionTimeout = 7200;
+
+    private final List<URL> loadedUrls = Collections.synchronizedList(new LinkedList<URL>());
+
+    /**
+     * Constructor
+     * @param tenantId
+     * @param delegator the base delegator
+     * @param maxThreads the maximum number of files loaded at the same time
+     */
+    public TenantDataLoader(String tenantId, Delegator delegator, int maxThreads) {
+        this.tenantId = tenantId;
+        this.delegator = delegator;
+        this.tenantDelegator = DelegatorFactory.getDelegator(delegator.getDelegatorBaseName() + "#" + tenantId);
+        this.maxThreads = Math.max(maxThreads, 1);
+    }
+
+    /**
+     * load data of readers or files, the default readers are used if both are empty
+     * @param readers
+     * @param files
+     * @return the number of values loaded
+     * @throws Exception
+     */
+    public long load(String readers, String files) throws Exception {
+        TenantActivity.begin(tenantId);
+        try {
+            GenericHelperInfo helperInfo = tenantDelegator.getGroupHelperInfo(ENTITY_GROUP_NAME);
+
+            // create missing tables
+            List<String> messages = FastList.newInstance();
+            DatabaseUtil dbUtil = new DatabaseUtil(helperInfo);
+            dbUtil.checkDb(tenantDelegator.getModelEntityMapByGroup(ENTITY_GROUP_NAME), messages, true);
+            dbUtil.close();
+
+            // read entities of the files and order them by dependencies
+            List<URL> urls = getUrls(tenantId, helperInfo.getHelperBaseName(), readers, files, delegator);
+            List<DataFile> dataFiles = FastList.newInstance();
+            for (URL url : urls) {
+                dataFiles.add(readDataFile(url));
+            }
+            List<List<DataFile>> levels = getLevels(dataFiles);
+            Debug.logInfo("Loading " + dataFiles.size() + " files of tenant [" + tenantId + "] in " + levels.size() + " steps", module);
+
+            // load the files of each level in parallel
+            long numberLoaded = 0;
+            List<Object> errorMessages = FastList.newInstance();
+            ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+            try {
+                for (List<DataFile> level : levels) {
+                    List<Future<Integer>> futures = FastList.newInstance();
+                    for (DataFile dataFile : level) {
+                        futures.add(executor.submit(new LoadTask(dataFile.url, helperInfo.getHelperBaseName(), errorMessages)));
+                    }
+                    for (Future<Integer> future : futures) {
+                        numberLoaded += future.get();
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+
+            if (UtilValidate.isNotEmpty(errorMessages)) {
+                for (Object errorMessage : errorMessages) {
+                    Debug.logError("Tenant [" + tenantId + "] data load error: " + errorMessage, module);
+                }
+                throw new GenericEntityException("Could not load " + errorMessages.size() + " files of tenant [" + tenantId + "], " + numberLoaded + " values were loaded");
+            }
+            Debug.logInfo("Loaded " + numberLoaded + " values of tenant [" + tenantId + "]", module);
+            return numberLoaded;
+        } finally {
+            TenantActivity.end(tenantId);
+        }
+    }
+
+    /**
+     * get the files which have been loaded without errors
+     * @return
+     */
+    public List<URL> getLoadedUrls() {
+        return loadedUrls;
+    }
+
+    /**
+     * get data URLs of the tenant components, the same as the data load container
+     * @param tenantId
+     * @param helperName
+     * @param readers
+     * @param files
+     * @param delegator the base delegator
+     * @return
+     * @throws Exception
+     */
+    public static List<URL> getUrls(String tenantId, String helperName, String readers, String files, Delegator delegator) throws Exception {
+        List<URL> urls = FastList.newInstance();
+        if (UtilValidate.isNotEmpty(readers) || UtilValidate.isEmpty(files)) {
+            List<String> componentNames = TenantComponentDataCache.getComponentNames(tenantId, delegator);
+            List<String> components = FastList.newInstance();
+            for (ComponentConfig component : ComponentConfig.getTenantComponents(componentNames)) {
+                components.add(component.getComponentName());
+            }
+            urls.addAll(TenantComponentDataCache.getUrls(helperName, components, readers));
+
+            // load tenant reader data from hot-deploy components if requested
+            List<String> readerNames = StringUtil.split(readers, ",");
+            if (UtilValidate.isNotEmpty(readerNames) && readerNames.contains("tenant")) {
+                List<String> hotDeployComponents = FastList.newInstance();
+                for (ComponentConfig component : ComponentConfig.getHotDeployComponents()) {
+                    hotDeployComponents.add(component.getComponentName());
+                }
+                urls.addAll(TenantComponentDataCache.getUrls(helperName, hotDeployComponents, "tenant"));
+            }
+        }
+        if (UtilValidate.isNotEmpty(files)) {
+            for (String file : StringUtil.split(files, ",")) {
+                URL url = FlexibleLocation.resolveLocation(file.trim());
+                if (url == null) {
+                    throw new GenericEntityException("Could not find data file: " + file);
+                }
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * read the entities of a data file and the entities they refer to
+     * @param url
+     * @return
+     */
+    protected DataFile readDataFile(URL url) {
+        DataFile dataFile = new DataFile(url);
+        ModelReader modelReader = tenantDelegator.getModelReader();
+        InputStream is = null;
+        XMLStreamReader reader = null;
+        try {
+            is = url.openStream();
+            reader = XMLInputFactory.newInstance().createXMLStreamReader(is);
+            int depth = 0;
+            boolean inAction = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String name = reader.getLocalName();
+                    if (depth == 1) {
+                        if (!"entity-engine-xml".equals(name)) {
+                            dataFile.ordered = true;
+                            break;
+                        }
+                    } else if (depth == 2 && ACTION_ELEMENT_NAMES.contains(name)) {
+                        inAction = true;
+                    } else if (depth == 2 || (depth == 3 && inAction)) {
+                        if (!dataFile.entityNames.contains(name)) {
+                            ModelEntity modelEntity = modelReader.getModelEntityNoCheck(name);
+                            if (modelEntity == null) {
+                                dataFile.ordered = true;
+                                break;
+                            }
+                            dataFile.entityNames.add(name);
+                            dataFile.relatedEntityNames.add(name);
+                            Iterator<ModelRelation> relations = modelEntity.getRelationsIterator();
+                            while (relations.hasNext()) {
+                                ModelRelation relation = relations.next();
+                                if ("one".equals(relation.getType())) {
+                                    dataFile.relatedEntityNames.add(relation.getRelEntityName());
+                                }
+                            }
+                        }
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 2) {
+                        inAction = false;
+                    }
+                    depth--;
+                }
+            }
+        } catch (Exception e) {
+            Debug.logWarning(e, "Could not read entities of data file, load it alone: " + url, module);
+            dataFile.ordered = true;
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+                if (is != null) {
+                    is.close();
+                }
+            } catch (Exception e) {
+                Debug.logWarning(e, module);
+            }
+        }
+        return dataFile;
+    }
+
+    /**
+     * put every file one level after the last earlier file it depends on
+     * @param dataFiles
+     * @return
+     */
+    public static List<List<DataFile>> getLevels(List<DataFile> dataFiles) {
+        List<List<DataFile>> levels = FastList.newInstance();
+        Map<DataFile, Integer> fileLevels = FastMap.newInstance();
+        for (int i = 0; i < dataFiles.size(); i++) {
+            DataFile dataFile = dataFiles.get(i);
+            int level = 0;
+            for (int j = 0; j < i; j++) {
+                DataFile earlierFile = dataFiles.get(j);
+                int earlierLevel = fileLevels.get(earlierFile);
+                if (earlierLevel >= level && dataFile.dependsOn(earlierFile)) {
+                    level = earlierLevel + 1;
+                }
+            }
+            fileLevels.put(dataFile, level);
+            while (levels.size() <= level) {
+                List<DataFile> newLevel = FastList.newInstance();
+                levels.add(newLevel);
+            }
+            levels.get(level).add(dataFile);
+        }
+        return levels;
+    }
+
+    /**
+     * a data file with its entities
+     */
+    public static class DataFile {
+
+        protected URL url;
+        protected boolean ordered = false;
+        protected Set<String> entityNames = FastSet.newInstance();
+        protected Set<String> relatedEntityNames = FastSet.newInstance();
+
+        protected DataFile(URL url) {
+            this.url = url;
+        }
+
+        /**
+         * Constructor
+         * @param url
+         * @param entityNames the entities of the file
+         * @param relatedEntityNames the entities of the file and the entities they refer to
+         */
+        public DataFile(URL url, Collection<String> entityNames, Collection<String> relatedEntityNames) {
+            this.url = url;
+            this.entityNames.addAll(entityNames);
+            this.relatedEntityNames.addAll(relatedEntityNames);
+        }
+
+        /**
+         * get the url of the file
+         * @return
+         */
+        public URL getUrl() {
+            return url;
+        }
+
+        protected boolean dependsOn(DataFile earlierFile) {
+            if (ordered || earlierFile.ordered) {
+                return true;
+            }
+            return intersects(relatedEntityNames, earlierFile.entityNames) || intersects(entityNames, earlierFile.relatedEntityNames);
+        }
+
+        private static boolean intersects(Collection<String> names, Set<String> otherNames) {
+            for (String name : names) {
+                if (otherNames.contains(name)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * loads one data file
+     */
+    protected class LoadTask implements Callable<Integer> {
+
+        protected URL url;
+        protected String helperName;
+        protected List<Object> errorMessages;
+
+        protected LoadTask(URL url, String helperName, List<Object> errorMessages) {
+            this.url = url;
+            this.helperName = helperName;
+            this.errorMessages = errorMessages;
+        }
+
+        public Integer call() throws Exception {
+            List<Object> fileErrorMessages = FastList.newInstance();
+            int numberLoaded = 0;
+            try {
+                numberLoaded = EntityDataLoader.loadData(url, helperName, tenantDelegator, fileErrorMessages, transactionTimeout, false, false, false);
+            } catch (Exception e) {
+                fileErrorMessages.add("Could not load " + url + " : " + e.getMessage());
+            }
+            if (UtilValidate.isNotEmpty(fileErrorMessages)) {
+                synchronized (errorMessages) {
+                    errorMessages.addAll(fileErrorMessages);
+                }
+            } else {
+                loadedUrls.add(url);
+            }
+            return numberLoaded;
+        }
+    }
+}
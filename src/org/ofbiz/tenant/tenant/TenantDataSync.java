@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.io.File;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+
+/**
+ * Tenant Data Sync
+ * <p>
+ * Keeps the data files loaded into a tenant with a SHA-256 checksum of their content in
+ * TenantDataFile, so the data of an upgraded component can be synchronized by loading only
+ * the files which are new or changed since the last load. Values removed from a file are
+ * not removed from the tenant database.
+ */
+public class TenantDataSync {
+
+    public final static String module = TenantDataSync.class.getName();
+
+    /**
+     * get the location of a data file relative to the OFBiz home, so it is the same on every node
+     * @param url
+     * @return
+     */
+    public static String getFileLocation(URL url) {
+        String location = url.toExternalForm();
+        String ofbizHome = System.getProperty("ofbiz.home");
+        if (UtilValidate.isNotEmpty(ofbizHome)) {
+            String homeLocation = new File(ofbizHome).toURI().toString();
+            if (location.startsWith(homeLocation)) {
+                return location.substring(homeLocation.length());
+            }
+        }
+        return location;
+    }
+
+    /**
+     * get the ID of a data file, a SHA-1 of its location
+     * @param fileLocation
+     * @return
+     */
+    public static String getFileId(String fileLocation) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(fileLocation.getBytes("UTF-8"));
+            return String.format("%040x", new BigInteger(1, digest));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * get SHA-256 checksum of the content of a data file
+     * @param url
+     * @return
+     * @throws Exception
+     */
+    public static String getChecksum(URL url) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        InputStream is = url.openStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = is.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, length);
+            }
+        } finally {
+            is.close();
+        }
+        return String.format("%064x", new BigInteger(1, messageDigest.digest()));
+    }
+
+    /**
+     * record data files as loaded into a tenant
+     * @param tenantId
+     * @param urls
+     * @param delegator the base delegator
+     * @throws Exception
+     */
+    public static void recordDataFiles(String tenantId, List<URL> urls, Delegator delegator) throws Exception {
+        List<GenericValue> tenantDataFiles = FastList.newInstance();
+        for (URL url : urls) {
+            String fileLocation = getFileLocation(url);
+            tenantDataFiles.add(delegator.makeValue("TenantDataFile", UtilMisc.toMap("tenantId", tenantId, "fileId", getFileId(fileLocation)
+                    , "fileLocation", fileLocation, "checksum", getChecksum(url), "loadedDate", UtilDateTime.nowTimestamp())));
+        }
+        delegator.storeAll(tenantDataFiles);
+    }
+
+    /**
+     * copy the data file records of a template to a tenant which has been copied from it
+     * @param templateTenantId
+     * @param tenantId
+     * @param delegator the base delegator
+     * @throws GenericEntityException
+     */
+    public static void copyDataFiles(String templateTenantId, String tenantId, Delegator delegator) throws GenericEntityException {
+        List<GenericValue> templateDataFiles = delegator.findByAnd("TenantDataFile", UtilMisc.toMap("tenantId", templateTenantId), null, false);
+        List<GenericValue> tenantDataFiles = FastList.newInstance();
+        for (GenericValue templateDataFile : templateDataFiles) {
+            GenericValue tenantDataFile = (GenericValue) templateDataFile.clone();
+            tenantDataFile.set("tenantId", tenantId);
+            tenantDataFiles.add(tenantDataFile);
+        }
+        delegator.storeAll(tenantDataFiles);
+    }
+
+    /**
+     * load the data files of a tenant which are new or changed since they were loaded
+     * @param tenantId
+     * @param readers
+     * @param checksums checksums by file location shared between tenants of one sync
+     * @param delegator the base delegator
+     * @return the number of files loaded
+     * @throws Exception
+     */
+    public static int sync(String tenantId, String readers, Map<String, String> checksums, Delegator delegator) throws Exception {
+        String helperName = delegator.getGroupHelperInfo(TenantDataLoader.ENTITY_GROUP_NAME).getHelperBaseName();
+        List<URL> urls = TenantDataLoader.getUrls(tenantId, helperName, readers, null, delegator);
+
+        // compare checksums with the loaded files
+        List<GenericValue> loadedDataFiles = delegator.findByAnd("TenantDataFile", UtilMisc.toMap("tenantId", tenantId), null, false);
+        Map<String, String> loadedChecksums = FastMap.newInstance();
+        for (GenericValue loadedDataFile : loadedDataFiles) {
+            loadedChecksums.put(loadedDataFile.getString("fileLocation"), loadedDataFile.getString("checksum"));
+        }
+        List<URL> changedUrls = FastList.newInstance();
+        StringBuilder filesBuilder = new StringBuilder();
+        for (URL url : urls) {
+            String fileLocation = getFileLocation(url);
+            String checksum = checksums.get(fileLocation);
+            if (checksum == null) {
+                checksum = getChecksum(url);
+                checksums.put(fileLocation, checksum);
+            }
+            if (!checksum.equals(loadedChecksums.get(fileLocation))) {
+                changedUrls.add(url);
+                if (filesBuilder.length() > 0) {
+                    filesBuilder.append(",");
+                }
+                filesBuilder.append(url.toExternalForm());
+            }
+        }
+        if (UtilValidate.isEmpty(changedUrls)) {
+            if (Debug.verboseOn()) Debug.logVerbose("Tenant [" + tenantId + "] data is up to date", module);
+            return 0;
+        }
+
+        Debug.logInfo("Loading " + changedUrls.size() + " new or changed data files of tenant [" + tenantId + "]", module);
+        // in bulk only into a fresh tenant, the bulk loader drops the foreign keys while loading
+        TenantInstaller.loadData(tenantId, null, filesBuilder.toString(), UtilValidate.isEmpty(loadedChecksums), delegator);
+        return changedUrls.size();
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TimerTask;
+
+import javolution.util.FastList;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.tenant.TenantActivity;
+
+/**
+ * Tenant Eviction Task
+ * <p>
+ * Deactivates tenants which have been idle longer than the idle timeout, then the least
+ * recently used tenants while the node is over its active tenant or free memory budget.
+ * Tenants with requests in flight are never deactivated.
+ */
+public class TenantEvictionTask extends TimerTask {
+
+    public final static String module = TenantEvictionTask.class.getName();
+
+    protected Delegator delegator;
+    protected int maxActiveTenants = 0;
+    protected long idleTimeout = 0;
+    protected int minFreeMemoryPercent = 0;
+    protected int maxEvictionsPerRun = 10;
+
+    /**
+     * Constructor
+     * @param delegator the base delegator
+     * @param maxActiveTenants 0 means no limit
+     * @param idleTimeout in milliseconds, 0 means no timeout
+     * @param minFreeMemoryPercent 0 means no memory budget
+     * @param maxEvictionsPerRun the maximum number of tenants deactivated by the budgets in one run
+     */
+    public TenantEvictionTask(Delegator delegator, int maxActiveTenants, long idleTimeout, int minFreeMemoryPercent, int maxEvictionsPerRun) {
+        this.delegator = delegator;
+        this.maxActiveTenants = maxActiveTenants;
+        this.idleTimeout = idleTimeout;
+        this.minFreeMemoryPercent = minFreeMemoryPercent;
+        this.maxEvictionsPerRun = maxEvictionsPerRun;
+    }
+
+    @Override
+    public void run() {
+        try {
+            long now = System.currentTimeMillis();
+            
+            // sort active tenants by last access time, the least recently used first
+            List<Map.Entry<String, Long>> lastAccessTimes = FastList.newInstance();
+            lastAccessTimes.addAll(TenantActivity.getLastAccessTimes().entrySet());
+            Collections.sort(lastAccessTimes, new Comparator<Map.Entry<String, Long>>() {
+                public int compare(Map.Entry<String, Long> entry1, Map.Entry<String, Long> entry2) {
+                    return entry1.getValue().compareTo(entry2.getValue());
+                }
+            });
+            
+            int activeTenants = lastAccessTimes.size();
+            int evictions = 0;
+            for (Map.Entry<String, Long> lastAccessTime : lastAccessTimes) {
+                String tenantId = lastAccessTime.getKey();
+                if (TenantContainer.DEFAULT_TENANT_ID.equals(tenantId)) {
+                    // the default tenant shares the database of the base delegator
+                    continue;
+                }
+                if (TenantActivity.getActiveRequests(tenantId) > 0) {
+                    // the tenant is serving requests, closing its pools would break them
+                    continue;
+                }
+                boolean isIdle = idleTimeout > 0 && now - lastAccessTime.getValue() > idleTimeout;
+                boolean isOverBudget = evictions < maxEvictionsPerRun && (isOverTenantBudget(activeTenants) || isOverMemoryBudget());
+                if (!isIdle && !isOverBudget) {
+                    // the rest have been used more recently
+                    break;
+                }
+                try {
+                    TenantRuntime.deactivateTenant(tenantId, delegator);
+                    activeTenants--;
+                    if (!isIdle) {
+                        evictions++;
+                    }
+                } catch (Exception e) {
+                    Debug.logWarning(e, "Could not deactivate tenant: " + tenantId, module);
+                }
+            }
+        } catch (Exception e) {
+            // Catch all exceptions so the timer will continue running
+            Debug.logError(e, "Tenant eviction error: " + e, module);
+        }
+    }
+
+    protected boolean isOverTenantBudget(int activeTenants) {
+        return maxActiveTenants > 0 && activeTenants > maxActiveTenants;
+    }
+
+    protected boolean isOverMemoryBudget() {
+        if (minFreeMemoryPercent <= 0) {
+            return false;
+        }
+        Runtime runtime = Runtime.getRuntime();
+        long freeMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return freeMemory * 100 < runtime.maxMemory() * minFreeMemoryPercent;
+    }
+}
@@ -0,0 +1,313 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.tenant.TenantActivity;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityUtilProperties;
+import org.ofbiz.service.LocalDispatcher;
+import org.ofbiz.service.ServiceUtil;
+import org.ofbiz.tenant.jdbc.TenantBulkLoader;
+import org.ofbiz.tenant.jdbc.TenantConnectionFactory;
+import org.ofbiz.tenant.util.TenantUtil;
+
+/**
+ * Tenant Installer
+ * <p>
+ * Installs the data of many tenants in parallel. The number of tenants installed at the same
+ * time is limited in total and per database server. The progress of every tenant is kept in
+ * TenantInstallStatus, so a failed tenant does not stop the others and an interrupted run
+ * continues with the tenants which have not been completed.
+ */
+public class TenantInstaller {
+
+    public final static String module = TenantInstaller.class.getName();
+    
+    public final static String STATUS_QUEUED = "TNT_INST_QUEUED";
+    public final static String STATUS_RUNNING = "TNT_INST_RUNNING";
+    public final static String STATUS_COMPLETED = "TNT_INST_COMPLETED";
+    public final static String STATUS_FAILED = "TNT_INST_FAILED";
+    
+    private final static String EMBEDDED_SERVER_NAME = "embedded";
+    
+    protected Delegator delegator;
+    protected LocalDispatcher dispatcher;
+    protected int maxThreads = 4;
+    protected int maxThreadsPerServer = 2;
+    
+    /**
+     * Constructor
+     * @param delegator the base delegator
+     * @param dispatcher
+     * @param maxThreads the maximum number of tenants installed at the same time
+     * @param maxThreadsPerServer the maximum number of tenants installed at the same time on one database server
+     */
+    public TenantInstaller(Delegator delegator, LocalDispatcher dispatcher, int maxThreads, int maxThreadsPerServer) {
+        this.delegator = delegator;
+        this.dispatcher = dispatcher;
+        this.maxThreads = Math.max(maxThreads, 1);
+        this.maxThreadsPerServer = Math.max(maxThreadsPerServer, 1);
+    }
+    
+    /**
+     * load data of a tenant, in bulk by {@link TenantBulkLoader} if bulkDataLoad is Y and the tenant is disabled or fresh
+     * or by {@link TenantDataLoader}, in parallel if parallelDataLoad is Y.
+     * The files loaded without errors are recorded for syncing them later.
+     * @param tenantId
+     * @param readers
+     * @param files
+     * @param delegator the base delegator
+     * @throws Exception
+     */
+    public static void loadData(String tenantId, String readers, String files, Delegator delegator) throws Exception {
+        loadData(tenantId, readers, files, true, delegator);
+    }
+
+    /**
+     * load data of a tenant
+     * @param tenantId
+     * @param readers
+     * @param files
+     * @param allowBulk false to never load in bulk, e.g. when syncing a tenant which may be in use
+     * @param delegator the base delegator
+     * @throws Exception
+     */
+    public static void loadData(String tenantId, String readers, String files, boolean allowBulk, Delegator delegator) throws Exception {
+        TenantActivity.begin(tenantId);
+        try {
+            if (TransactionUtil.getStatus() == TransactionUtil.STATUS_ACTIVE) {
+                TransactionUtil.commit();
+            }
+        
+            List<URL> loadedUrls = null;
+            try {
+                if (allowBulk && "Y".equals(EntityUtilProperties.getPropertyValue("tenant", "bulkDataLoad", "N", delegator))
+                        && TenantBulkLoader.isBulkLoadable(tenantId, delegator)) {
+                    int batchSize = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "bulkBatchSize", "1000", delegator));
+                    TenantBulkLoader tenantBulkLoader = new TenantBulkLoader(tenantId, TenantDataLoader.ENTITY_GROUP_NAME, delegator, batchSize);
+                    loadedUrls = tenantBulkLoader.getLoadedUrls();
+                    tenantBulkLoader.load(readers, files);
+                } else {
+                    // the data load container does not tell which files failed, so the files are loaded one by one instead
+                    int maxThreads = 1;
+                    if ("Y".equals(EntityUtilProperties.getPropertyValue("tenant", "parallelDataLoad", "N", delegator))) {
+                        maxThreads = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "dataLoadMaxThreads", "4", delegator));
+                    }
+                    TenantDataLoader tenantDataLoader = new TenantDataLoader(tenantId, delegator, maxThreads);
+                    loadedUrls = tenantDataLoader.getLoadedUrls();
+                    tenantDataLoader.load(readers, files);
+                }
+            } finally {
+                // record the loaded files for syncing them later, a failed file is loaded again by the next sync
+                if (UtilValidate.isNotEmpty(loadedUrls)) {
+                    try {
+                        TenantDataSync.recordDataFiles(tenantId, loadedUrls, delegator);
+                    } catch (Exception e) {
+                        Debug.logWarning(e, "Could not record the data files of tenant: " + tenantId, module);
+                    }
+                }
+            }
+        } finally {
+            TenantActivity.end(tenantId);
+        }
+    }
+    
+    /**
+     * install tenants, tenants which have been completed are skipped unless they are reinstalled
+     * @param tenantIds
+     * @param reinstall
+     * @return the number of tenants per status
+     * @throws GenericEntityException
+     */
+    public Map<String, Integer> install(List<String> tenantIds, boolean reinstall) throws GenericEntityException {
+        // queue tenants grouped by database server
+        Map<String, Queue<String>> serverTenantIds = FastMap.newInstance();
+        int queued = 0;
+        int skipped = 0;
+        for (String tenantId : tenantIds) {
+            GenericValue installStatus = delegator.findOne("TenantInstallStatus", UtilMisc.toMap("tenantId", tenantId), false);
+            if (!reinstall && UtilValidate.isNotEmpty(installStatus) && STATUS_COMPLETED.equals(installStatus.getString("statusId"))) {
+                skipped++;
+                continue;
+            }
+            if (!TenantUtil.isSameJdbcType(tenantId, delegator)) {
+                Debug.logWarning("Tenant [" + tenantId + "] does not have the same JDBC type as " + delegator.getDelegatorName(), module);
+                skipped++;
+                continue;
+            }
+            String jdbcServerName = getJdbcServerName(tenantId, delegator);
+            if (UtilValidate.isEmpty(installStatus)) {
+                installStatus = delegator.makeValue("TenantInstallStatus", UtilMisc.toMap("tenantId", tenantId, "attempts", Long.valueOf(0)));
+            }
+            installStatus.set("statusId", STATUS_QUEUED);
+            installStatus.set("jdbcServerName", jdbcServerName);
+            installStatus.set("errorMessage", null);
+            delegator.createOrStore(installStatus);
+            
+            Queue<String> queuedTenantIds = serverTenantIds.get(jdbcServerName);
+            if (queuedTenantIds == null) {
+                queuedTenantIds = new ConcurrentLinkedQueue<String>();
+                serverTenantIds.put(jdbcServerName, queuedTenantIds);
+            }
+            queuedTenantIds.add(tenantId);
+            queued++;
+        }
+        
+        // submit the first tenants of each server in turn, so one server does not hold all threads.
+        // a finished tenant submits the next one of its server, so workers never wait for a server.
+        CountDownLatch installed = new CountDownLatch(queued);
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+        try {
+            for (int i = 0; i < maxThreadsPerServer; i++) {
+                for (Map.Entry<String, Queue<String>> entry : serverTenantIds.entrySet()) {
+                    String tenantId = entry.getValue().poll();
+                    if (tenantId != null) {
+                        executor.execute(new InstallTask(tenantId, entry.getKey(), entry.getValue(), executor, installed, completed, failed));
+                    }
+                }
+            }
+            installed.await();
+            Debug.logInfo("Installed tenants: " + completed + " completed, " + failed + " failed, " + skipped + " skipped", module);
+            return UtilMisc.toMap(STATUS_COMPLETED, completed.get(), STATUS_FAILED, failed.get(), "skipped", skipped);
+        } catch (InterruptedException e) {
+            throw new GenericEntityException("Interrupted while installing tenants", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    /**
+     * get the database server of a tenant
+     * @param tenantId
+     * @param delegator the base delegator
+     * @return
+     */
+    public static String getJdbcServerName(String tenantId, Delegator delegator) {
+        String jdbcServerName = null;
+        try {
+            jdbcServerName = TenantConnectionFactory.getTenantJdbcConnectionHandler(tenantId, "org.ofbiz", delegator).getJdbcServerName();
+        } catch (Exception e) {
+            Debug.logWarning(e, "Could not get the database server of tenant: " + tenantId, module);
+        }
+        return UtilValidate.isNotEmpty(jdbcServerName) ? jdbcServerName : EMBEDDED_SERVER_NAME;
+    }
+    
+    protected void updateStatus(String tenantId, Map<String, ? extends Object> fields) {
+        try {
+            GenericValue installStatus = delegator.findOne("TenantInstallStatus", UtilMisc.toMap("tenantId", tenantId), false);
+            installStatus.setNonPKFields(fields);
+            installStatus.store();
+        } catch (GenericEntityException e) {
+            Debug.logError(e, "Could not update the install status of tenant: " + tenantId, module);
+        }
+    }
+    
+    /**
+     * installs one tenant, then submits the next queued tenant of the same database server
+     */
+    protected class InstallTask implements Runnable {
+        
+        protected String tenantId;
+        protected String jdbcServerName;
+        protected Queue<String> queuedTenantIds;
+        protected ExecutorService executor;
+        protected CountDownLatch installed;
+        protected AtomicInteger completed;
+        protected AtomicInteger failed;
+        
+        protected InstallTask(String tenantId, String jdbcServerName, Queue<String> queuedTenantIds, ExecutorService executor
+                , CountDownLatch installed, AtomicInteger completed, AtomicInteger failed) {
+            this.tenantId = tenantId;
+            this.jdbcServerName = jdbcServerName;
+            this.queuedTenantIds = queuedTenantIds;
+            this.executor = executor;
+            this.installed = installed;
+            this.completed = completed;
+            this.failed = failed;
+        }
+        
+        public void run() {
+            try {
+                if (install()) {
+                    completed.incrementAndGet();
+                } else {
+                    failed.incrementAndGet();
+                }
+            } finally {
+                installed.countDown();
+            }
+            String nextTenantId = queuedTenantIds.poll();
+            if (nextTenantId != null) {
+                try {
+                    executor.execute(new InstallTask(nextTenantId, jdbcServerName, queuedTenantIds, executor, installed, completed, failed));
+                } catch (RejectedExecutionException e) {
+                    Debug.logWarning("Installation interrupted before tenant: " + nextTenantId, module);
+                }
+            }
+        }
+        
+        protected boolean install() {
+            try {
+                GenericValue installStatus = delegator.findOne("TenantInstallStatus", UtilMisc.toMap("tenantId", tenantId), false);
+                Long attempts = installStatus.getLong("attempts");
+                updateStatus(tenantId, UtilMisc.toMap("statusId", STATUS_RUNNING, "startDate", UtilDateTime.nowTimestamp(), "endDate", null
+                        , "attempts", Long.valueOf(attempts == null ? 1 : attempts.longValue() + 1)));
+                
+                Map<String, Object> readersInMap = FastMap.newInstance();
+                readersInMap.put("tenantId", tenantId);
+                Map<String, Object> results = dispatcher.runSync("getTenantComponentDataReaders", readersInMap);
+                if (ServiceUtil.isError(results)) {
+                    throw new Exception(ServiceUtil.getErrorMessage(results));
+                }
+                String readers = (String) results.get("readers");
+                updateStatus(tenantId, UtilMisc.toMap("readers", readers));
+                
+                loadData(tenantId, readers, null, delegator);
+                updateStatus(tenantId, UtilMisc.toMap("statusId", STATUS_COMPLETED, "endDate", UtilDateTime.nowTimestamp()));
+                return true;
+            } catch (Exception e) {
+                Debug.logError(e, "Could not install tenant: " + tenantId, module);
+                updateStatus(tenantId, UtilMisc.toMap("statusId", STATUS_FAILED, "endDate", UtilDateTime.nowTimestamp(), "errorMessage", e.toString()));
+                return false;
+            }
+        }
+    }
+}
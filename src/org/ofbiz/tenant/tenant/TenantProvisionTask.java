@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.service.LocalDispatcher;
+
+/**
+ * Tenant Provision Task
+ * <p>
+ * Fails provisioning steps whose lease has expired, then runs
+ * the steps of the queued tenants on a pool of worker threads, see {@link TenantProvisioner}.
+ * A tenant is run by one worker of this node at a time, and tenants are only taken while a worker
+ * and a permit of their database server are free, the others wait in the queue for the next run.
+ */
+public class TenantProvisionTask extends TimerTask {
+
+    public final static String module = TenantProvisionTask.class.getName();
+
+    protected Delegator delegator;
+    protected LocalDispatcher dispatcher;
+    protected int maxThreads = 2;
+    protected int maxThreadsPerServer = 2;
+    protected int maxAttempts = 3;
+    protected long stepTimeout = 0;
+    protected long retryDelay = 0;
+    protected ExecutorService executor;
+    protected Set<String> runningTenantIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ConcurrentHashMap<String, Semaphore> serverPermits = new ConcurrentHashMap<String, Semaphore>();
+
+    /**
+     * Constructor
+     * @param delegator the base delegator
+     * @param dispatcher
+     * @param maxThreads the number of worker threads
+     * @param maxThreadsPerServer the maximum number of tenants provisioned at the same time on one database server
+     * @param maxAttempts the maximum number of attempts of a step
+     * @param stepTimeout in milliseconds, the lease time of a running step, 0 means running steps never fail
+     * @param retryDelay in milliseconds, the delay before the first retry of a failed step
+     */
+    public TenantProvisionTask(Delegator delegator, LocalDispatcher dispatcher, int maxThreads, int maxThreadsPerServer, int maxAttempts, long stepTimeout, long retryDelay) {
+        this.delegator = delegator;
+        this.dispatcher = dispatcher;
+        this.maxThreads = maxThreads;
+        this.maxThreadsPerServer = maxThreadsPerServer;
+        this.maxAttempts = maxAttempts;
+        this.stepTimeout = stepTimeout;
+        this.retryDelay = retryDelay;
+        this.executor = Executors.newFixedThreadPool(maxThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tenant-provisioner-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (stepTimeout > 0) {
+                int failed = TenantProvisioner.failStaleSteps(delegator);
+                if (failed > 0) {
+                    Debug.logWarning("Tenant provisioner: failed " + failed + " steps whose lease expired", module);
+                }
+            }
+            List<String> tenantIds = TenantProvisioner.getQueuedTenantIds(delegator, maxAttempts, retryDelay);
+            for (final String tenantId : tenantIds) {
+                if (runningTenantIds.size() >= maxThreads) {
+                    break;
+                }
+                if (runningTenantIds.contains(tenantId)) {
+                    continue;
+                }
+                final Semaphore permits = getServerPermits(TenantInstaller.getJdbcServerName(tenantId, delegator));
+                if (!permits.tryAcquire()) {
+                    continue;
+                }
+                runningTenantIds.add(tenantId);
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            try {
+                                TenantProvisioner.provision(tenantId, delegator, dispatcher, maxAttempts, retryDelay, stepTimeout);
+                            } catch (Exception e) {
+                                Debug.logError(e, "Could not provision tenant: " + tenantId, module);
+                            } finally {
+                                runningTenantIds.remove(tenantId);
+                                permits.release();
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    // the task has not been taken, e.g. the executor has been shut down
+                    runningTenantIds.remove(tenantId);
+                    permits.release();
+                    throw e;
+                }
+            }
+        } catch (Exception e) {
+            // Catch all exceptions so the timer will continue running
+            Debug.logError(e, "Tenant provisioner error: " + e, module);
+        }
+    }
+
+    protected Semaphore getServerPermits(String jdbcServerName) {
+        Semaphore permits = serverPermits.get(jdbcServerName);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(maxThreadsPerServer);
+            permits = serverPermits.putIfAbsent(jdbcServerName, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+
+    @Override
+    public boolean cancel() {
+        executor.shutdownNow();
+        return super.cancel();
+    }
+}
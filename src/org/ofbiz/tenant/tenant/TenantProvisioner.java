@@ -0,0 +1,349 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.jdbc.DatabaseUtil;
+import org.ofbiz.entity.tenant.TenantActivity;
+import org.ofbiz.entity.tenant.TenantRoutingTable;
+import org.ofbiz.entity.util.EntityUtilProperties;
+import org.ofbiz.service.LocalDispatcher;
+import org.ofbiz.service.ServiceUtil;
+import org.ofbiz.tenant.util.TenantUtil;
+
+/**
+ * Tenant Provisioner
+ * <p>
+ * Provisions a tenant in steps which are kept in TenantProvisionStep: create the databases
+ * and their users, create the tables, load the reader data and refresh the tenant routes.
+ * When asyncProvisioning is Y, creating a tenant data source only queues the steps and they are
+ * run by the background workers of {@link TenantProvisionTask}. Every step can be run again,
+ * so a failed step is retried and a queued tenant continues with the first step which has not
+ * been completed.
+ * <p>
+ * A running step has a lease which its worker renews while the step runs, a step whose lease has
+ * expired, e.g. because its node has stopped, is failed. A worker only records the end of a step
+ * which it still has claimed. A failed step is retried after a delay which doubles with every attempt.
+ * <p>
+ * Template and spare tenants are always created synchronously, they are built in the background already.
+ */
+public class TenantProvisioner {
+
+    public final static String module = TenantProvisioner.class.getName();
+
+    public final static String STATUS_PENDING = "TNT_PROV_PENDING";
+    public final static String STATUS_RUNNING = "TNT_PROV_RUNNING";
+    public final static String STATUS_COMPLETED = "TNT_PROV_COMPLETED";
+    public final static String STATUS_FAILED = "TNT_PROV_FAILED";
+
+    public final static String STEP_CREATE_DATABASES = "CREATE_DATABASES";
+    public final static String STEP_CREATE_SCHEMA = "CREATE_SCHEMA";
+    public final static String STEP_LOAD_DATA = "LOAD_DATA";
+    public final static String STEP_REFRESH_ROUTES = "REFRESH_ROUTES";
+
+    private final static Timer leaseTimer = new Timer("tenant-provisioner-lease", true);
+
+    public final static List<String> STEP_IDS = UtilMisc.toList(STEP_CREATE_DATABASES, STEP_CREATE_SCHEMA, STEP_LOAD_DATA, STEP_REFRESH_ROUTES);
+
+    /**
+     * check if tenants are provisioned by the background workers
+     * @param delegator the base delegator
+     * @return
+     */
+    public static boolean isEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("tenant", "asyncProvisioning", "N", delegator));
+    }
+
+    /**
+     * check if creating data sources of a tenant only queues its provisioning
+     * @param tenantId
+     * @param delegator the base delegator
+     * @return
+     */
+    public static boolean isAsync(String tenantId, Delegator delegator) {
+        return isEnabled(delegator) && !TenantTemplate.isTemplateTenant(tenantId) && !TenantWarmPool.isSpareTenant(tenantId);
+    }
+
+    /**
+     * queue provisioning of a tenant, the completed and failed steps are run again
+     * @param tenantId
+     * @param delegator the base delegator
+     * @throws GenericEntityException
+     */
+    public static void queue(String tenantId, Delegator delegator) throws GenericEntityException {
+        for (int i = 0; i < STEP_IDS.size(); i++) {
+            String stepId = STEP_IDS.get(i);
+            GenericValue step = delegator.findOne("TenantProvisionStep", UtilMisc.toMap("tenantId", tenantId, "stepId", stepId), false);
+            if (UtilValidate.isEmpty(step)) {
+                delegator.create("TenantProvisionStep", UtilMisc.toMap("tenantId", tenantId, "stepId", stepId
+                        , "sequenceNum", Long.valueOf((i + 1) * 10), "statusId", STATUS_PENDING, "attempts", Long.valueOf(0)));
+            } else if (!STATUS_RUNNING.equals(step.getString("statusId")) && !STATUS_PENDING.equals(step.getString("statusId"))) {
+                step.set("statusId", STATUS_PENDING);
+                step.set("attempts", Long.valueOf(0));
+                step.set("errorMessage", null);
+                step.store();
+            }
+        }
+        Debug.logInfo("Queued provisioning of tenant: " + tenantId, module);
+    }
+
+    /**
+     * get the tenants which have steps to run, failed steps are only run again after their retry delay.
+     * A tenant with a failed step which has used up its attempts or waits for its retry is skipped,
+     * its later steps can not run before it.
+     * @param delegator the base delegator
+     * @param maxAttempts the maximum number of attempts of a failed step
+     * @param retryDelay in milliseconds, the delay before the first retry of a failed step
+     * @return
+     * @throws GenericEntityException
+     */
+    public static List<String> getQueuedTenantIds(Delegator delegator, int maxAttempts, long retryDelay) throws GenericEntityException {
+        List<GenericValue> steps = delegator.findList("TenantProvisionStep", EntityCondition.makeCondition("statusId", EntityOperator.IN
+                , UtilMisc.toList(STATUS_PENDING, STATUS_FAILED)), null, UtilMisc.toList("lastUpdatedStamp"), null, false);
+        List<String> tenantIds = FastList.newInstance();
+        Set<String> blockedTenantIds = FastSet.newInstance();
+        long now = System.currentTimeMillis();
+        for (GenericValue step : steps) {
+            String tenantId = step.getString("tenantId");
+            if (STATUS_FAILED.equals(step.getString("statusId"))) {
+                Long attempts = step.getLong("attempts");
+                if ((attempts != null && attempts.longValue() >= maxAttempts) || now < getRetryTime(step, retryDelay)) {
+                    blockedTenantIds.add(tenantId);
+                    continue;
+                }
+            }
+            if (!tenantIds.contains(tenantId)) {
+                tenantIds.add(tenantId);
+            }
+        }
+        tenantIds.removeAll(blockedTenantIds);
+        return tenantIds;
+    }
+
+    /**
+     * get the time when a failed step can be run again
+     * @param step
+     * @param retryDelay in milliseconds, the delay before the first retry
+     * @return
+     */
+    public static long getRetryTime(GenericValue step, long retryDelay) {
+        Timestamp endDate = step.getTimestamp("endDate");
+        Long attempts = step.getLong("attempts");
+        if (endDate == null || attempts == null || attempts.longValue() < 1 || retryDelay <= 0) {
+            return 0;
+        }
+        return endDate.getTime() + (retryDelay << Math.min(attempts.longValue() - 1, 10));
+    }
+
+    /**
+     * fail running steps whose lease has expired, e.g. of a stopped node
+     * @param delegator the base delegator
+     * @return the number of failed steps
+     * @throws GenericEntityException
+     */
+    public static int failStaleSteps(Delegator delegator) throws GenericEntityException {
+        Timestamp now = UtilDateTime.nowTimestamp();
+        return delegator.storeByCondition("TenantProvisionStep", UtilMisc.toMap("statusId", STATUS_FAILED, "endDate", now, "claimId", null
+                , "errorMessage", "The lease of the step expired, its node did not renew it")
+                , EntityCondition.makeCondition(EntityCondition.makeCondition("statusId", STATUS_RUNNING)
+                        , EntityCondition.makeCondition("leaseExpiry", EntityOperator.LESS_THAN, now)));
+    }
+
+    /**
+     * run the steps of a tenant which have not been completed
+     * @param tenantId
+     * @param delegator the base delegator
+     * @param dispatcher
+     * @param maxAttempts the maximum number of attempts of a failed step
+     * @param retryDelay in milliseconds, the delay before the first retry of a failed step
+     * @param leaseTime in milliseconds, the time a running step is kept without renewing its lease, 0 means forever
+     * @return true if all steps have been completed
+     * @throws GenericEntityException
+     */
+    public static boolean provision(String tenantId, Delegator delegator, LocalDispatcher dispatcher, int maxAttempts, long retryDelay, long leaseTime) throws GenericEntityException {
+        List<GenericValue> steps = delegator.findByAnd("TenantProvisionStep", UtilMisc.toMap("tenantId", tenantId), UtilMisc.toList("sequenceNum"), false);
+        for (GenericValue step : steps) {
+            String stepId = step.getString("stepId");
+            if (STATUS_COMPLETED.equals(step.getString("statusId"))) {
+                continue;
+            }
+            Long attempts = step.getLong("attempts");
+            if (STATUS_FAILED.equals(step.getString("statusId"))) {
+                if (attempts != null && attempts.longValue() >= maxAttempts) {
+                    // wait until the tenant is queued again
+                    return false;
+                }
+                if (System.currentTimeMillis() < getRetryTime(step, retryDelay)) {
+                    return false;
+                }
+            }
+
+            // claim the step, another worker may have taken it
+            String claimId = UUID.randomUUID().toString();
+            Timestamp startDate = UtilDateTime.nowTimestamp();
+            int claimed = delegator.storeByCondition("TenantProvisionStep", UtilMisc.toMap("statusId", STATUS_RUNNING, "claimId", claimId
+                    , "leaseExpiry", getLeaseExpiry(leaseTime), "startDate", startDate, "endDate", null, "errorMessage", null)
+                    , EntityCondition.makeCondition(EntityCondition.makeCondition("tenantId", tenantId)
+                            , EntityCondition.makeCondition("stepId", stepId)
+                            , EntityCondition.makeCondition("statusId", EntityOperator.IN, UtilMisc.toList(STATUS_PENDING, STATUS_FAILED))));
+            if (claimed != 1) {
+                return false;
+            }
+            EntityCondition claimCondition = EntityCondition.makeCondition(EntityCondition.makeCondition("tenantId", tenantId)
+                    , EntityCondition.makeCondition("stepId", stepId), EntityCondition.makeCondition("claimId", claimId));
+            LeaseTask leaseTask = null;
+            if (leaseTime > 0) {
+                leaseTask = new LeaseTask(delegator, "TenantProvisionStep", claimCondition, leaseTime);
+                leaseTimer.schedule(leaseTask, leaseTime / 3, leaseTime / 3);
+            }
+            Map<String, Object> fields = FastMap.newInstance();
+            fields.put("attempts", Long.valueOf(attempts == null ? 1 : attempts.longValue() + 1));
+            try {
+                runStep(tenantId, stepId, delegator, dispatcher);
+                fields.put("statusId", STATUS_COMPLETED);
+            } catch (Exception e) {
+                Debug.logError(e, "Could not run provisioning step [" + stepId + "] of tenant: " + tenantId, module);
+                fields.put("statusId", STATUS_FAILED);
+                fields.put("errorMessage", e.toString());
+            } finally {
+                if (leaseTask != null) {
+                    leaseTask.cancel();
+                }
+            }
+            Timestamp endDate = UtilDateTime.nowTimestamp();
+            fields.put("endDate", endDate);
+            fields.put("elapsedTime", Long.valueOf(endDate.getTime() - startDate.getTime()));
+            fields.put("claimId", null);
+            fields.put("leaseExpiry", null);
+            
+            // only if the step is still claimed, its lease may have expired and another worker may run it
+            int stored = delegator.storeByCondition("TenantProvisionStep", fields, claimCondition);
+            if (stored != 1) {
+                Debug.logWarning("Provisioning step [" + stepId + "] of tenant [" + tenantId + "] lost its claim, its result is not recorded", module);
+                return false;
+            }
+            if (STATUS_FAILED.equals(fields.get("statusId"))) {
+                return false;
+            }
+        }
+        Debug.logInfo("Provisioned tenant: " + tenantId, module);
+        return true;
+    }
+
+    protected static Timestamp getLeaseExpiry(long leaseTime) {
+        return leaseTime > 0 ? new Timestamp(System.currentTimeMillis() + leaseTime) : null;
+    }
+
+    protected static void runStep(String tenantId, String stepId, Delegator delegator, LocalDispatcher dispatcher) throws Exception {
+        TenantActivity.begin(tenantId);
+        try {
+            List<GenericValue> tenantDataSources = delegator.findByAnd("TenantDataSource", UtilMisc.toMap("tenantId", tenantId), UtilMisc.toList("entityGroupName"), false);
+            boolean isSameJdbcType = TenantUtil.isSameJdbcType(tenantId, delegator);
+            if (STEP_CREATE_DATABASES.equals(stepId)) {
+                // create users and databases, or copy them from a spare or template
+                for (GenericValue tenantDataSource : tenantDataSources) {
+                    Map<String, Object> createInMap = FastMap.newInstance();
+                    createInMap.put("tenantId", tenantId);
+                    createInMap.put("entityGroupName", tenantDataSource.getString("entityGroupName"));
+                    createInMap.put("provisioning", "Y");
+                    Map<String, Object> results = dispatcher.runSync("createTenantDataSourceDb", createInMap);
+                    if (ServiceUtil.isError(results)) {
+                        throw new GenericEntityException(ServiceUtil.getErrorMessage(results));
+                    }
+                }
+            } else if (STEP_CREATE_SCHEMA.equals(stepId) && isSameJdbcType) {
+                // create missing tables, indices and foreign keys
+                Delegator tenantDelegator = DelegatorFactory.getDelegator(delegator.getDelegatorBaseName() + "#" + tenantId);
+                for (GenericValue tenantDataSource : tenantDataSources) {
+                    String entityGroupName = tenantDataSource.getString("entityGroupName");
+                    List<String> messages = FastList.newInstance();
+                    DatabaseUtil dbUtil = new DatabaseUtil(tenantDelegator.getGroupHelperInfo(entityGroupName));
+                    try {
+                        dbUtil.checkDb(tenantDelegator.getModelEntityMapByGroup(entityGroupName), messages, true);
+                    } finally {
+                        dbUtil.close();
+                    }
+                }
+            } else if (STEP_LOAD_DATA.equals(stepId) && isSameJdbcType) {
+                // only files which have not been loaded, none for a copy of a template
+                Map<String, Object> readersInMap = FastMap.newInstance();
+                readersInMap.put("tenantId", tenantId);
+                Map<String, Object> results = dispatcher.runSync("getTenantComponentDataReaders", readersInMap);
+                if (ServiceUtil.isError(results)) {
+                    throw new GenericEntityException(ServiceUtil.getErrorMessage(results));
+                }
+                Map<String, String> checksums = FastMap.newInstance();
+                TenantDataSync.sync(tenantId, (String) results.get("readers"), checksums, delegator);
+            } else if (STEP_REFRESH_ROUTES.equals(stepId)) {
+                TenantRoutingTable.refreshTenant(tenantId, delegator);
+            }
+        } finally {
+            TenantActivity.end(tenantId);
+        }
+    }
+
+    /**
+     * renews the lease of a running step, or of another claimed value with a leaseExpiry field
+     */
+    protected static class LeaseTask extends TimerTask {
+
+        protected Delegator delegator;
+        protected String entityName;
+        protected EntityCondition claimCondition;
+        protected long leaseTime;
+
+        protected LeaseTask(Delegator delegator, String entityName, EntityCondition claimCondition, long leaseTime) {
+            this.delegator = delegator;
+            this.entityName = entityName;
+            this.claimCondition = claimCondition;
+            this.leaseTime = leaseTime;
+        }
+
+        @Override
+        public void run() {
+            try {
+                delegator.storeByCondition(entityName, UtilMisc.toMap("leaseExpiry", getLeaseExpiry(leaseTime)), claimCondition);
+            } catch (Exception e) {
+                // Catch all exceptions so the timer will continue running
+                Debug.logWarning(e, "Could not renew the lease of a " + entityName + ": " + e, module);
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javolution.util.FastList;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.DelegatorFactory;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.tenant.TenantActivity;
+import org.ofbiz.entity.util.EntityUtilProperties;
+import org.ofbiz.entityext.eca.EntityEcaUtil;
+import org.ofbiz.security.Security;
+import org.ofbiz.service.DispatchContext;
+import org.ofbiz.service.GenericServiceException;
+import org.ofbiz.service.LocalDispatcher;
+import org.ofbiz.service.ServiceContainer;
+import org.ofbiz.tenant.jdbc.TenantConnectionFactory;
+
+/**
+ * Tenant Runtime
+ * <p>
+ * Holds the resolved delegator, dispatcher, security and system user login of a tenant,
+ * so they are looked up once instead of on every tenant service call. Runtimes are kept
+ * in a registry keyed by tenant ID and removed when the tenant or its data sources change.
+ * <p>
+ * A tenant is activated by its first request or service call and can be deactivated
+ * when it becomes idle, see {@link TenantEvictionTask}.
+ */
+public class TenantRuntime {
+
+    public final static String module = TenantRuntime.class.getName();
+
+    private static final ConcurrentHashMap<String, TenantRuntime> tenantRuntimes = new ConcurrentHashMap<String, TenantRuntime>();
+
+    private final String tenantId;
+    private final Delegator delegator;
+    private final LocalDispatcher dispatcher;
+    private final Security security;
+    private volatile GenericValue systemUserLogin = null;
+
+    protected TenantRuntime(String tenantId, Delegator delegator, LocalDispatcher dispatcher) {
+        this.tenantId = tenantId;
+        this.delegator = delegator;
+        this.dispatcher = dispatcher;
+        this.security = dispatcher.getDispatchContext().getSecurity();
+    }
+
+    /**
+     * get a tenant runtime, create it at the first time
+     * @param tenantId
+     * @param delegator the base delegator or any tenant delegator
+     * @return
+     */
+    public static TenantRuntime getTenantRuntime(String tenantId, Delegator delegator) {
+        TenantRuntime tenantRuntime = tenantRuntimes.get(tenantId);
+        if (tenantRuntime == null) {
+            synchronized (tenantRuntimes) {
+                tenantRuntime = tenantRuntimes.get(tenantId);
+                if (tenantRuntime == null) {
+                    String tenantDelegatorName = delegator.getDelegatorBaseName() + "#" + tenantId;
+                    // the same dispatcher name for every tenant, whichever dispatcher calls first
+                    String tenantDispatcherName = EntityUtilProperties.getPropertyValue("tenant", "tenantDispatcherName", "tenant", delegator) + "#" + tenantId;
+                    Delegator tenantDelegator = DelegatorFactory.getDelegator(tenantDelegatorName);
+                    LocalDispatcher tenantDispatcher = ServiceContainer.getLocalDispatcher(tenantDispatcherName, tenantDelegator);
+                    tenantRuntime = new TenantRuntime(tenantId, tenantDelegator, tenantDispatcher);
+                    tenantRuntimes.put(tenantId, tenantRuntime);
+                    if (Debug.verboseOn()) Debug.logVerbose("Created tenant runtime: " + tenantId, module);
+                }
+            }
+        }
+        TenantActivity.touch(tenantId);
+        return tenantRuntime;
+    }
+
+    /**
+     * remove a tenant runtime, the next call of getTenantRuntime will resolve it again
+     * @param tenantId
+     * @return the removed tenant runtime or null
+     */
+    public static TenantRuntime removeTenantRuntime(String tenantId) {
+        TenantRuntime tenantRuntime = tenantRuntimes.remove(tenantId);
+        if (tenantRuntime != null && Debug.verboseOn()) {
+            Debug.logVerbose("Removed tenant runtime: " + tenantId, module);
+        }
+        return tenantRuntime;
+    }
+
+    /**
+     * deactivate a tenant, release its connection pools, delegator, readers and service models.
+     * The tenant will be activated again by the next request or service call.
+     * @param tenantId
+     * @param delegator the base delegator
+     * @throws GenericEntityException
+     */
+    public static void deactivateTenant(String tenantId, Delegator delegator) throws GenericEntityException {
+        String tenantDelegatorName = delegator.getDelegatorBaseName() + "#" + tenantId;
+        TenantActivity.remove(tenantId);
+        TenantRuntime tenantRuntime = removeTenantRuntime(tenantId);
+        
+        // close connection pools and shut down embedded databases
+        List<GenericValue> tenantDataSources = delegator.findByAnd("TenantDataSource", UtilMisc.toMap("tenantId", tenantId), null, false);
+        for (GenericValue tenantDataSource : tenantDataSources) {
+            String entityGroupName = tenantDataSource.getString("entityGroupName");
+            try {
+                TenantConnectionFactory.getTenantJdbcConnectionHandler(tenantId, entityGroupName, delegator).closeDatabase();
+            } catch (SQLException e) {
+                Debug.logWarning(e, "Could not close database of tenant [" + tenantId + "] with entity group [" + entityGroupName + "]", module);
+            }
+            TenantConnectionFactory.removeTenantJdbcConnectionHandler(tenantId, entityGroupName);
+        }
+        
+        // remove delegator, readers and service models
+        DelegatorFactory.removeDelegator(tenantDelegatorName);
+        EntityEcaUtil.removeEntityEcaCache(tenantDelegatorName);
+        DispatchContext.removeComponentSetKey(tenantDelegatorName);
+        
+        // deregister every dispatcher of the tenant, including the ones of the webapps,
+        // otherwise they are kept with the removed delegator
+        List<LocalDispatcher> tenantDispatchers = FastList.newInstance();
+        for (Map.Entry<String, LocalDispatcher> entry : ServiceContainer.getDispatcherCache().entrySet()) {
+            if (entry.getKey().endsWith("#" + tenantId)) {
+                tenantDispatchers.add(entry.getValue());
+            }
+        }
+        if (tenantRuntime != null && !tenantDispatchers.contains(tenantRuntime.getDispatcher())) {
+            tenantDispatchers.add(tenantRuntime.getDispatcher());
+        }
+        for (LocalDispatcher tenantDispatcher : tenantDispatchers) {
+            tenantDispatcher.deregister();
+        }
+        Debug.logInfo("Deactivated tenant: " + tenantId, module);
+    }
+
+    /**
+     * remove all tenant runtimes
+     */
+    public static void clearTenantRuntimes() {
+        tenantRuntimes.clear();
+    }
+
+    /**
+     * run a service synchronously for this tenant
+     * @param serviceName
+     * @param serviceParameters
+     * @return
+     * @throws GenericServiceException
+     */
+    public Map<String, Object> runSync(String serviceName, Map<String, Object> serviceParameters) throws GenericServiceException {
+        TenantActivity.begin(tenantId);
+        try {
+            return dispatcher.runSync(serviceName, serviceParameters);
+        } finally {
+            TenantActivity.end(tenantId);
+        }
+    }
+
+    /**
+     * run a service asynchronously for this tenant and wait for it to be stored
+     * @param serviceName
+     * @param serviceParameters
+     * @throws GenericServiceException
+     */
+    public void runAsyncWait(String serviceName, Map<String, Object> serviceParameters) throws GenericServiceException {
+        TenantActivity.begin(tenantId);
+        try {
+            dispatcher.runAsyncWait(serviceName, serviceParameters);
+        } finally {
+            TenantActivity.end(tenantId);
+        }
+    }
+
+    /**
+     * get tenant ID
+     * @return
+     */
+    public String getTenantId() {
+        return tenantId;
+    }
+
+    /**
+     * get tenant delegator
+     * @return
+     */
+    public Delegator getDelegator() {
+        return delegator;
+    }
+
+    /**
+     * get tenant dispatcher
+     * @return
+     */
+    public LocalDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * get tenant security
+     * @return
+     */
+    public Security getSecurity() {
+        return security;
+    }
+
+    /**
+     * get system user login of the tenant, it is looked up at the first call
+     * because the tenant database may not be installed when the runtime is created
+     * @return
+     * @throws GenericEntityException
+     */
+    public GenericValue getSystemUserLogin() throws GenericEntityException {
+        GenericValue userLogin = systemUserLogin;
+        if (userLogin == null) {
+            userLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", "system"), false);
+            systemUserLogin = userLogin;
+        }
+        return userLogin;
+    }
+}
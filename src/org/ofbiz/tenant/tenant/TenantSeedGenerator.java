@@ -18,15 +18,60 @@
  *******************************************************************************/
 package org.ofbiz.tenant.tenant;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
 import org.ofbiz.base.util.Debug;
-import org.ofbiz.base.util.UtilXml;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
+/**
+ * Tenant Seed Generator
+ * <p>
+ * Writes the Tenant, TenantComponent, TenantDataSource and TenantDomainName values of tenants
+ * as entity engine XML. A single tenant is taken from the arguments; with specs=&lt;file&gt; the
+ * tenants are streamed from a CSV file, or a TSV file when it ends with .tsv or delimiter=tab,
+ * whose header row names the columns: tenantId, tenantName, components, domainNames,
+ * jdbcUriPrefix, jdbcUriSuffix, jdbcUsername, jdbcPassword, dbPrefix, ofbizJdbcUri and olapJdbcUri.
+ * Empty columns take the value of the argument with the same name.
+ * <p>
+ * Duplicate tenant IDs, domain names and JDBC URIs are skipped and reported. With shardSize=N the
+ * output is split into files of N tenants each, e.g. TenantData_001.xml, to be loaded in parallel.
+ * @author chatree
+ *
+ */
 public class TenantSeedGenerator {
-    
+
     public final static String module = TenantSeedGenerator.class.getName();
 
+    protected String file = null;
+    protected int shardSize = 0;
+    protected int shardCount = 0;
+    protected int shardTenantCount = 0;
+    protected int tenantCount = 0;
+    protected List<String> errorMessages = FastList.newInstance();
+    protected OutputStream outputStream = null;
+    protected XMLStreamWriter writer = null;
+
+    // indexes of the written values, kept in memory to find duplicates
+    protected Set<String> tenantIds = FastSet.newInstance();
+    protected Set<String> domainNames = FastSet.newInstance();
+    protected Set<String> jdbcUris = FastSet.newInstance();
+
     /**
      * @param args
      */
@@ -34,118 +79,292 @@ public class TenantSeedGenerator {
         if (args.length == 0) {
             System.out.println("Please enter the component name you want the system to update the TenantData.xml file from component://ofbizdemo/config");
         } else {
-            String file = null;
-            String tenantId = null;
-            String tenantName = null;
-            String jdbcUriPrefix = null;
-            String jdbcUriSuffix = null;
-            String jdbcUsername = null;
-            String jdbcPassword = null;
-            String components = null;
-            String domainNames = null;
-            String dbPrefix = "";
-            
+            Map<String, String> params = FastMap.newInstance();
             for (String arg: args) {
-                String[] nameValue = arg.split("=");
+                String[] nameValue = arg.split("=", 2);
                 String name = nameValue[0];
                 String value = "";
                 if (nameValue.length > 1)
                 	value = nameValue[1];
-                if ("tenantId".equals(name)) {
-                    tenantId = value.trim();
-                } else if ("tenantName".equals(name)) {
-                    tenantName = value.trim();
-                } else if ("jdbcUriPrefix".equals(name)) {
-                    jdbcUriPrefix = value.trim();
-                } else if ("jdbcUriSuffix".equals(name)) {
-                    jdbcUriSuffix = value.trim();
-                } else if ("jdbcUsername".equals(name)) {
-                    jdbcUsername = value.trim();
-                } else if ("jdbcPassword".equals(name)) {
-                    jdbcPassword = value.trim();
-                } else if ("components".equals(name)) {
-                    components = value.trim();
-                } else if ("domainNames".equals(name)) {
-                    domainNames = value.trim();
-                } else if ("file".equals(name)) {
-                    file = value.trim();
-                } else if ("dbPrefix".equals(name)) {
-                    dbPrefix = value.trim();
+                params.put(name, value.trim());
+            }
+
+            int shardSize = params.containsKey("shardSize") ? Integer.parseInt(params.get("shardSize")) : 0;
+            TenantSeedGenerator generator = new TenantSeedGenerator(params.get("file"), shardSize);
+            try {
+                String specs = params.get("specs");
+                if (specs != null) {
+                    char delimiter = specs.endsWith(".tsv") || "tab".equals(params.get("delimiter")) ? '\t' : ',';
+                    generator.addTenants(specs, delimiter, params);
+                } else {
+                    generator.addTenant(params);
                 }
+            } catch (Exception e) {
+                Debug.logError(e, module);
+            } finally {
+                generator.close();
             }
- 
-            // create XML document
-            Document document = UtilXml.makeEmptyXmlDocument();
-            Element entityEngineXmlElement = document.createElement("entity-engine-xml");
-            
-            // Tenant
-            Element tenantElement = document.createElement("Tenant");
-            tenantElement.setAttribute("tenantId", tenantId);
-            tenantElement.setAttribute("tenantName", tenantName);
-            entityEngineXmlElement.appendChild(tenantElement);
-            
-            // Tenant Component
-            String[] componentNames = components.split(",");
-            int componentNameCount = 10;
-            for (String componentName : componentNames) {
-                Element tenantComponentElement = document.createElement("TenantComponent");
-                tenantComponentElement.setAttribute("tenantId", tenantId);
-                tenantComponentElement.setAttribute("componentName", componentName);
-                tenantComponentElement.setAttribute("sequenceNum", String.valueOf(componentNameCount));
-                entityEngineXmlElement.appendChild(tenantComponentElement);
-                componentNameCount += 10;
+            for (String errorMessage : generator.getErrorMessages()) {
+                Debug.logWarning(errorMessage, module);
             }
-            
-            // Tenant Data Source
-            
-            /* org.ofbiz */
-            Element ofbizDataSourceElement = document.createElement("TenantDataSource");
-            ofbizDataSourceElement.setAttribute("tenantId", tenantId);
-            ofbizDataSourceElement.setAttribute("entityGroupName", "org.ofbiz");
-            ofbizDataSourceElement.setAttribute("jdbcUri", jdbcUriPrefix + dbPrefix + tenantId + "ofbiz" + jdbcUriSuffix);
-            ofbizDataSourceElement.setAttribute("jdbcUsername", jdbcUsername);
-            ofbizDataSourceElement.setAttribute("jdbcPassword", jdbcPassword);
-            entityEngineXmlElement.appendChild(ofbizDataSourceElement);
-            
-            /* org.ofbiz.olap */
-            Element olapDataSourceElement = document.createElement("TenantDataSource");
-            olapDataSourceElement.setAttribute("tenantId", tenantId);
-            olapDataSourceElement.setAttribute("entityGroupName", "org.ofbiz.olap");
-            olapDataSourceElement.setAttribute("jdbcUri", jdbcUriPrefix + dbPrefix +  tenantId + "olap" + jdbcUriSuffix);
-            olapDataSourceElement.setAttribute("jdbcUsername", jdbcUsername);
-            olapDataSourceElement.setAttribute("jdbcPassword", jdbcPassword);
-            entityEngineXmlElement.appendChild(olapDataSourceElement);
-            
-            // Tenant Domain Name
-            String[] domainNameTokens = domainNames.split(",");
-            for (String domainNameToken : domainNameTokens) {
+            Debug.logInfo("Generated " + generator.getTenantCount() + " tenants in " + Math.max(generator.getShardCount(), 1) + " files, "
+                    + generator.getErrorMessages().size() + " skipped", module);
+        }
+    }
+
+    /**
+     * Constructor
+     * @param file the output file
+     * @param shardSize the number of tenants per output file, 0 means one file
+     */
+    public TenantSeedGenerator(String file, int shardSize) {
+        this.file = file;
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * stream tenants from a CSV or TSV file
+     * @param specs the spec file
+     * @param delimiter
+     * @param defaults values of empty columns
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public void addTenants(String specs, char delimiter, Map<String, String> defaults) throws IOException, XMLStreamException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(specs), "UTF-8"));
+        try {
+            List<String> columns = readRecord(reader, delimiter);
+            if (columns == null) {
+                return;
+            }
+            List<String> values;
+            int recordNumber = 1;
+            while ((values = readRecord(reader, delimiter)) != null) {
+                recordNumber++;
+                if (values.size() == 1 && values.get(0).trim().length() == 0) {
+                    continue;
+                }
+                Map<String, String> spec = FastMap.newInstance();
+                spec.putAll(defaults);
+                for (int i = 0; i < columns.size() && i < values.size(); i++) {
+                    String value = values.get(i).trim();
+                    if (value.length() > 0) {
+                        spec.put(columns.get(i).trim(), value);
+                    }
+                }
+                if (!addTenant(spec)) {
+                    errorMessages.set(errorMessages.size() - 1, "Record " + recordNumber + ": " + errorMessages.get(errorMessages.size() - 1));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * write the values of a tenant
+     * @param spec
+     * @return false if the tenant has been skipped
+     * @throws IOException
+     * @throws XMLStreamException
+     */
+    public boolean addTenant(Map<String, String> spec) throws IOException, XMLStreamException {
+        String tenantId = spec.get("tenantId");
+        if (tenantId == null || tenantId.length() == 0) {
+            errorMessages.add("A tenant does not have a tenant ID");
+            return false;
+        }
+        String dbPrefix = spec.containsKey("dbPrefix") ? spec.get("dbPrefix") : "";
+        String ofbizJdbcUri = spec.get("ofbizJdbcUri");
+        if (ofbizJdbcUri == null) {
+            ofbizJdbcUri = spec.get("jdbcUriPrefix") + dbPrefix + tenantId + "ofbiz" + spec.get("jdbcUriSuffix");
+        }
+        String olapJdbcUri = spec.get("olapJdbcUri");
+        if (olapJdbcUri == null) {
+            olapJdbcUri = spec.get("jdbcUriPrefix") + dbPrefix + tenantId + "olap" + spec.get("jdbcUriSuffix");
+        }
+        List<String[]> tenantDomainNames = FastList.newInstance();
+        String domainNameTokens = spec.get("domainNames");
+        if (domainNameTokens != null && domainNameTokens.length() > 0) {
+            for (String domainNameToken : domainNameTokens.split(",")) {
                 int slashIndex = domainNameToken.indexOf("/");
-                String domainName = null;
-                String initialPath = null;
-                
                 if (slashIndex > 0) {
-                    domainName = domainNameToken.substring(0, slashIndex).trim();
-                    initialPath = domainNameToken.substring(slashIndex).trim();
+                    tenantDomainNames.add(new String[] {domainNameToken.substring(0, slashIndex).trim(), domainNameToken.substring(slashIndex).trim()});
                 } else {
-                    domainName = domainNameToken.trim();
-                    initialPath = "/";
+                    tenantDomainNames.add(new String[] {domainNameToken.trim(), "/"});
                 }
+            }
+        }
+
+        // check the indexes before anything of the tenant is written
+        if (tenantIds.contains(tenantId)) {
+            errorMessages.add("Duplicate tenant ID: " + tenantId);
+            return false;
+        }
+        if (ofbizJdbcUri.equals(olapJdbcUri) || jdbcUris.contains(ofbizJdbcUri) || jdbcUris.contains(olapJdbcUri)) {
+            errorMessages.add("Duplicate JDBC URI of tenant [" + tenantId + "]: " + (jdbcUris.contains(ofbizJdbcUri) ? ofbizJdbcUri : olapJdbcUri));
+            return false;
+        }
+        Set<String> tenantDomainNameKeys = FastSet.newInstance();
+        for (String[] tenantDomainName : tenantDomainNames) {
+            String domainNameKey = tenantDomainName[0].toLowerCase();
+            if (domainNames.contains(domainNameKey) || !tenantDomainNameKeys.add(domainNameKey)) {
+                errorMessages.add("Duplicate domain name of tenant [" + tenantId + "]: " + tenantDomainName[0]);
+                return false;
+            }
+        }
+        tenantIds.add(tenantId);
+        jdbcUris.add(ofbizJdbcUri);
+        jdbcUris.add(olapJdbcUri);
+        domainNames.addAll(tenantDomainNameKeys);
+
+        startTenant();
+
+        // Tenant
+        writeValue("Tenant", "tenantId", tenantId, "tenantName", spec.get("tenantName"));
+
+        // Tenant Component
+        String components = spec.get("components");
+        if (components != null && components.length() > 0) {
+            int componentNameCount = 10;
+            for (String componentName : components.split(",")) {
+                writeValue("TenantComponent", "tenantId", tenantId, "componentName", componentName.trim(), "sequenceNum", String.valueOf(componentNameCount));
+                componentNameCount += 10;
+            }
+        }
+
+        // Tenant Data Source
+        writeValue("TenantDataSource", "tenantId", tenantId, "entityGroupName", "org.ofbiz", "jdbcUri", ofbizJdbcUri
+                , "jdbcUsername", spec.get("jdbcUsername"), "jdbcPassword", spec.get("jdbcPassword"));
+        writeValue("TenantDataSource", "tenantId", tenantId, "entityGroupName", "org.ofbiz.olap", "jdbcUri", olapJdbcUri
+                , "jdbcUsername", spec.get("jdbcUsername"), "jdbcPassword", spec.get("jdbcPassword"));
+
+        // Tenant Domain Name
+        for (String[] tenantDomainName : tenantDomainNames) {
+            writeValue("TenantDomainName", "tenantId", tenantId, "domainName", tenantDomainName[0], "initialPath", tenantDomainName[1]);
+        }
 
-                Element tenantDomainNameElement = document.createElement("TenantDomainName");
-                tenantDomainNameElement.setAttribute("tenantId", tenantId);
-                tenantDomainNameElement.setAttribute("domainName", domainName);
-                tenantDomainNameElement.setAttribute("initialPath", initialPath);
-                entityEngineXmlElement.appendChild(tenantDomainNameElement);
+        tenantCount++;
+        shardTenantCount++;
+        return true;
+    }
+
+    protected void startTenant() throws IOException, XMLStreamException {
+        if (writer != null && shardSize > 0 && shardTenantCount >= shardSize) {
+            closeShard();
+        }
+        if (writer == null) {
+            shardCount++;
+            shardTenantCount = 0;
+            String shardFile = file;
+            if (shardSize > 0) {
+                int dotIndex = file.lastIndexOf(".");
+                String suffix = String.format("_%03d", shardCount);
+                shardFile = dotIndex > 0 ? file.substring(0, dotIndex) + suffix + file.substring(dotIndex) : file + suffix;
             }
-            
-            // write XML document
+            outputStream = new BufferedOutputStream(new FileOutputStream(shardFile));
+            writer = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream, "UTF-8");
+            writer.writeStartDocument("UTF-8", "1.0");
+            writer.writeCharacters("\n");
+            writer.writeStartElement("entity-engine-xml");
+        }
+    }
+
+    protected void writeValue(String entityName, String... fieldNameValues) throws XMLStreamException {
+        writer.writeCharacters("\n    ");
+        writer.writeEmptyElement(entityName);
+        for (int i = 0; i < fieldNameValues.length; i += 2) {
+            if (fieldNameValues[i + 1] != null) {
+                writer.writeAttribute(fieldNameValues[i], fieldNameValues[i + 1]);
+            }
+        }
+    }
+
+    protected void closeShard() throws IOException, XMLStreamException {
+        try {
+            writer.writeCharacters("\n");
+            writer.writeEndElement();
+            writer.writeCharacters("\n");
+            writer.writeEndDocument();
+            writer.close();
+        } finally {
+            writer = null;
+            outputStream.close();
+        }
+    }
+
+    /**
+     * finish the last output file
+     */
+    public void close() {
+        if (writer != null) {
             try {
-                UtilXml.writeXmlDocument(file, entityEngineXmlElement);
+                closeShard();
             } catch (Exception e) {
                 Debug.logError(e, module);
             }
-                       
         }
     }
 
+    public int getTenantCount() {
+        return tenantCount;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    public List<String> getErrorMessages() {
+        return errorMessages;
+    }
+
+    /**
+     * read a record of a CSV or TSV file, a quoted value may contain delimiters, line breaks and doubled quotes
+     * @param reader
+     * @param delimiter
+     * @return the values, null at the end of the file
+     * @throws IOException
+     */
+    public static List<String> readRecord(BufferedReader reader, char delimiter) throws IOException {
+        String line = reader.readLine();
+        if (line == null) {
+            return null;
+        }
+        List<String> values = FastList.newInstance();
+        StringBuilder value = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            for (int i = 0; i < line.length(); i++) {
+                char c = line.charAt(i);
+                if (quoted) {
+                    if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        value.append('"');
+                        i++;
+                    } else if (c == '"') {
+                        quoted = false;
+                    } else {
+                        value.append(c);
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c == delimiter) {
+                    values.add(value.toString());
+                    value.setLength(0);
+                } else {
+                    value.append(c);
+                }
+            }
+            if (!quoted) {
+                break;
+            }
+            line = reader.readLine();
+            if (line == null) {
+                break;
+            }
+            value.append('\n');
+        }
+        values.add(value.toString());
+        return values;
+    }
+
 }
@@ -19,47 +19,44 @@
 package org.ofbiz.tenant.tenant;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.net.URI;
+import java.net.URL;
 import java.sql.Timestamp;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import javolution.util.FastList;
 import javolution.util.FastMap;
 
-import org.apache.commons.io.FileUtils;
+import org.ofbiz.base.location.FlexibleLocation;
 import org.ofbiz.base.util.Debug;
-import org.ofbiz.base.util.FileUtil;
 import org.ofbiz.base.util.UtilDateTime;
 import org.ofbiz.base.util.UtilGenerics;
 import org.ofbiz.base.util.UtilMisc;
 import org.ofbiz.base.util.UtilProperties;
 import org.ofbiz.base.util.UtilValidate;
 import org.ofbiz.entity.Delegator;
-import org.ofbiz.entity.DelegatorFactory;
 import org.ofbiz.entity.GenericEntityException;
 import org.ofbiz.entity.GenericValue;
 import org.ofbiz.entity.condition.EntityComparisonOperator;
 import org.ofbiz.entity.condition.EntityCondition;
 import org.ofbiz.entity.condition.EntityFunction;
 import org.ofbiz.entity.condition.EntityJoinOperator;
-import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.tenant.TenantRoutingTable;
+import org.ofbiz.entity.transaction.GenericTransactionException;
 import org.ofbiz.entity.util.EntityUtil;
 import org.ofbiz.entity.util.EntityUtilProperties;
-import org.ofbiz.entityext.data.EntityDataLoadContainer;
 import org.ofbiz.service.DispatchContext;
 import org.ofbiz.service.GenericServiceException;
 import org.ofbiz.service.LocalDispatcher;
-import org.ofbiz.service.ServiceContainer;
 import org.ofbiz.service.ServiceUtil;
+import org.ofbiz.tenant.component.TenantComponentDataCache;
+import org.ofbiz.tenant.jdbc.TenantBulkLoader;
 import org.ofbiz.tenant.jdbc.TenantConnectionFactory;
 import org.ofbiz.tenant.jdbc.TenantJdbcConnectionHandler;
 import org.ofbiz.tenant.util.TenantUtil;
@@ -82,26 +79,181 @@ public class TenantServices {
     public static Map<String, Object> installTenants(DispatchContext ctx, Map<String, Object> context) {
         Delegator delegator = ctx.getDelegator();
         LocalDispatcher dispatcher = ctx.getDispatcher();
+        boolean reinstall = "Y".equals(context.get("reinstall"));
         
         try {
-            List<EntityCondition> conds = FastList.newInstance();
-            conds.add(EntityCondition.makeCondition(EntityJoinOperator.OR
+            // skip disabled tenants, templates and spares are disabled as well
+            EntityCondition cond = EntityCondition.makeCondition(EntityJoinOperator.OR
                     , EntityCondition.makeCondition("disabled", null)
-                    , EntityCondition.makeCondition(EntityFunction.UPPER("disabled"), EntityComparisonOperator.NOT_EQUAL, "N")));
-            List<GenericValue> tenants = delegator.findList("Tenant", null, null, null, null, false);
-            for (GenericValue tenant : tenants) {
-                String tenantId = tenant.getString("tenantId");
-                Map<String, Object> installTenantDataSourcesInMap = FastMap.newInstance();
-                installTenantDataSourcesInMap.put("tenantId", tenantId);
-                Map<String, Object> results = dispatcher.runSync("installTenantDataSources", installTenantDataSourcesInMap);
-                if (ServiceUtil.isError(results)) {
-                    return ServiceUtil.returnError("Could not install tenant data sources");
+                    , EntityCondition.makeCondition(EntityFunction.UPPER("disabled"), EntityComparisonOperator.NOT_EQUAL, "Y"));
+            List<GenericValue> tenants = delegator.findList("Tenant", cond, null, UtilMisc.toList("tenantId"), null, false);
+            List<String> tenantIds = EntityUtil.getFieldListFromEntityList(tenants, "tenantId", true);
+            
+            int maxThreads = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "installMaxThreads", "4", delegator));
+            int maxThreadsPerServer = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "installMaxThreadsPerServer", "2", delegator));
+            TenantInstaller tenantInstaller = new TenantInstaller(delegator, dispatcher, maxThreads, maxThreadsPerServer);
+            Map<String, Integer> counts = tenantInstaller.install(tenantIds, reinstall);
+            
+            Map<String, Object> results = ServiceUtil.returnSuccess();
+            results.put("completedTenants", counts.get(TenantInstaller.STATUS_COMPLETED));
+            results.put("failedTenants", counts.get(TenantInstaller.STATUS_FAILED));
+            results.put("skippedTenants", counts.get("skipped"));
+            return results;
+        } catch (Exception e) {
+            String errMsg = "Could not install tenants : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+    }
+    
+    /**
+     * sync tenant data, load the data files which are new or changed since they were loaded
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> syncTenantData(DispatchContext ctx, Map<String, Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        LocalDispatcher dispatcher = ctx.getDispatcher();
+        String tenantId = (String) context.get("tenantId");
+        
+        try {
+            List<String> tenantIds = null;
+            if (UtilValidate.isNotEmpty(tenantId)) {
+                tenantIds = UtilMisc.toList(tenantId);
+            } else {
+                // skip disabled tenants, templates and spares are disabled as well
+                EntityCondition cond = EntityCondition.makeCondition(EntityJoinOperator.OR
+                        , EntityCondition.makeCondition("disabled", null)
+                        , EntityCondition.makeCondition(EntityFunction.UPPER("disabled"), EntityComparisonOperator.NOT_EQUAL, "Y"));
+                List<GenericValue> tenants = delegator.findList("Tenant", cond, null, UtilMisc.toList("tenantId"), null, false);
+                tenantIds = EntityUtil.getFieldListFromEntityList(tenants, "tenantId", true);
+            }
+            
+            // checksums are calculated once for all tenants
+            Map<String, String> checksums = FastMap.newInstance();
+            int syncedTenants = 0;
+            int loadedFiles = 0;
+            List<String> failedTenantIds = FastList.newInstance();
+            for (String syncTenantId : tenantIds) {
+                try {
+                    Map<String, Object> readersInMap = FastMap.newInstance();
+                    readersInMap.put("tenantId", syncTenantId);
+                    Map<String, Object> readersResults = dispatcher.runSync("getTenantComponentDataReaders", readersInMap);
+                    String readers = (String) readersResults.get("readers");
+                    int tenantLoadedFiles = TenantDataSync.sync(syncTenantId, readers, checksums, delegator);
+                    if (tenantLoadedFiles > 0) {
+                        syncedTenants++;
+                        loadedFiles += tenantLoadedFiles;
+                    }
+                } catch (Exception e) {
+                    Debug.logError(e, "Could not sync data of tenant: " + syncTenantId, module);
+                    failedTenantIds.add(syncTenantId);
                 }
             }
-            return ServiceUtil.returnSuccess();
+            Debug.logInfo("Synced data of " + syncedTenants + " tenants, " + loadedFiles + " files loaded, " + failedTenantIds.size() + " failed", module);
+            
+            if (UtilValidate.isNotEmpty(failedTenantIds)) {
+                return ServiceUtil.returnError("Could not sync data of tenants: " + failedTenantIds);
+            }
+            Map<String, Object> results = ServiceUtil.returnSuccess();
+            results.put("syncedTenants", syncedTenants);
+            results.put("loadedFiles", loadedFiles);
+            return results;
         } catch (Exception e) {
-            return ServiceUtil.returnError(e.getMessage());
+            String errMsg = "Could not sync tenant data : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+    }
+    
+    /**
+     * create tenants from tenant specs and queue their provisioning
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> createTenants(DispatchContext ctx, Map<String, Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        List<Map<String, Object>> specs = UtilGenerics.checkList(context.get("tenants"));
+        String specLocation = (String) context.get("specLocation");
+        
+        if (!TenantProvisioner.isEnabled(delegator)) {
+            return ServiceUtil.returnError("Tenants can only be created in bulk when asyncProvisioning is Y");
+        }
+        try {
+            if (UtilValidate.isNotEmpty(specLocation)) {
+                URL specUrl = FlexibleLocation.resolveLocation(specLocation.trim());
+                if (specUrl == null) {
+                    return ServiceUtil.returnError("Could not find a tenant spec file: " + specLocation);
+                }
+                specs = TenantBulkCreator.readSpecs(specUrl);
+            }
+            if (UtilValidate.isEmpty(specs)) {
+                return ServiceUtil.returnError("Could not find any tenant specs");
+            }
+            
+            int batchSize = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "bulkCreateBatchSize", "100", delegator));
+            TenantBulkCreator bulkCreator = new TenantBulkCreator(delegator, batchSize);
+            List<String> errorMessages = bulkCreator.validate(specs);
+            if (UtilValidate.isNotEmpty(errorMessages)) {
+                return ServiceUtil.returnError(errorMessages);
+            }
+            List<String> tenantIds = bulkCreator.create(specs);
+            
+            Map<String, Object> results = ServiceUtil.returnSuccess();
+            results.put("tenantIds", tenantIds);
+            results.put("createdTenants", tenantIds.size());
+            return results;
+        } catch (Exception e) {
+            String errMsg = "Could not create tenants : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+    }
+    
+    /**
+     * queue tenant provisioning
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> queueTenantProvisioning(DispatchContext ctx, Map<String, Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        String tenantId = (String) context.get("tenantId");
+        
+        if (!TenantProvisioner.isAsync(tenantId, delegator)) {
+            return ServiceUtil.returnError("Tenant [" + tenantId + "] is not provisioned by the background workers, asyncProvisioning is N or it is a template or spare tenant");
+        }
+        try {
+            TenantProvisioner.queue(tenantId, delegator);
+        } catch (GenericEntityException e) {
+            String errMsg = "Could not queue provisioning of tenant " + tenantId + " : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
         }
+        return ServiceUtil.returnSuccess();
+    }
+    
+    /**
+     * Teardown tenant, the tenant is disabled and detached from its domain names at once,
+     * its databases, files and backups are reclaimed by the background workers
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> teardownTenant(DispatchContext ctx, Map<String, Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        String tenantId = (String) context.get("tenantId");
+        
+        try {
+            TenantTeardown.queue(tenantId, delegator);
+        } catch (GenericEntityException e) {
+            String errMsg = "Could not queue teardown of tenant " + tenantId + " : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+        return ServiceUtil.returnSuccess();
     }
     
     /**
@@ -111,7 +263,6 @@ public class TenantServices {
      * @return
      */
     public static Map<String, Object> exportTenantAllEntities(DispatchContext ctx, Map<String, Object> context) {
-        LocalDispatcher dispatcher = ctx.getDispatcher();
         GenericValue userLogin = (GenericValue) context.get("userLogin");
         String tenantId = (String) context.get("tenantId");
         String outpath = (String) context.get("outpath");
@@ -124,14 +275,8 @@ public class TenantServices {
             serviceParameters.put("fromDate", fromDate);
             serviceParameters.put("txTimeout", txTimeout);
             serviceParameters.put("userLogin", userLogin);
-            Map<String, Object> runTenantServiceInMap = FastMap.newInstance();
-            runTenantServiceInMap.put("tenantId", tenantId);
-            runTenantServiceInMap.put("serviceName", "entityExportAll");
-            runTenantServiceInMap.put("serviceParameters", serviceParameters);
-            runTenantServiceInMap.put("userLogin", userLogin);
-            Map<String, Object> results = dispatcher.runSync("runTenantService", runTenantServiceInMap);
-            Map<String, Object> serviceResults = UtilGenerics.cast(results.get("serviceResults"));
-            return serviceResults;
+            TenantRuntime tenantRuntime = TenantRuntime.getTenantRuntime(tenantId, ctx.getDelegator());
+            return tenantRuntime.runSync("entityExportAll", serviceParameters);
         } catch (Exception e) {
             return ServiceUtil.returnError(e.getMessage());
         }
@@ -144,7 +289,6 @@ public class TenantServices {
      * @return
      */
     public static Map<String, Object> importTenantEntityDir(DispatchContext ctx, Map<String, Object> context) {
-        LocalDispatcher dispatcher = ctx.getDispatcher();
         GenericValue userLogin = (GenericValue) context.get("userLogin");
         String tenantId = (String) context.get("tenantId");
         String path = (String) context.get("path");
@@ -155,8 +299,43 @@ public class TenantServices {
         String deleteFiles = (String) context.get("deleteFiles");
         Integer txTimeout = (Integer) context.get("txTimeout");
         Long filePause = (Long) context.get("filePause");
+        String onlyInserts = (String) context.get("onlyInserts");
         
         try {
+            // insert in bulk when the values are mostly new, only into a disabled tenant because the foreign keys
+            // are dropped while loading, and only without the options the bulk loader does not support
+            GenericValue tenant = ctx.getDelegator().findOne("Tenant", UtilMisc.toMap("tenantId", tenantId), false);
+            boolean isDisabled = UtilValidate.isNotEmpty(tenant) && "Y".equals(tenant.getString("disabled"));
+            if ("Y".equals(mostlyInserts) && !"Y".equals(checkDataOnly) && !"Y".equals(onlyInserts) && !"Y".equals(createDummyFks)
+                    && (filePause == null || filePause.longValue() <= 0) && isDisabled
+                    && "Y".equals(EntityUtilProperties.getPropertyValue("tenant", "bulkDataLoad", "N", ctx.getDelegator()))) {
+                File[] files = new File(path).listFiles();
+                if (files == null) {
+                    return ServiceUtil.returnError("Could not find directory: " + path);
+                }
+                Arrays.sort(files);
+                List<URL> urls = FastList.newInstance();
+                for (File file : files) {
+                    if (file.isFile() && file.getName().toLowerCase().endsWith(".xml")) {
+                        urls.add(file.toURI().toURL());
+                    }
+                }
+                int batchSize = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "bulkBatchSize", "1000", ctx.getDelegator()));
+                TenantBulkLoader tenantBulkLoader = new TenantBulkLoader(tenantId, TenantDataLoader.ENTITY_GROUP_NAME, ctx.getDelegator(), batchSize);
+                tenantBulkLoader.setMaintainTimeStamps("Y".equals(maintainTimeStamps));
+                long numberLoaded = tenantBulkLoader.load(urls);
+                if ("Y".equals(deleteFiles)) {
+                    for (URL url : urls) {
+                        new File(url.toURI()).delete();
+                    }
+                }
+                List<String> messages = FastList.newInstance();
+                messages.add("Bulk loaded " + numberLoaded + " values from " + urls.size() + " files");
+                Map<String, Object> results = ServiceUtil.returnSuccess();
+                results.put("messages", messages);
+                return results;
+            }
+            
             Map<String, Object> serviceParameters = FastMap.newInstance();
             serviceParameters.put("path", path);
             serviceParameters.put("mostlyInserts", mostlyInserts);
@@ -166,15 +345,12 @@ public class TenantServices {
             serviceParameters.put("deleteFiles", deleteFiles);
             serviceParameters.put("txTimeout", txTimeout);
             serviceParameters.put("filePause", filePause);
+            if (onlyInserts != null) {
+                serviceParameters.put("onlyInserts", onlyInserts);
+            }
             serviceParameters.put("userLogin", userLogin);
-            Map<String, Object> runTenantServiceInMap = FastMap.newInstance();
-            runTenantServiceInMap.put("tenantId", tenantId);
-            runTenantServiceInMap.put("serviceName", "entityImportDir");
-            runTenantServiceInMap.put("serviceParameters", serviceParameters);
-            runTenantServiceInMap.put("userLogin", userLogin);
-            Map<String, Object> results = dispatcher.runSync("runTenantService", runTenantServiceInMap);
-            Map<String, Object> serviceResults = UtilGenerics.cast(results.get("serviceResults"));
-            return serviceResults;
+            TenantRuntime tenantRuntime = TenantRuntime.getTenantRuntime(tenantId, ctx.getDelegator());
+            return tenantRuntime.runSync("entityImportDir", serviceParameters);
         } catch (Exception e) {
             return ServiceUtil.returnError(e.getMessage());
         }
@@ -191,95 +367,91 @@ public class TenantServices {
         LocalDispatcher dispatcher = ctx.getDispatcher();
         GenericValue userLogin = (GenericValue) context.get("userLogin");
         String tenantId = (String) context.get("tenantId");
+        String backupType = (String) context.get("backupType");
         
         try {
             Date nowDate = UtilDateTime.nowDate();
             String suffix = new SimpleDateFormat("yyyyMMddhhmmssSSS").format(nowDate);
             GenericValue sysUserLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", "system"), false);
             String outpath = EntityUtilProperties.getPropertyValue("tenant", "backup.outpath", delegator);
-            File tempDir = new File(outpath, "tmp_" + tenantId + "_" + suffix);
-            tempDir.mkdir();
-            Map<String, Object> exportTenantAllEntitiesInMap = FastMap.newInstance();
-            exportTenantAllEntitiesInMap.put("tenantId", tenantId);
-            exportTenantAllEntitiesInMap.put("outpath", tempDir.getAbsolutePath());
-            exportTenantAllEntitiesInMap.put("userLogin", sysUserLogin);
-            Map<String, Object> exportTenantAllEntitiesResults = dispatcher.runSync("exportTenantAllEntities", exportTenantAllEntitiesInMap);
-            List<String> results = UtilGenerics.cast(exportTenantAllEntitiesResults.get("results"));
-            String firstResult = results.get(0);
-            if (firstResult.startsWith("[")) {
-                // create zip file
-                File outFile = new File(outpath + "/" + tenantId + "_" + suffix + ".zip");
-                ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(outFile));
-                String[] fileList = tempDir.list();
-                byte[] readBuffer = new byte[2156]; 
-                int bytesIn = 0;
-                for(int i = 0; i < fileList.length; i++) {
-                    File file = new File(tempDir, fileList[i]);
-                    FileInputStream fis = new FileInputStream(file);
-                    ZipEntry entry = new ZipEntry(file.getName());
-                    zout.putNextEntry(entry);
-                    while((bytesIn = fis.read(readBuffer)) != -1) { 
-                        zout.write(readBuffer, 0, bytesIn); 
-                    }
-                    fis.close();
-                }
-                zout.close();
-                FileUtils.deleteDirectory(tempDir);
-                
-                // create party content
-                String partyId = null;
-                String contentName = null;
-                GenericValue tenantUserLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", tenantId), false);
-                if (UtilValidate.isEmpty(tenantUserLogin)) {
-                    // create person
-                    Map<String, Object> createPersonInMap = FastMap.newInstance();
-                    createPersonInMap.put("firstName", "Tenant Owner");
-                    createPersonInMap.put("lastName", "Of " + tenantId);
-                    createPersonInMap.put("userLogin", sysUserLogin);
-                    Map<String, Object> createPersonResults = dispatcher.runSync("createPerson", createPersonInMap);
-                    partyId = UtilGenerics.cast(createPersonResults.get("partyId"));
-                    
-                    // create user login
-                    tenantUserLogin = delegator.makeValue("UserLogin");
-                    tenantUserLogin.setString("userLoginId", tenantId);
-                    tenantUserLogin.setString("partyId", partyId);
-                    tenantUserLogin.setString("currentPassword", "{SHA}47ca69ebb4bdc9ae0adec130880165d2cc05db1a");
-                    delegator.create(tenantUserLogin);
-                } else {
-                    partyId = tenantUserLogin.getString("partyId");
-                }
+            int deflateLevel = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "backup.deflateLevel", "6", delegator));
+            int bufferSize = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "backup.bufferSize", "1048576", delegator));
+            int maxThreads = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "backup.maxThreads", "4", delegator));
+            File outFile = new File(outpath, tenantId + "_" + suffix + ".zip");
+            TenantBackupWriter tenantBackupWriter = new TenantBackupWriter(tenantId, delegator, deflateLevel, bufferSize, maxThreads);
+            
+            // an incremental or differential backup without a usable base is written in full
+            GenericValue baseContent = TenantBackupChain.getBase(tenantId, backupType, delegator);
+            if (UtilValidate.isNotEmpty(baseContent)) {
+                long overlap = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "backup.incrementalOverlap", "300000", delegator));
+                tenantBackupWriter.setBase(backupType, TenantBackupRestorer.getManifest(TenantBackupChain.getBackupFile(baseContent)), overlap);
+            } else {
+                backupType = TenantBackupWriter.TYPE_FULL;
+            }
+            if ("true".equals(EntityUtilProperties.getPropertyValue("tenant", "backup.chunkStore", "true", delegator))) {
+                int chunkSize = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "backup.chunkSize", "65536", delegator));
+                tenantBackupWriter.setBackupStore(TenantBackupStore.getBackupStore(delegator), chunkSize);
+            }
+            tenantBackupWriter.write(outFile);
+            
+            // create party content
+            String partyId = null;
+            String contentName = null;
+            GenericValue tenantUserLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", tenantId), false);
+            if (UtilValidate.isEmpty(tenantUserLogin)) {
+                // create person
+                Map<String, Object> createPersonInMap = FastMap.newInstance();
+                createPersonInMap.put("firstName", "Tenant Owner");
+                createPersonInMap.put("lastName", "Of " + tenantId);
+                createPersonInMap.put("userLogin", sysUserLogin);
+                Map<String, Object> createPersonResults = dispatcher.runSync("createPerson", createPersonInMap);
+                partyId = UtilGenerics.cast(createPersonResults.get("partyId"));
                 
+                // create user login
+                tenantUserLogin = delegator.makeValue("UserLogin");
+                tenantUserLogin.setString("userLoginId", tenantId);
+                tenantUserLogin.setString("partyId", partyId);
+                tenantUserLogin.setString("currentPassword", "{SHA}47ca69ebb4bdc9ae0adec130880165d2cc05db1a");
+                delegator.create(tenantUserLogin);
+            } else {
+                partyId = tenantUserLogin.getString("partyId");
+            }
+            
+            if (TenantBackupWriter.TYPE_FULL.equals(backupType)) {
                 contentName = "Data of " + tenantId + " at " + nowDate.toString();
-                String dataResourceName = contentName.replace(" ", "_").replace(":", "_") + ".zip";
-                
-                Map<String, Object> createDataResourceInMap = FastMap.newInstance();
-                createDataResourceInMap.put("dataResourceName", dataResourceName);
-                createDataResourceInMap.put("dataResourceTypeId", "URL_RESOURCE");
-                createDataResourceInMap.put("isPublic", "Y");
-                createDataResourceInMap.put("mimeTypeId", "application/zip");
-                createDataResourceInMap.put("objectInfo", "file://" + outFile.getAbsolutePath());
-                createDataResourceInMap.put("userLogin", sysUserLogin);
-                Map<String, Object> createDataResourceResults = dispatcher.runSync("createDataResource", createDataResourceInMap);
-                String dataResourceId = UtilGenerics.cast(createDataResourceResults.get("dataResourceId"));
-
-                Map<String, Object> createContentInMap = FastMap.newInstance();
-                createContentInMap.put("contentName", contentName);
-                createContentInMap.put("dataResourceId", dataResourceId);
-                createContentInMap.put("userLogin", sysUserLogin);
-                Map<String, Object> createContentResults = dispatcher.runSync("createContent", createContentInMap);
-                String contentId = UtilGenerics.cast(createContentResults.get("contentId"));
-                
-                Map<String, Object> createPartyContentInMap = FastMap.newInstance();
-                createPartyContentInMap.put("partyId", partyId);
-                createPartyContentInMap.put("contentId", contentId);
-                createPartyContentInMap.put("partyContentTypeId", "TENANT_BACKUP");
-                createPartyContentInMap.put("userLogin", sysUserLogin);
-                dispatcher.runSync("createPartyContent", createPartyContentInMap);
-                
-                return ServiceUtil.returnSuccess(contentName + " has already been backed up.");
             } else {
-                return ServiceUtil.returnError(firstResult);
+                contentName = backupType.charAt(0) + backupType.substring(1).toLowerCase() + " data of " + tenantId + " at " + nowDate.toString();
             }
+            String dataResourceName = contentName.replace(" ", "_").replace(":", "_") + ".zip";
+            
+            Map<String, Object> createDataResourceInMap = FastMap.newInstance();
+            createDataResourceInMap.put("dataResourceName", dataResourceName);
+            createDataResourceInMap.put("dataResourceTypeId", "URL_RESOURCE");
+            createDataResourceInMap.put("isPublic", "Y");
+            createDataResourceInMap.put("mimeTypeId", "application/zip");
+            createDataResourceInMap.put("objectInfo", "file://" + outFile.getAbsolutePath());
+            createDataResourceInMap.put("userLogin", sysUserLogin);
+            Map<String, Object> createDataResourceResults = dispatcher.runSync("createDataResource", createDataResourceInMap);
+            String dataResourceId = UtilGenerics.cast(createDataResourceResults.get("dataResourceId"));
+
+            Map<String, Object> createContentInMap = FastMap.newInstance();
+            createContentInMap.put("contentName", contentName);
+            createContentInMap.put("dataResourceId", dataResourceId);
+            createContentInMap.put("userLogin", sysUserLogin);
+            Map<String, Object> createContentResults = dispatcher.runSync("createContent", createContentInMap);
+            String contentId = UtilGenerics.cast(createContentResults.get("contentId"));
+            if (UtilValidate.isNotEmpty(baseContent)) {
+                TenantBackupChain.setBase(contentId, baseContent.getString("contentId"), delegator);
+            }
+            
+            Map<String, Object> createPartyContentInMap = FastMap.newInstance();
+            createPartyContentInMap.put("partyId", partyId);
+            createPartyContentInMap.put("contentId", contentId);
+            createPartyContentInMap.put("partyContentTypeId", "TENANT_BACKUP");
+            createPartyContentInMap.put("userLogin", sysUserLogin);
+            dispatcher.runSync("createPartyContent", createPartyContentInMap);
+            
+            return ServiceUtil.returnSuccess(contentName + " has already been backed up.");
         } catch (Exception e) {
             Debug.logError(e, module);
             return ServiceUtil.returnError(e.getMessage());
@@ -302,12 +474,18 @@ public class TenantServices {
             List<EntityCondition> conds = FastList.newInstance();
             conds.add(EntityCondition.makeCondition("contentId", contentId));
             conds.add(EntityCondition.makeCondition("partyContentTypeId", "TENANT_BACKUP"));
-            conds.add(EntityUtil.getFilterByDateExpr());
-            List<GenericValue> partyContents = delegator.findList("PartyContent", EntityCondition.makeCondition(conds), null, null, null, false);
+            List<GenericValue> partyContents = delegator.findList("PartyContent", EntityCondition.makeCondition(conds), null, UtilMisc.toList("-fromDate"), null, false);
             if (UtilValidate.isNotEmpty(partyContents)) {
                 GenericValue partyContent = EntityUtil.getFirst(partyContents);
-                partyContent.set("thruDate", UtilDateTime.nowTimestamp());
-                partyContent.store();
+                boolean expired = UtilValidate.isNotEmpty(partyContent.getTimestamp("thruDate"));
+                
+                // the backups based on this one can not be restored without it, an expired backup is being deleted already
+                if (!expired) {
+                    List<String> dependentContentIds = TenantBackupChain.getDependentContentIds(contentId, delegator);
+                    if (UtilValidate.isNotEmpty(dependentContentIds)) {
+                        return ServiceUtil.returnError("Could not delete backup " + contentId + " because backups " + dependentContentIds + " are based on it");
+                    }
+                }
                 
                 // delete file
                 GenericValue content = partyContent.getRelatedOne("Content", false);
@@ -317,6 +495,20 @@ public class TenantServices {
                     String objectInfo = dataResource.getString("objectInfo");
                     URI uri = new URI(objectInfo);
                     File file = new File(uri);
+                    
+                    // the backup is expired before its references to its chunks in the store are removed, the file
+                    // is kept until they are released so a delete which has stopped can be run again
+                    if (!expired) {
+                        partyContent.set("thruDate", UtilDateTime.nowTimestamp());
+                        partyContent.store();
+                    }
+                    if (file.exists()) {
+                        List<String> hashes = TenantBackupRestorer.getChunks(TenantBackupRestorer.getManifest(file));
+                        if (UtilValidate.isNotEmpty(hashes)) {
+                            int numberRemoved = TenantBackupStore.getBackupStore(delegator).release(contentId, hashes);
+                            Debug.logInfo("Released " + hashes.size() + " chunks of backup " + contentId + ", removed " + numberRemoved + " chunks", module);
+                        }
+                    }
                     file.delete();
                     return ServiceUtil.returnSuccess(contentName + " has already been deleted.");
                 } else {
@@ -332,16 +524,15 @@ public class TenantServices {
     }
     
     /**
-     * Create tenant backup
+     * Restore tenant backup
      * @param ctx
      * @param context
      * @return
      */
     public static Map<String, Object> restoreTenantBackup(DispatchContext ctx, Map<String, Object> context) {
         Delegator delegator = ctx.getDelegator();
-        LocalDispatcher dispatcher = ctx.getDispatcher();
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
         String contentId = (String) context.get("contentId");
+        String tenantId = (String) context.get("tenantId");
         
         try {
             List<EntityCondition> conds = FastList.newInstance();
@@ -354,20 +545,30 @@ public class TenantServices {
                 GenericValue dataResource = content.getRelatedOne("DataResource", false);
                 if (UtilValidate.isNotEmpty(dataResource)) {
                     String contentName = content.getString("contentName");
-                    String dataResourceName = content.getString("dataResourceName");
-                    String objectInfo = dataResource.getString("objectInfo");
-                    URI uri = new URI(objectInfo);
-                    File file = new File(uri);
                     
-                    File tempDir = new File(file.getParentFile(), "tmpext_" + dataResourceName);
-                    if(!tempDir.exists()){
-                        tempDir.mkdir();
+                    // an incremental or differential backup is restored with the backups it is based on
+                    List<File> files = FastList.newInstance();
+                    List<String> contentIds = FastList.newInstance();
+                    for (GenericValue chainContent : TenantBackupChain.getChain(contentId, delegator)) {
+                        files.add(TenantBackupChain.getBackupFile(chainContent));
+                        contentIds.add(chainContent.getString("contentId"));
+                    }
+                    
+                    // restore the tenant of the backup by default
+                    if (UtilValidate.isEmpty(tenantId)) {
+                        tenantId = TenantBackupRestorer.getManifest(files.get(files.size() - 1)).getProperty("tenantId");
+                    }
+                    if (UtilValidate.isEmpty(tenantId)) {
+                        return ServiceUtil.returnError("Could not find the tenant of backup: " + contentName);
                     }
                     
-                    //TODO:
-                    //http://www.mkyong.com/java/how-to-decompress-files-from-a-zip-file/
+                    int batchSize = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "bulkBatchSize", "1000", delegator));
+                    int maxThreads = Integer.parseInt(EntityUtilProperties.getPropertyValue("tenant", "restore.maxThreads", "4", delegator));
+                    TenantBackupRestorer tenantBackupRestorer = new TenantBackupRestorer(tenantId, delegator, batchSize, maxThreads);
+                    tenantBackupRestorer.setBackupStore(TenantBackupStore.getBackupStore(delegator));
+                    long numberRestored = tenantBackupRestorer.restore(files, contentIds);
                     
-                    return ServiceUtil.returnSuccess(contentName + " has already been deleted.");
+                    return ServiceUtil.returnSuccess(contentName + " has already been restored to " + tenantId + " from " + files.size() + " backups, " + numberRestored + " values.");
                 } else {
                     return ServiceUtil.returnError("Cound not find data resource of content: " + contentId);
                 }
@@ -375,8 +576,9 @@ public class TenantServices {
                 return ServiceUtil.returnError("Cound not find party content: " + contentId);
             }
         } catch (Exception e) {
-            Debug.logError(e, module);
-            return ServiceUtil.returnError(e.getMessage());
+            String errMsg = "Could not restore backup " + contentId + " : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
         }
     }
     
@@ -396,25 +598,7 @@ public class TenantServices {
             if (TenantUtil.isSameJdbcType(tenantId, delegator)) {
                 // if the reader or files exists then install data
                 if (UtilValidate.isNotEmpty(readers) || UtilValidate.isNotEmpty(files)) {
-                    if (TransactionUtil.getStatus() == TransactionUtil.STATUS_ACTIVE) {
-                        TransactionUtil.commit();
-                    }
-                    
-                    // load data
-                    String configFile = FileUtil.getFile("component://base/config/ofbiz-containers.xml").getAbsolutePath();
-                    String delegatorName = delegator.getDelegatorBaseName() + "#" + tenantId;
-                    List<String> argList = FastList.newInstance();
-                    argList.add("-delegator=" + delegatorName);
-                    if (UtilValidate.isNotEmpty(readers)) {
-                        argList.add("-readers=" + readers);
-                    }
-                    if (UtilValidate.isNotEmpty(files)) {
-                        argList.add("-file=" + files);
-                    }
-                    String[] args = argList.toArray(new String[argList.size()]);
-                    EntityDataLoadContainer entityDataLoadContainer = new EntityDataLoadContainer();
-                    entityDataLoadContainer.init(args, "dataload-container", configFile);
-                    entityDataLoadContainer.start();
+                    TenantInstaller.loadData(tenantId, readers, files, delegator);
                 } else {
                     Debug.logWarning("Could not find any readers and data files to install", module);
                 }
@@ -440,12 +624,51 @@ public class TenantServices {
         Delegator delegator = ctx.getDelegator();
         String tenantId = (String) context.get("tenantId");
         String entityGroupName = (String) context.get("entityGroupName");
+        String provisioning = (String) context.get("provisioning");
         try {
+            if (!"Y".equals(provisioning) && TenantProvisioner.isAsync(tenantId, delegator)) {
+                // the databases are created by the provisioning workers
+                TenantProvisioner.queue(tenantId, delegator);
+                Map<String, Object> results = ServiceUtil.returnSuccess();
+                results.put("isExist", false);
+                results.put("isCloned", false);
+                return results;
+            }
             if (TenantUtil.isSameJdbcType(tenantId, delegator)) {
                 TenantJdbcConnectionHandler connectionHandler = TenantConnectionFactory.getTenantJdbcConnectionHandler(tenantId, entityGroupName, delegator);
-                connectionHandler.createDatabase();
+                boolean isCloned = false;
+                String templateTenantId = null;
+                if (!connectionHandler.isExist() && connectionHandler.isTemplateSupported()
+                        && TenantTemplate.isEnabled(delegator) && !TenantTemplate.isTemplateTenant(tenantId)) {
+                    // none while the template is being installed by another worker
+                    templateTenantId = TenantTemplate.getTemplateTenant(tenantId, connectionHandler, delegator, ctx.getDispatcher());
+                }
+                if (UtilValidate.isNotEmpty(templateTenantId)) {
+                    // take a spare database or copy the installed template instead of loading data
+                    String spareTenantId = null;
+                    if (!TenantWarmPool.isSpareTenant(tenantId)) {
+                        spareTenantId = TenantWarmPool.claimSpareTenant(tenantId, entityGroupName, templateTenantId, delegator);
+                    }
+                    if (UtilValidate.isNotEmpty(spareTenantId)) {
+                        TenantJdbcConnectionHandler spareConnectionHandler = TenantConnectionFactory.getTenantJdbcConnectionHandler(spareTenantId, entityGroupName, delegator);
+                        connectionHandler.createDatabaseFromSpare(spareConnectionHandler);
+                        TenantWarmPool.releaseSpareDataSource(spareTenantId, entityGroupName, delegator);
+                    } else {
+                        TenantJdbcConnectionHandler templateConnectionHandler = TenantConnectionFactory.getTenantJdbcConnectionHandler(templateTenantId, entityGroupName, delegator);
+                        connectionHandler.createDatabaseFromTemplate(templateConnectionHandler);
+                    }
+                    isCloned = true;
+                    
+                    // the data files of the template are in the copy
+                    if (TenantDataLoader.ENTITY_GROUP_NAME.equals(entityGroupName)) {
+                        TenantDataSync.copyDataFiles(templateTenantId, tenantId, delegator);
+                    }
+                } else {
+                    connectionHandler.createDatabase();
+                }
                 Map<String, Object> results = ServiceUtil.returnSuccess();
                 results.put("isExist", connectionHandler.isExist());
+                results.put("isCloned", isCloned);
                 return results;
             } else {
                 String errMsg = "Tenant [" + tenantId + "] does not have the same JDBC type as " + delegator.getDelegatorName();
@@ -540,15 +763,8 @@ public class TenantServices {
             orgOfbizConnectionHandler.createDatabase();
             orgOfbizOlapConnectionHandler.createDatabase();
 
-            // load data
-            String configFile = FileUtil.getFile("component://base/config/ofbiz-containers.xml").getAbsolutePath();
-            String delegatorName = delegator.getDelegatorBaseName() + "#" + tenantId;
-            List<String> argList = FastList.newInstance();
-            argList.add("-delegator=" + delegatorName);
-            String[] args = argList.toArray(new String[argList.size()]);
-            EntityDataLoadContainer entityDataLoadContainer = new EntityDataLoadContainer();
-            entityDataLoadContainer.init(args, "dataload-container", configFile);
-            entityDataLoadContainer.start();
+            // load data of the default readers
+            TenantInstaller.loadData(tenantId, null, null, delegator);
 
             return ServiceUtil.returnSuccess();
         } catch (Exception e) {
@@ -568,7 +784,6 @@ public class TenantServices {
         LocalDispatcher dispatcher = ctx.getDispatcher();
         Locale locale = (Locale) context.get("locale");
         TimeZone timeZone = (TimeZone) context.get("timeZone");
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
         String tenantId = (String) context.get("tenantId");
         
         Map<String, Object> toContext = FastMap.newInstance();
@@ -580,15 +795,8 @@ public class TenantServices {
         if (!ServiceUtil.isError(setServiceFieldsResults)) {
             // run createUserLogin service
             try {
-                Map<String, Object> runTenantServiceInMap = FastMap.newInstance();
-                runTenantServiceInMap.put("tenantId", tenantId);
-                runTenantServiceInMap.put("serviceName", serviceName);
-                runTenantServiceInMap.put("serviceParameters", toContext);
-                runTenantServiceInMap.put("isAsync", Boolean.FALSE);
-                runTenantServiceInMap.put("userLogin", userLogin);
-                Map<String, Object> results = dispatcher.runSync("runTenantService", runTenantServiceInMap);
-                Map<String, Object> serviceResults = UtilGenerics.cast(results.get("serviceResults"));
-                return serviceResults;
+                TenantRuntime tenantRuntime = TenantRuntime.getTenantRuntime(tenantId, ctx.getDelegator());
+                return tenantRuntime.runSync(serviceName, toContext);
             } catch (Exception e) {
                 Debug.logError(e, module);
                 return ServiceUtil.returnError(e.getMessage());
@@ -608,7 +816,6 @@ public class TenantServices {
         LocalDispatcher dispatcher = ctx.getDispatcher();
         Locale locale = (Locale) context.get("locale");
         TimeZone timeZone = (TimeZone) context.get("timeZone");
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
         String tenantId = (String) context.get("tenantId");
         
         Map<String, Object> toContext = FastMap.newInstance();
@@ -620,15 +827,8 @@ public class TenantServices {
         if (!ServiceUtil.isError(setServiceFieldsResults)) {
             // run removeUserLoginFromSecurityGroup service
             try {
-                Map<String, Object> runTenantServiceInMap = FastMap.newInstance();
-                runTenantServiceInMap.put("tenantId", tenantId);
-                runTenantServiceInMap.put("serviceName", serviceName);
-                runTenantServiceInMap.put("serviceParameters", toContext);
-                runTenantServiceInMap.put("isAsync", Boolean.FALSE);
-                runTenantServiceInMap.put("userLogin", userLogin);
-                Map<String, Object> results = dispatcher.runSync("runTenantService", runTenantServiceInMap);
-                Map<String, Object> serviceResults = UtilGenerics.cast(results.get("serviceResults"));
-                return serviceResults;
+                TenantRuntime tenantRuntime = TenantRuntime.getTenantRuntime(tenantId, ctx.getDelegator());
+                return tenantRuntime.runSync(serviceName, toContext);
             } catch (Exception e) {
                 Debug.logError(e, module);
                 return ServiceUtil.returnError(e.getMessage());
@@ -648,7 +848,6 @@ public class TenantServices {
         LocalDispatcher dispatcher = ctx.getDispatcher();
         Locale locale = (Locale) context.get("locale");
         TimeZone timeZone = (TimeZone) context.get("timeZone");
-        GenericValue userLogin = (GenericValue) context.get("userLogin");
         String tenantId = (String) context.get("tenantId");
         
         Map<String, Object> toContext = FastMap.newInstance();
@@ -659,15 +858,8 @@ public class TenantServices {
         if (!ServiceUtil.isError(setServiceFieldsResults)) {
             // run updateUserLoginToSecurityGroup service
             try {
-                Map<String, Object> runTenantServiceInMap = FastMap.newInstance();
-                runTenantServiceInMap.put("tenantId", tenantId);
-                runTenantServiceInMap.put("serviceName", serviceName);
-                runTenantServiceInMap.put("serviceParameters", toContext);
-                runTenantServiceInMap.put("isAsync", Boolean.FALSE);
-                runTenantServiceInMap.put("userLogin", userLogin);
-                Map<String, Object> results = dispatcher.runSync("runTenantService", runTenantServiceInMap);
-                Map<String, Object> serviceResults = UtilGenerics.cast(results.get("serviceResults"));
-                return serviceResults;
+                TenantRuntime tenantRuntime = TenantRuntime.getTenantRuntime(tenantId, ctx.getDelegator());
+                return tenantRuntime.runSync(serviceName, toContext);
             } catch (Exception e) {
                 Debug.logError(e, module);
                 return ServiceUtil.returnError(e.getMessage());
@@ -685,7 +877,6 @@ public class TenantServices {
      */
     public static Map<String, Object> runTenantService(DispatchContext ctx, Map<String, Object> context) {
         Delegator delegator = ctx.getDelegator();
-        LocalDispatcher dispatcher = ctx.getDispatcher();
         
         String tenantId = (String) context.get("tenantId");
         String serviceName = (String) context.get("serviceName");
@@ -696,17 +887,14 @@ public class TenantServices {
         }
         
         try {
-            String tenantDelegatorName = delegator.getDelegatorBaseName() + "#" + tenantId;
-            String tenantDispatcherName = dispatcher.getName() + "#" + tenantId;
-            Delegator tenantDelegator = DelegatorFactory.getDelegator(tenantDelegatorName);
-            LocalDispatcher tenantDispatcher = ServiceContainer.getLocalDispatcher(tenantDispatcherName, tenantDelegator);
+            TenantRuntime tenantRuntime = TenantRuntime.getTenantRuntime(tenantId, delegator);
             
             Map<String, Object> serviceResults = null;
             if (isAsync) {
-                tenantDispatcher.runAsyncWait(serviceName, serviceParameters);
+                tenantRuntime.runAsyncWait(serviceName, serviceParameters);
                 serviceResults = ServiceUtil.returnSuccess();
             } else {
-                serviceResults = tenantDispatcher.runSync(serviceName, serviceParameters);
+                serviceResults = tenantRuntime.runSync(serviceName, serviceParameters);
             }
             
             Map<String, Object> results = ServiceUtil.returnSuccess();
@@ -722,6 +910,99 @@ public class TenantServices {
         }
     }
     
+    /**
+     * refresh a tenant route of a domain name
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> refreshTenantDomainNameRoute(DispatchContext ctx, Map<String, Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        String domainName = (String) context.get("domainName");
+        
+        try {
+            TenantRoutingTable.refresh(domainName.trim(), delegator);
+        } catch (GenericEntityException e) {
+            String errMsg = "Could not refresh a tenant route of domain name " + domainName + " : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+        return ServiceUtil.returnSuccess();
+    }
+    
+    /**
+     * refresh tenant routes of all domain names of a tenant
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> refreshTenantRoutes(DispatchContext ctx, Map<String, Object> context) {
+        Delegator delegator = ctx.getDelegator();
+        String tenantId = (String) context.get("tenantId");
+        
+        try {
+            TenantRoutingTable.refreshTenant(tenantId, delegator);
+        } catch (GenericEntityException e) {
+            String errMsg = "Could not refresh tenant routes of tenant " + tenantId + " : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+        return ServiceUtil.returnSuccess();
+    }
+    
+    /**
+     * remove a tenant runtime, so it will be resolved again at the next tenant service call
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> removeTenantRuntime(DispatchContext ctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
+        TenantRuntime.removeTenantRuntime(tenantId);
+        return ServiceUtil.returnSuccess();
+    }
+    
+    /**
+     * clear the cached component names of a tenant, or all cached component data if there is no tenant
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> clearTenantComponentDataCache(DispatchContext ctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
+        if (UtilValidate.isNotEmpty(tenantId)) {
+            try {
+                TenantComponentDataCache.removeTenantAfterTransaction(tenantId);
+            } catch (GenericTransactionException e) {
+                String errMsg = "Could not clear the component data cache of tenant " + tenantId + " : " + e.getMessage();
+                Debug.logError(e, errMsg, module);
+                return ServiceUtil.returnError(errMsg);
+            }
+        } else {
+            TenantComponentDataCache.clear();
+        }
+        return ServiceUtil.returnSuccess();
+    }
+    
+    /**
+     * remove a tenant JDBC connection handler now and after the transaction has ended, so its tenant data source will be read again
+     * @param ctx
+     * @param context
+     * @return
+     */
+    public static Map<String, Object> removeTenantJdbcConnectionHandler(DispatchContext ctx, Map<String, Object> context) {
+        String tenantId = (String) context.get("tenantId");
+        String entityGroupName = (String) context.get("entityGroupName");
+        try {
+            TenantConnectionFactory.removeTenantJdbcConnectionHandlerAfterTransaction(tenantId, entityGroupName);
+        } catch (GenericTransactionException e) {
+            String errMsg = "Could not remove the JDBC connection handler of tenant " + tenantId + " with entity group " + entityGroupName + " : " + e.getMessage();
+            Debug.logError(e, errMsg, module);
+            return ServiceUtil.returnError(errMsg);
+        }
+        return ServiceUtil.returnSuccess();
+    }
+    
     /**
      * Get Tenant By UserLogin
      * @param ctx
@@ -795,37 +1076,12 @@ public class TenantServices {
         Delegator delegator = ctx.getDelegator();
         String tenantId = (String) context.get("tenantId");
 
-        String initialReaders = "seed,seed-initial,ext";
-        String demoReaders = initialReaders + ",demo,ext-demo,ext-test";
         String readers = null;
         
         try {
-            // check if the tenant is used as demo
-            String isDemo = EntityUtilProperties.getPropertyValue("tenant", "isDemo", "Y", delegator);
-            if ("Y".equals(isDemo)) {
-                // get a readers from the first componentDemo.properties file
-                List<GenericValue> tenantComponents = delegator.findList("TenantComponent", EntityCondition.makeCondition("tenantId", tenantId), null, UtilMisc.toList("sequenceNum"), null, false);
-                if (UtilValidate.isNotEmpty(tenantComponents)) {
-                    for (GenericValue tenantComponent : tenantComponents) {
-                        String componentName = tenantComponent.getString("componentName");
-                        readers = EntityUtilProperties.getPropertyValue(componentName + "Demo", "demoLoadData", delegator);
-                        if (UtilValidate.isNotEmpty(readers)) {
-                            break;
-                        }
-                    }
-                } else {
-                    readers = demoReaders;
-                }
-            } else {
-                readers = initialReaders;
-            }
-            
-            if (UtilValidate.isEmpty(readers)) {
-                Debug.logWarning("There is not any readers specified for tenant " + tenantId + ", so use demo readers", module);
-                readers = demoReaders;
-            }
+            readers = TenantComponentDataCache.getReaders(tenantId, delegator);
         } catch (Exception e) {
-            readers = demoReaders;
+            readers = TenantComponentDataCache.DEMO_READERS;
             String errMsg = "Could not get readers for tenant " + tenantId + ", so use the default reader " + e.getMessage();
             Debug.logError(e, errMsg, module);
             // do not return an error because it will block other correct tenants
@@ -852,13 +1108,22 @@ public class TenantServices {
         String tenantId = (String) serviceContext.get("tenantId");
         String entityGroupName = (String) serviceContext.get("entityGroupName");
         Boolean isExist = (Boolean) serviceContext.get("isExist");
+        Boolean isCloned = (Boolean) serviceContext.get("isCloned");
+        String provisioning = (String) serviceContext.get("provisioning");
         
         Boolean conditionReply = Boolean.FALSE;
         
         try {
-            // if the entity group is org.ofbiz.olap, is not exist and no user login  then set the condition reply to true
+            // the provisioning workers load the data
+            if ("Y".equals(provisioning) || TenantProvisioner.isAsync(tenantId, delegator)) {
+                Map<String, Object> result = ServiceUtil.returnSuccess();
+                result.put("conditionReply", conditionReply);
+                return result;
+            }
+            
+            // if the entity group is org.ofbiz.olap, is not exist, is not copied from a template and no user login  then set the condition reply to true
             GenericValue tenantUserLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", tenantId), false);
-            if ("org.ofbiz.olap".equals(entityGroupName) && !isExist && UtilValidate.isEmpty(tenantUserLogin)) {
+            if ("org.ofbiz.olap".equals(entityGroupName) && !isExist && !Boolean.TRUE.equals(isCloned) && UtilValidate.isEmpty(tenantUserLogin)) {
                 conditionReply = Boolean.TRUE;
             }
             Map<String, Object> result = ServiceUtil.returnSuccess();
@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.io.File;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.StringUtil;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.util.EntityUtil;
+import org.ofbiz.service.LocalDispatcher;
+import org.ofbiz.service.ServiceUtil;
+import org.ofbiz.tenant.jdbc.TenantConnectionFactory;
+import org.ofbiz.tenant.util.TenantUtil;
+
+/**
+ * Tenant Teardown
+ * <p>
+ * Deleting a tenant only disables it, removes its domain names so it is detached from the
+ * routing table at once and queues a TenantTeardown. The databases, the runtime/tenants/&lt;id&gt;
+ * directory and the backups of the tenant are then reclaimed in parallel by the background
+ * workers of {@link TenantTeardownTask}, and the tenant is removed when all of them are gone.
+ * The tenant is deactivated on the node of the worker first, so its connection pools are closed.
+ * A teardown with failures keeps the tenant and reports every failure, it is retried later.
+ */
+public class TenantTeardown {
+
+    public final static String module = TenantTeardown.class.getName();
+
+    public final static String STATUS_PENDING = "TNT_TDN_PENDING";
+    public final static String STATUS_RUNNING = "TNT_TDN_RUNNING";
+    public final static String STATUS_FAILED = "TNT_TDN_FAILED";
+
+    private final static Timer leaseTimer = new Timer("tenant-teardown-lease", true);
+
+    /**
+     * disable a tenant, detach its domain names and queue its teardown
+     * @param tenantId
+     * @param delegator the base delegator
+     * @throws GenericEntityException
+     */
+    public static void queue(String tenantId, Delegator delegator) throws GenericEntityException {
+        GenericValue tenant = delegator.findOne("Tenant", UtilMisc.toMap("tenantId", tenantId), false);
+        if (UtilValidate.isEmpty(tenant)) {
+            throw new GenericEntityException("Could not find tenant: " + tenantId);
+        }
+
+        // the provisioning workers must not create the databases again
+        List<GenericValue> runningSteps = delegator.findByAnd("TenantProvisionStep", UtilMisc.toMap("tenantId", tenantId, "statusId", TenantProvisioner.STATUS_RUNNING), null, false);
+        if (UtilValidate.isNotEmpty(runningSteps)) {
+            throw new GenericEntityException("Tenant [" + tenantId + "] is being provisioned, it can be deleted when its running step has finished");
+        }
+        delegator.removeByAnd("TenantProvisionStep", UtilMisc.toMap("tenantId", tenantId));
+
+        tenant.set("disabled", "Y");
+        tenant.store();
+        delegator.removeByAnd("TenantDomainName", UtilMisc.toMap("tenantId", tenantId));
+
+        GenericValue tenantTeardown = delegator.makeValue("TenantTeardown", UtilMisc.toMap("tenantId", tenantId
+                , "statusId", STATUS_PENDING, "attempts", Long.valueOf(0)));
+        delegator.createOrStore(tenantTeardown);
+        Debug.logInfo("Queued teardown of tenant: " + tenantId, module);
+    }
+
+    /**
+     * get the tenants which are waiting for their teardown
+     * @param delegator the base delegator
+     * @param maxAttempts the maximum number of attempts of a failed teardown
+     * @return
+     * @throws GenericEntityException
+     */
+    public static List<String> getQueuedTenantIds(Delegator delegator, int maxAttempts) throws GenericEntityException {
+        List<GenericValue> tenantTeardowns = delegator.findList("TenantTeardown", EntityCondition.makeCondition(EntityOperator.OR
+                , EntityCondition.makeCondition("statusId", STATUS_PENDING)
+                , EntityCondition.makeCondition(EntityCondition.makeCondition("statusId", STATUS_FAILED)
+                        , EntityCondition.makeCondition("attempts", EntityOperator.LESS_THAN, Long.valueOf(maxAttempts))))
+                , null, UtilMisc.toList("lastUpdatedStamp"), null, false);
+        return EntityUtil.getFieldListFromEntityList(tenantTeardowns, "tenantId", true);
+    }
+
+    /**
+     * fail running teardowns whose lease has expired, e.g. of a stopped node
+     * @param delegator the base delegator
+     * @return the number of failed teardowns
+     * @throws GenericEntityException
+     */
+    public static int failStaleTeardowns(Delegator delegator) throws GenericEntityException {
+        Timestamp now = UtilDateTime.nowTimestamp();
+        return delegator.storeByCondition("TenantTeardown", UtilMisc.toMap("statusId", STATUS_FAILED, "endDate", now, "claimId", null
+                , "errorMessage", "The lease of the teardown expired, its node did not renew it")
+                , EntityCondition.makeCondition(EntityCondition.makeCondition("statusId", STATUS_RUNNING)
+                        , EntityCondition.makeCondition("leaseExpiry", EntityOperator.LESS_THAN, now)));
+    }
+
+    /**
+     * reclaim the databases, files and backups of a tenant and remove it
+     * @param tenantId
+     * @param delegator the base delegator
+     * @param dispatcher
+     * @param maxThreads the number of threads reclaiming the resources of the tenant
+     * @param leaseTime in milliseconds, the time a running teardown is kept without renewing its lease, 0 means forever
+     * @return true if the tenant has been removed
+     * @throws GenericEntityException
+     */
+    public static boolean teardown(final String tenantId, final Delegator delegator, LocalDispatcher dispatcher, int maxThreads, long leaseTime) throws GenericEntityException {
+        GenericValue tenantTeardown = delegator.findOne("TenantTeardown", UtilMisc.toMap("tenantId", tenantId), false);
+        if (UtilValidate.isEmpty(tenantTeardown)) {
+            return false;
+        }
+
+        // claim the teardown, another worker may have taken it
+        String claimId = UUID.randomUUID().toString();
+        Timestamp startDate = UtilDateTime.nowTimestamp();
+        int claimed = delegator.storeByCondition("TenantTeardown", UtilMisc.toMap("statusId", STATUS_RUNNING, "claimId", claimId
+                , "leaseExpiry", TenantProvisioner.getLeaseExpiry(leaseTime), "startDate", startDate, "endDate", null, "errorMessage", null)
+                , EntityCondition.makeCondition(EntityCondition.makeCondition("tenantId", tenantId)
+                        , EntityCondition.makeCondition("statusId", EntityOperator.IN, UtilMisc.toList(STATUS_PENDING, STATUS_FAILED))));
+        if (claimed != 1) {
+            return false;
+        }
+        EntityCondition claimCondition = EntityCondition.makeCondition(EntityCondition.makeCondition("tenantId", tenantId)
+                , EntityCondition.makeCondition("claimId", claimId));
+        TenantProvisioner.LeaseTask leaseTask = null;
+        if (leaseTime > 0) {
+            leaseTask = new TenantProvisioner.LeaseTask(delegator, "TenantTeardown", claimCondition, leaseTime);
+            leaseTimer.schedule(leaseTask, leaseTime / 3, leaseTime / 3);
+        }
+        try {
+            return reclaim(tenantId, tenantTeardown, claimCondition, startDate, delegator, dispatcher, maxThreads);
+        } finally {
+            if (leaseTask != null) {
+                leaseTask.cancel();
+            }
+        }
+    }
+
+    private static boolean reclaim(final String tenantId, GenericValue tenantTeardown, EntityCondition claimCondition, Timestamp startDate
+            , final Delegator delegator, LocalDispatcher dispatcher, int maxThreads) throws GenericEntityException {
+
+        // close the pools, delegator and dispatchers of the tenant on this node before its databases are dropped
+        try {
+            TenantRuntime.deactivateTenant(tenantId, delegator);
+        } catch (GenericEntityException e) {
+            Debug.logWarning(e, "Could not deactivate tenant: " + tenantId, module);
+        }
+
+        final List<String> failures = Collections.synchronizedList(new LinkedList<String>());
+        final int fileThreads = maxThreads;
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads);
+        try {
+            List<Future<?>> futures = FastList.newInstance();
+
+            // databases
+            List<GenericValue> tenantDataSources = delegator.findByAnd("TenantDataSource", UtilMisc.toMap("tenantId", tenantId), null, false);
+            for (GenericValue tenantDataSource : tenantDataSources) {
+                final String entityGroupName = tenantDataSource.getString("entityGroupName");
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            TenantConnectionFactory.getTenantJdbcConnectionHandler(tenantId, entityGroupName, delegator).deleteDatabase();
+                            TenantConnectionFactory.removeTenantJdbcConnectionHandler(tenantId, entityGroupName);
+                        } catch (Exception e) {
+                            Debug.logError(e, "Could not delete database of tenant " + tenantId + " with entity group name " + entityGroupName, module);
+                            failures.add("Could not delete database of entity group " + entityGroupName + " : " + e.getMessage());
+                        }
+                    }
+                }));
+            }
+
+            // image trees and other runtime files
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    File tenantRuntimeDir = new File(System.getProperty("ofbiz.home") + File.separatorChar + "runtime" + File.separatorChar + "tenants" + File.separatorChar + tenantId);
+                    failures.addAll(TenantUtil.deleteDirectory(tenantRuntimeDir, fileThreads));
+                }
+            }));
+
+            // backups, while the other resources are being reclaimed
+            GenericValue systemUserLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", "system"), true);
+            GenericValue tenantUserLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", tenantId), false);
+            if (UtilValidate.isNotEmpty(tenantUserLogin)) {
+                List<GenericValue> partyContents = delegator.findList("PartyContent", EntityCondition.makeCondition(
+                        EntityCondition.makeCondition("partyId", tenantUserLogin.getString("partyId"))
+                        , EntityCondition.makeCondition("partyContentTypeId", "TENANT_BACKUP")), null, UtilMisc.toList("-fromDate"), null, false);
+                // the latest first, a backup can not be deleted before the backups based on it, the expired
+                // backups too as their delete may have stopped before their chunks were released
+                for (GenericValue partyContent : partyContents) {
+                    String contentId = partyContent.getString("contentId");
+                    try {
+                        Map<String, Object> deleteBackupInMap = FastMap.newInstance();
+                        deleteBackupInMap.put("contentId", contentId);
+                        deleteBackupInMap.put("userLogin", systemUserLogin);
+                        Map<String, Object> results = dispatcher.runSync("deleteTenantBackup", deleteBackupInMap);
+                        if (ServiceUtil.isError(results)) {
+                            failures.add("Could not delete backup " + contentId + " : " + ServiceUtil.getErrorMessage(results));
+                        }
+                    } catch (Exception e) {
+                        failures.add("Could not delete backup " + contentId + " : " + e.getMessage());
+                    }
+                }
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    failures.add(e.toString());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // remove the tenant with its teardown when everything has been reclaimed
+        if (failures.isEmpty()) {
+            try {
+                GenericValue systemUserLogin = delegator.findOne("UserLogin", UtilMisc.toMap("userLoginId", "system"), true);
+                Map<String, Object> results = dispatcher.runSync("deleteTenant", UtilMisc.toMap("tenantId", tenantId, "userLogin", systemUserLogin));
+                if (ServiceUtil.isError(results)) {
+                    failures.add("Could not delete tenant : " + ServiceUtil.getErrorMessage(results));
+                }
+            } catch (Exception e) {
+                failures.add("Could not delete tenant : " + e.getMessage());
+            }
+        }
+        if (failures.isEmpty()) {
+            Debug.logInfo("Tore down tenant [" + tenantId + "] in " + (System.currentTimeMillis() - startDate.getTime()) + " ms", module);
+            return true;
+        }
+
+        Debug.logWarning("Could not tear down tenant [" + tenantId + "], " + failures.size() + " failures: " + failures, module);
+        Long attempts = tenantTeardown.getLong("attempts");
+        // only if the teardown is still claimed, its lease may have expired and another worker may run it
+        int stored = delegator.storeByCondition("TenantTeardown", UtilMisc.toMap("statusId", STATUS_FAILED, "endDate", UtilDateTime.nowTimestamp()
+                , "claimId", null, "leaseExpiry", null
+                , "attempts", Long.valueOf(attempts == null ? 1 : attempts.longValue() + 1), "errorMessage", StringUtil.join(failures, "\n"))
+                , claimCondition);
+        if (stored != 1) {
+            Debug.logWarning("Teardown of tenant [" + tenantId + "] lost its claim, its failures are not recorded", module);
+        }
+        return false;
+    }
+}
@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.service.LocalDispatcher;
+
+/**
+ * Tenant Teardown Task
+ * <p>
+ * Fails teardowns whose lease has expired, then tears down the
+ * queued tenants on a pool of worker threads, see {@link TenantTeardown}.
+ */
+public class TenantTeardownTask extends TimerTask {
+
+    public final static String module = TenantTeardownTask.class.getName();
+
+    protected Delegator delegator;
+    protected LocalDispatcher dispatcher;
+    protected int maxTenants = 2;
+    protected int maxThreads = 4;
+    protected int maxAttempts = 3;
+    protected long timeout = 0;
+    protected ExecutorService executor;
+    protected Set<String> runningTenantIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Constructor
+     * @param delegator the base delegator
+     * @param dispatcher
+     * @param maxTenants the number of tenants torn down at the same time
+     * @param maxThreads the number of threads reclaiming the resources of one tenant
+     * @param maxAttempts the maximum number of attempts of a teardown
+     * @param timeout in milliseconds, the lease time of a running teardown, 0 means running teardowns never fail
+     */
+    public TenantTeardownTask(Delegator delegator, LocalDispatcher dispatcher, int maxTenants, int maxThreads, int maxAttempts, long timeout) {
+        this.delegator = delegator;
+        this.dispatcher = dispatcher;
+        this.maxTenants = maxTenants;
+        this.maxThreads = maxThreads;
+        this.maxAttempts = maxAttempts;
+        this.timeout = timeout;
+        this.executor = Executors.newFixedThreadPool(maxTenants, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "tenant-teardown-worker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (timeout > 0) {
+                int failed = TenantTeardown.failStaleTeardowns(delegator);
+                if (failed > 0) {
+                    Debug.logWarning("Tenant teardown: failed " + failed + " teardowns whose lease expired", module);
+                }
+            }
+            List<String> tenantIds = TenantTeardown.getQueuedTenantIds(delegator, maxAttempts);
+            for (final String tenantId : tenantIds) {
+                if (runningTenantIds.size() >= maxTenants) {
+                    break;
+                }
+                if (!runningTenantIds.add(tenantId)) {
+                    continue;
+                }
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            TenantTeardown.teardown(tenantId, delegator, dispatcher, maxThreads, timeout);
+                        } catch (Exception e) {
+                            Debug.logError(e, "Could not tear down tenant: " + tenantId, module);
+                        } finally {
+                            runningTenantIds.remove(tenantId);
+                        }
+                    }
+                });
+            }
+        } catch (Exception e) {
+            // Catch all exceptions so the timer will continue running
+            Debug.logError(e, "Tenant teardown error: " + e, module);
+        }
+    }
+
+    @Override
+    public boolean cancel() {
+        executor.shutdownNow();
+        return super.cancel();
+    }
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.security.MessageDigest;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.transaction.Transaction;
+
+import javolution.util.FastList;
+import javolution.util.FastMap;
+
+import org.ofbiz.base.component.ComponentConfig;
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.GeneralException;
+import org.ofbiz.base.util.UtilDateTime;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.entity.util.EntityUtilProperties;
+import org.ofbiz.service.LocalDispatcher;
+import org.ofbiz.service.ServiceUtil;
+import org.ofbiz.tenant.jdbc.TenantConnectionFactory;
+import org.ofbiz.tenant.jdbc.TenantJdbcConnectionHandler;
+
+/**
+ * Tenant Template
+ * <p>
+ * A template is a disabled tenant whose databases are installed once per component set and
+ * data readers. New tenant databases are copied from the template instead of loading all
+ * seed and demo data again, see {@link TenantJdbcConnectionHandler#createDatabaseFromTemplate(TenantJdbcConnectionHandler)}.
+ */
+public class TenantTemplate {
+
+    public final static String module = TenantTemplate.class.getName();
+    
+    public final static String TEMPLATE_TENANT_ID_PREFIX = "tpl_";
+    public final static String TEMPLATE_TENANT_NAME = "Template";
+    public final static String TEMPLATE_BUILDING_TENANT_NAME = "Template (building)";
+    
+    private final static List<String> templateEntityGroupNames = UtilMisc.toList("org.ofbiz", "org.ofbiz.olap");
+    private final static ConcurrentHashMap<String, Object> templateLocks = new ConcurrentHashMap<String, Object>();
+    
+    /**
+     * check if new tenant databases are copied from templates
+     * @param delegator
+     * @return
+     */
+    public static boolean isEnabled(Delegator delegator) {
+        return "Y".equals(EntityUtilProperties.getPropertyValue("tenant", "useTemplateDatabases", "N", delegator));
+    }
+    
+    /**
+     * check if a tenant is a template
+     * @param tenantId
+     * @return
+     */
+    public static boolean isTemplateTenant(String tenantId) {
+        return tenantId != null && tenantId.startsWith(TEMPLATE_TENANT_ID_PREFIX);
+    }
+    
+    /**
+     * get the template tenant ID of a component set and readers
+     * @param componentNames
+     * @param readers
+     * @return
+     */
+    public static String getTemplateTenantId(List<String> componentNames, String readers) {
+        String fingerprint = ComponentConfig.getComponentSetFingerprint(componentNames) + "|" + readers;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(fingerprint.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(TEMPLATE_TENANT_ID_PREFIX);
+            for (int i = 0; i < 6; i++) {
+                sb.append(String.format("%02x", digest[i]));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    /**
+     * get the template of a tenant, install the template databases at the first time. The worker which
+     * claims the template tenant installs it, an incomplete template is only installed again after the
+     * maximum build age.
+     * @param tenantId
+     * @param connectionHandler a connection handler of the tenant, the template databases are created on the same server
+     * @param delegator
+     * @param dispatcher
+     * @return the template tenant ID or null if the template is being installed by another worker
+     * @throws GeneralException
+     */
+    public static String getTemplateTenant(String tenantId, TenantJdbcConnectionHandler connectionHandler, Delegator delegator, LocalDispatcher dispatcher) throws GeneralException {
+        List<GenericValue> tenantComponents = delegator.findList("TenantComponent", EntityCondition.makeCondition("tenantId", tenantId), null, UtilMisc.toList("sequenceNum"), null, false);
+        List<String> componentNames = FastList.newInstance();
+        for (GenericValue tenantComponent : tenantComponents) {
+            componentNames.add(tenantComponent.getString("componentName"));
+        }
+        Map<String, Object> readersInMap = FastMap.newInstance();
+        readersInMap.put("tenantId", tenantId);
+        Map<String, Object> results = dispatcher.runSync("getTenantComponentDataReaders", readersInMap);
+        if (ServiceUtil.isError(results)) {
+            throw new GeneralException(ServiceUtil.getErrorMessage(results));
+        }
+        String readers = (String) results.get("readers");
+        String templateTenantId = getTemplateTenantId(componentNames, readers);
+        
+        Object newLock = new Object();
+        Object lock = templateLocks.putIfAbsent(templateTenantId, newLock);
+        if (lock == null) {
+            lock = newLock;
+        }
+        synchronized (lock) {
+            GenericValue templateTenant = delegator.findOne("Tenant", UtilMisc.toMap("tenantId", templateTenantId), false);
+            if (UtilValidate.isNotEmpty(templateTenant) && TEMPLATE_TENANT_NAME.equals(templateTenant.getString("tenantName"))) {
+                return templateTenantId;
+            }
+            
+            // install the template in its own transactions, data loading commits them
+            Transaction parentTransaction = TransactionUtil.suspend();
+            try {
+                long maxBuildAge = Long.parseLong(EntityUtilProperties.getPropertyValue("tenant", "templateMaxBuildAge", "86400000", delegator));
+                if (!claimTemplateTenant(templateTenantId, templateTenant, maxBuildAge, delegator)) {
+                    Debug.logInfo("Template tenant " + templateTenantId + " is being installed by another worker, tenant " + tenantId + " is installed without it", module);
+                    return null;
+                }
+                if (UtilValidate.isNotEmpty(templateTenant)) {
+                    Debug.logWarning("Remove incomplete template tenant: " + templateTenantId, module);
+                    removeTemplateDataSources(templateTenantId, delegator);
+                }
+                createTemplateTenant(templateTenantId, tenantComponents, connectionHandler, delegator);
+            } finally {
+                TransactionUtil.resume(parentTransaction);
+            }
+        }
+        return templateTenantId;
+    }
+    
+    /**
+     * claim a template tenant for installing it, by creating it or by taking over an incomplete
+     * template which has not been updated for the maximum build age. Only one worker of all nodes
+     * gets the claim, the tenant is stored as the condition of the claim.
+     * @param templateTenantId
+     * @param templateTenant the incomplete template tenant or null if there is none
+     * @param maxBuildAge in milliseconds, 0 means incomplete templates are never taken over
+     * @param delegator
+     * @return
+     * @throws GenericEntityException
+     */
+    private static boolean claimTemplateTenant(String templateTenantId, GenericValue templateTenant, long maxBuildAge, Delegator delegator) throws GenericEntityException {
+        if (UtilValidate.isNotEmpty(templateTenant) && maxBuildAge <= 0) {
+            return false;
+        }
+        boolean beganTransaction = TransactionUtil.begin();
+        try {
+            boolean claimed;
+            if (UtilValidate.isEmpty(templateTenant)) {
+                delegator.create("Tenant", UtilMisc.toMap("tenantId", templateTenantId, "tenantName", TEMPLATE_BUILDING_TENANT_NAME, "disabled", "Y"));
+                claimed = true;
+            } else {
+                // the template may still be being installed on any node
+                Timestamp now = UtilDateTime.nowTimestamp();
+                int stored = delegator.storeByCondition("Tenant", UtilMisc.toMap("lastUpdatedStamp", now), EntityCondition.makeCondition(
+                        EntityCondition.makeCondition("tenantId", templateTenantId),
+                        EntityCondition.makeCondition("tenantName", TEMPLATE_BUILDING_TENANT_NAME),
+                        EntityCondition.makeCondition("lastUpdatedStamp", EntityOperator.LESS_THAN, new Timestamp(now.getTime() - maxBuildAge))));
+                claimed = stored == 1;
+            }
+            TransactionUtil.commit(beganTransaction);
+            return claimed;
+        } catch (GenericEntityException e) {
+            TransactionUtil.rollback(beganTransaction, "Could not claim template tenant " + templateTenantId, e);
+            if (UtilValidate.isEmpty(templateTenant) && UtilValidate.isNotEmpty(delegator.findOne("Tenant", UtilMisc.toMap("tenantId", templateTenantId), false))) {
+                // another worker has created it first
+                return false;
+            }
+            throw e;
+        }
+    }
+    
+    private static void createTemplateTenant(String templateTenantId, List<GenericValue> tenantComponents, TenantJdbcConnectionHandler connectionHandler, Delegator delegator) throws GeneralException {
+        long startTime = System.currentTimeMillis();
+        Debug.logInfo("Install template tenant: " + templateTenantId, module);
+        for (GenericValue tenantComponent : tenantComponents) {
+            delegator.create("TenantComponent", UtilMisc.toMap("tenantId", templateTenantId
+                    , "componentName", tenantComponent.get("componentName"), "sequenceNum", tenantComponent.get("sequenceNum")));
+        }
+        
+        // the databases are created and installed by the TenantDataSource EECAs, the data is loaded with the last entity group
+        for (String entityGroupName : templateEntityGroupNames) {
+            String databaseName = templateTenantId + "_" + entityGroupName.replace('.', '_');
+            delegator.create("TenantDataSource", UtilMisc.toMap("tenantId", templateTenantId, "entityGroupName", entityGroupName
+                    , "jdbcUri", connectionHandler.getJdbcUri(databaseName)
+                    , "jdbcUsername", connectionHandler.getSuperUsername(), "jdbcPassword", connectionHandler.getSuperPassword()));
+        }
+        
+        GenericValue templateTenant = delegator.findOne("Tenant", UtilMisc.toMap("tenantId", templateTenantId), false);
+        templateTenant.set("tenantName", TEMPLATE_TENANT_NAME);
+        templateTenant.store();
+        
+        // a template database can only be copied when nobody is connected to it
+        TenantRuntime.deactivateTenant(templateTenantId, delegator);
+        Debug.logInfo("Installed template tenant: " + templateTenantId + " in " + (System.currentTimeMillis() - startTime) + " ms", module);
+    }
+    
+    private static void removeTemplateDataSources(String templateTenantId, Delegator delegator) throws GeneralException {
+        TenantRuntime.deactivateTenant(templateTenantId, delegator);
+        
+        // remove one by one, so the TenantDataSource EECA deletes the databases, the tenant is kept as the claim
+        List<GenericValue> tenantDataSources = delegator.findByAnd("TenantDataSource", UtilMisc.toMap("tenantId", templateTenantId), null, false);
+        for (GenericValue tenantDataSource : tenantDataSources) {
+            tenantDataSource.remove();
+        }
+        delegator.removeByAnd("TenantComponent", UtilMisc.toMap("tenantId", templateTenantId));
+    }
+}
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.util.List;
+
+import javax.transaction.Transaction;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.base.util.UtilValidate;
+import org.ofbiz.entity.Delegator;
+import org.ofbiz.entity.GenericEntityException;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.condition.EntityOperator;
+import org.ofbiz.entity.transaction.TransactionUtil;
+import org.ofbiz.tenant.jdbc.TenantConnectionFactory;
+import org.ofbiz.tenant.jdbc.TenantJdbcConnectionHandler;
+
+/**
+ * Tenant Warm Pool
+ * <p>
+ * Spare tenants are disabled tenants whose databases have been copied from a template
+ * ahead of time. A new tenant claims a spare of its template and renames the spare
+ * databases instead of copying the template during the signup request.
+ * <p>
+ * The state of a spare is kept in its tenant name: <code>Spare (building) &lt;template&gt;</code>,
+ * <code>Spare &lt;template&gt;</code> and <code>Claimed &lt;tenant&gt;</code>. A spare is claimed
+ * by a conditional update of its name, so only one tenant can claim it, even across nodes.
+ */
+public class TenantWarmPool {
+
+    public final static String module = TenantWarmPool.class.getName();
+    
+    public final static String SPARE_TENANT_ID_PREFIX = "spr_";
+    public final static String SPARE_TENANT_NAME_PREFIX = "Spare ";
+    public final static String SPARE_BUILDING_TENANT_NAME_PREFIX = "Spare (building) ";
+    public final static String CLAIMED_TENANT_NAME_PREFIX = "Claimed ";
+    
+    private final static List<String> spareEntityGroupNames = UtilMisc.toList("org.ofbiz", "org.ofbiz.olap");
+    
+    /**
+     * check if a tenant is a spare
+     * @param tenantId
+     * @return
+     */
+    public static boolean isSpareTenant(String tenantId) {
+        return tenantId != null && tenantId.startsWith(SPARE_TENANT_ID_PREFIX);
+    }
+    
+    /**
+     * get the spare tenant claimed by a tenant for an entity group, claim a ready spare of the template at the first time
+     * @param tenantId
+     * @param entityGroupName
+     * @param templateTenantId
+     * @param delegator
+     * @return the spare tenant ID or null if there is no ready spare
+     * @throws GenericEntityException
+     */
+    public static String claimSpareTenant(String tenantId, String entityGroupName, String templateTenantId, Delegator delegator) throws GenericEntityException {
+        Transaction parentTransaction = TransactionUtil.suspend();
+        try {
+            // the other entity groups of the tenant use the same spare
+            List<GenericValue> claimedTenants = delegator.findList("Tenant", EntityCondition.makeCondition(
+                    EntityCondition.makeCondition("tenantId", EntityOperator.LIKE, SPARE_TENANT_ID_PREFIX + "%"),
+                    EntityCondition.makeCondition("tenantName", CLAIMED_TENANT_NAME_PREFIX + tenantId)), null, null, null, false);
+            for (GenericValue claimedTenant : claimedTenants) {
+                String spareTenantId = claimedTenant.getString("tenantId");
+                if (UtilValidate.isNotEmpty(delegator.findOne("TenantDataSource", UtilMisc.toMap("tenantId", spareTenantId, "entityGroupName", entityGroupName), false))) {
+                    return spareTenantId;
+                }
+            }
+            
+            List<GenericValue> spareTenants = delegator.findList("Tenant", EntityCondition.makeCondition(
+                    EntityCondition.makeCondition("tenantId", EntityOperator.LIKE, SPARE_TENANT_ID_PREFIX + "%"),
+                    EntityCondition.makeCondition("tenantName", SPARE_TENANT_NAME_PREFIX + templateTenantId)), null, UtilMisc.toList("createdStamp"), null, false);
+            for (GenericValue spareTenant : spareTenants) {
+                String spareTenantId = spareTenant.getString("tenantId");
+                boolean beganTransaction = TransactionUtil.begin();
+                try {
+                    int claimed = delegator.storeByCondition("Tenant", UtilMisc.toMap("tenantName", CLAIMED_TENANT_NAME_PREFIX + tenantId), EntityCondition.makeCondition(
+                            EntityCondition.makeCondition("tenantId", spareTenantId),
+                            EntityCondition.makeCondition("tenantName", SPARE_TENANT_NAME_PREFIX + templateTenantId)));
+                    TransactionUtil.commit(beganTransaction);
+                    if (claimed == 1) {
+                        Debug.logInfo("Tenant " + tenantId + " claimed spare tenant " + spareTenantId, module);
+                        return spareTenantId;
+                    }
+                } catch (GenericEntityException e) {
+                    TransactionUtil.rollback(beganTransaction, "Could not claim spare tenant " + spareTenantId, e);
+                    throw e;
+                }
+            }
+            return null;
+        } finally {
+            TransactionUtil.resume(parentTransaction);
+        }
+    }
+    
+    /**
+     * remove the data source of a spare after its database has been renamed, remove the spare
+     * when all of its data sources have been taken
+     * @param spareTenantId
+     * @param entityGroupName
+     * @param delegator
+     * @throws GenericEntityException
+     */
+    public static void releaseSpareDataSource(String spareTenantId, String entityGroupName, Delegator delegator) throws GenericEntityException {
+        Transaction parentTransaction = TransactionUtil.suspend();
+        try {
+            GenericValue spareDataSource = delegator.findOne("TenantDataSource", UtilMisc.toMap("tenantId", spareTenantId, "entityGroupName", entityGroupName), false);
+            if (UtilValidate.isNotEmpty(spareDataSource)) {
+                // the database does not exist anymore, so the TenantDataSource EECA will not drop anything
+                spareDataSource.remove();
+            }
+            if (delegator.findCountByCondition("TenantDataSource", EntityCondition.makeCondition("tenantId", spareTenantId), null, null) == 0) {
+                removeSpareTenant(spareTenantId, delegator);
+            }
+        } finally {
+            TransactionUtil.resume(parentTransaction);
+        }
+    }
+    
+    /**
+     * create spare tenants for every installed template until each template has the pool size of ready spares
+     * @param delegator the base delegator
+     * @param poolSize the number of ready spares per template
+     * @param maxSpares the maximum number of spares created in one call
+     * @return the number of created spares
+     */
+    public static int replenish(Delegator delegator, int poolSize, int maxSpares) throws GenericEntityException {
+        int created = 0;
+        List<GenericValue> templateTenants = delegator.findList("Tenant", EntityCondition.makeCondition(
+                EntityCondition.makeCondition("tenantId", EntityOperator.LIKE, TenantTemplate.TEMPLATE_TENANT_ID_PREFIX + "%"),
+                EntityCondition.makeCondition("tenantName", TenantTemplate.TEMPLATE_TENANT_NAME)), null, null, null, false);
+        for (GenericValue templateTenant : templateTenants) {
+            String templateTenantId = templateTenant.getString("tenantId");
+            long spares = delegator.findCountByCondition("Tenant", EntityCondition.makeCondition(
+                    EntityCondition.makeCondition("tenantId", EntityOperator.LIKE, SPARE_TENANT_ID_PREFIX + "%"),
+                    EntityCondition.makeCondition("tenantName", EntityOperator.IN, UtilMisc.toList(SPARE_TENANT_NAME_PREFIX + templateTenantId
+                            , SPARE_BUILDING_TENANT_NAME_PREFIX + templateTenantId))), null, null);
+            for (long i = spares; i < poolSize && created < maxSpares; i++) {
+                createSpareTenant(templateTenantId, delegator);
+                created++;
+            }
+        }
+        return created;
+    }
+    
+    /**
+     * remove ready spare tenants which have not been claimed within the maximum age, spare tenants
+     * whose template has been removed and spare tenants which have not been completed within the
+     * maximum build age. Claimed spares are released by the tenants which claimed them.
+     * @param delegator the base delegator
+     * @param maxAge in milliseconds, 0 means ready spares do not expire
+     * @param maxBuildAge in milliseconds, 0 means incomplete spares are never removed
+     * @return the number of removed spares
+     */
+    public static int reclaim(Delegator delegator, long maxAge, long maxBuildAge) throws GenericEntityException {
+        int removed = 0;
+        long now = System.currentTimeMillis();
+        List<GenericValue> spareTenants = delegator.findList("Tenant", EntityCondition.makeCondition("tenantId", EntityOperator.LIKE, SPARE_TENANT_ID_PREFIX + "%"), null, null, null, false);
+        for (GenericValue spareTenant : spareTenants) {
+            String spareTenantId = spareTenant.getString("tenantId");
+            String tenantName = spareTenant.getString("tenantName");
+            long age = now - spareTenant.getTimestamp("lastUpdatedStamp").getTime();
+            boolean isRemovable = false;
+            if (tenantName == null || tenantName.startsWith(CLAIMED_TENANT_NAME_PREFIX)) {
+                continue;
+            } else if (tenantName.startsWith(SPARE_BUILDING_TENANT_NAME_PREFIX)) {
+                // the databases may still be being copied on any node
+                isRemovable = maxBuildAge > 0 && age > maxBuildAge;
+            } else if (tenantName.startsWith(SPARE_TENANT_NAME_PREFIX)) {
+                String templateTenantId = tenantName.substring(SPARE_TENANT_NAME_PREFIX.length());
+                isRemovable = (maxAge > 0 && age > maxAge)
+                        || UtilValidate.isEmpty(delegator.findOne("Tenant", UtilMisc.toMap("tenantId", templateTenantId), false));
+            }
+            if (isRemovable) {
+                try {
+                    removeSpareTenant(spareTenantId, delegator);
+                    removed++;
+                } catch (GenericEntityException e) {
+                    Debug.logWarning(e, "Could not remove spare tenant: " + spareTenantId, module);
+                }
+            }
+        }
+        return removed;
+    }
+    
+    private static void createSpareTenant(String templateTenantId, Delegator delegator) throws GenericEntityException {
+        String spareTenantId = SPARE_TENANT_ID_PREFIX + delegator.getNextSeqId("Tenant");
+        long startTime = System.currentTimeMillis();
+        delegator.create("Tenant", UtilMisc.toMap("tenantId", spareTenantId, "tenantName", SPARE_BUILDING_TENANT_NAME_PREFIX + templateTenantId, "disabled", "Y"));
+        List<GenericValue> templateComponents = delegator.findByAnd("TenantComponent", UtilMisc.toMap("tenantId", templateTenantId), null, false);
+        for (GenericValue templateComponent : templateComponents) {
+            delegator.create("TenantComponent", UtilMisc.toMap("tenantId", spareTenantId
+                    , "componentName", templateComponent.get("componentName"), "sequenceNum", templateComponent.get("sequenceNum")));
+        }
+        
+        // the databases are copied from the template by the TenantDataSource EECAs
+        for (String entityGroupName : spareEntityGroupNames) {
+            TenantJdbcConnectionHandler templateConnectionHandler = TenantConnectionFactory.getTenantJdbcConnectionHandler(templateTenantId, entityGroupName, delegator);
+            String databaseName = spareTenantId + "_" + entityGroupName.replace('.', '_');
+            delegator.create("TenantDataSource", UtilMisc.toMap("tenantId", spareTenantId, "entityGroupName", entityGroupName
+                    , "jdbcUri", templateConnectionHandler.getJdbcUri(databaseName)
+                    , "jdbcUsername", templateConnectionHandler.getJdbcUsername(), "jdbcPassword", templateConnectionHandler.getJdbcPassword()));
+        }
+        
+        GenericValue spareTenant = delegator.findOne("Tenant", UtilMisc.toMap("tenantId", spareTenantId), false);
+        spareTenant.set("tenantName", SPARE_TENANT_NAME_PREFIX + templateTenantId);
+        spareTenant.store();
+        Debug.logInfo("Created spare tenant " + spareTenantId + " of template " + templateTenantId + " in " + (System.currentTimeMillis() - startTime) + " ms", module);
+    }
+    
+    private static void removeSpareTenant(String spareTenantId, Delegator delegator) throws GenericEntityException {
+        // remove one by one, so the TenantDataSource EECA deletes the databases
+        List<GenericValue> tenantDataSources = delegator.findByAnd("TenantDataSource", UtilMisc.toMap("tenantId", spareTenantId), null, false);
+        for (GenericValue tenantDataSource : tenantDataSources) {
+            tenantDataSource.remove();
+        }
+        delegator.removeByAnd("TenantComponent", UtilMisc.toMap("tenantId", spareTenantId));
+        delegator.removeByAnd("Tenant", UtilMisc.toMap("tenantId", spareTenantId));
+        if (Debug.verboseOn()) Debug.logVerbose("Removed spare tenant: " + spareTenantId, module);
+    }
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.util.TimerTask;
+
+import org.ofbiz.base.util.Debug;
+import org.ofbiz.entity.Delegator;
+
+/**
+ * Tenant Warm Pool Task
+ * <p>
+ * Removes expired spare tenants, then creates spare tenants until every installed template
+ * has the pool size of spares, see {@link TenantWarmPool}.
+ */
+public class TenantWarmPoolTask extends TimerTask {
+
+    public final static String module = TenantWarmPoolTask.class.getName();
+
+    protected Delegator delegator;
+    protected int poolSize = 0;
+    protected int refillRate = 2;
+    protected long maxAge = 0;
+    protected long maxBuildAge = 0;
+
+    /**
+     * Constructor
+     * @param delegator the base delegator
+     * @param poolSize the number of spares per template
+     * @param refillRate the maximum number of spares created in one run
+     * @param maxAge in milliseconds, 0 means spares do not expire
+     * @param maxBuildAge in milliseconds, 0 means incomplete spares are never removed
+     */
+    public TenantWarmPoolTask(Delegator delegator, int poolSize, int refillRate, long maxAge, long maxBuildAge) {
+        this.delegator = delegator;
+        this.poolSize = poolSize;
+        this.refillRate = refillRate;
+        this.maxAge = maxAge;
+        this.maxBuildAge = maxBuildAge;
+    }
+
+    @Override
+    public void run() {
+        try {
+            int removed = TenantWarmPool.reclaim(delegator, maxAge, maxBuildAge);
+            int created = TenantWarmPool.replenish(delegator, poolSize, refillRate);
+            if (removed > 0 || created > 0) {
+                Debug.logInfo("Tenant warm pool: removed " + removed + " and created " + created + " spare tenants", module);
+            }
+        } catch (Exception e) {
+            // Catch all exceptions so the timer will continue running
+            Debug.logError(e, "Tenant warm pool error: " + e, module);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import javolution.util.FastList;
+
+/**
+ * Tenant Zip Writer
+ * <p>
+ * Writes a zip file from entries which have already been deflated, so the entries of a backup can be
+ * compressed by several threads and written in order by one. Every entry is written with a data
+ * descriptor after its data, and the zip64 records are written for large entries and files
+ * the same as {@link java.util.zip.ZipOutputStream}, so they can be read by ZipFile and ZipInputStream.
+ */
+public class TenantZipWriter {
+
+    public final static String module = TenantZipWriter.class.getName();
+
+    private final static long LOCSIG = 0x04034b50L;
+    private final static long EXTSIG = 0x08074b50L;
+    private final static long CENSIG = 0x02014b50L;
+    private final static long ENDSIG = 0x06054b50L;
+    private final static long ZIP64_ENDSIG = 0x06064b50L;
+    private final static long ZIP64_LOCSIG = 0x07064b50L;
+    private final static long ZIP64_MAGICVAL = 0xFFFFFFFFL;
+    private final static int ZIP64_MAGICCOUNT = 0xFFFF;
+    // data descriptor and UTF-8 names
+    private final static int FLAG = 0x0008 | 0x0800;
+    private final static int VERSION = 20;
+    private final static int ZIP64_VERSION = 45;
+
+    private final OutputStream out;
+    private final List<Entry> entries = FastList.newInstance();
+    private final byte[] buffer = new byte[8];
+    private long written = 0;
+    private Entry entry = null;
+
+    /**
+     * Constructor
+     * @param out the zip file, buffered by the caller
+     */
+    public TenantZipWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * begin a deflated entry, its data is written by {@link #writeDeflated(byte[], int, int)}
+     * @param name
+     * @param time
+     * @throws IOException
+     */
+    public void beginEntry(String name, long time) throws IOException {
+        if (entry != null) {
+            throw new IOException("The entry " + entry.name + " has not been ended");
+        }
+        entry = new Entry(name.getBytes("UTF-8"), javaToDosTime(time), written);
+        writeInt(LOCSIG);
+        writeShort(VERSION);
+        writeShort(FLAG);
+        writeShort(Deflater.DEFLATED);
+        writeInt(entry.dosTime);
+        // CRC and sizes are in the data descriptor
+        writeInt(0);
+        writeInt(0);
+        writeInt(0);
+        writeShort(entry.name.length);
+        writeShort(0);
+        writeBytes(entry.name, 0, entry.name.length);
+    }
+
+    /**
+     * write raw deflated data of the current entry
+     * @param b
+     * @param off
+     * @param len
+     * @throws IOException
+     */
+    public void writeDeflated(byte[] b, int off, int len) throws IOException {
+        writeBytes(b, off, len);
+    }
+
+    /**
+     * end the current entry
+     * @param crc the CRC-32 of the uncompressed data
+     * @param size the size of the uncompressed data
+     * @param csize the size of the deflated data
+     * @throws IOException
+     */
+    public void endEntry(long crc, long size, long csize) throws IOException {
+        if (entry == null) {
+            throw new IOException("There is not any entry to end");
+        }
+        entry.crc = crc;
+        entry.size = size;
+        entry.csize = csize;
+        writeInt(EXTSIG);
+        writeInt(crc);
+        if (size >= ZIP64_MAGICVAL || csize >= ZIP64_MAGICVAL) {
+            writeLong(csize);
+            writeLong(size);
+        } else {
+            writeInt(csize);
+            writeInt(size);
+        }
+        entries.add(entry);
+        entry = null;
+    }
+
+    /**
+     * deflate and write a small entry at once
+     * @param name
+     * @param time
+     * @param data
+     * @param level
+     * @throws IOException
+     */
+    public void writeEntry(String name, long time, byte[] data, int level) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        Deflater deflater = new Deflater(level, true);
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] deflateBuffer = new byte[8192];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(deflateBuffer);
+                deflated.write(deflateBuffer, 0, len);
+            }
+        } finally {
+            deflater.end();
+        }
+        beginEntry(name, time);
+        byte[] deflatedBytes = deflated.toByteArray();
+        writeDeflated(deflatedBytes, 0, deflatedBytes.length);
+        endEntry(crc.getValue(), data.length, deflatedBytes.length);
+    }
+
+    /**
+     * write the central directory, the stream is flushed but not closed
+     * @throws IOException
+     */
+    public void finish() throws IOException {
+        if (entry != null) {
+            throw new IOException("The entry " + entry.name + " has not been ended");
+        }
+        long cenOffset = written;
+        for (Entry cenEntry : entries) {
+            writeCEN(cenEntry);
+        }
+        long cenLength = written - cenOffset;
+        int count = entries.size();
+        if (count >= ZIP64_MAGICCOUNT || cenOffset >= ZIP64_MAGICVAL || cenLength >= ZIP64_MAGICVAL) {
+            long zip64EndOffset = written;
+            writeInt(ZIP64_ENDSIG);
+            writeLong(44);
+            writeShort(ZIP64_VERSION);
+            writeShort(ZIP64_VERSION);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(cenLength);
+            writeLong(cenOffset);
+            writeInt(ZIP64_LOCSIG);
+            writeInt(0);
+            writeLong(zip64EndOffset);
+            writeInt(1);
+        }
+        writeInt(ENDSIG);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+        writeShort(Math.min(count, ZIP64_MAGICCOUNT));
+        writeInt(Math.min(cenLength, ZIP64_MAGICVAL));
+        writeInt(Math.min(cenOffset, ZIP64_MAGICVAL));
+        writeShort(0);
+        out.flush();
+    }
+
+    /**
+     * get the number of bytes written
+     * @return
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    private void writeCEN(Entry cenEntry) throws IOException {
+        boolean zip64Size = cenEntry.size >= ZIP64_MAGICVAL;
+        boolean zip64Csize = cenEntry.csize >= ZIP64_MAGICVAL;
+        boolean zip64Offset = cenEntry.offset >= ZIP64_MAGICVAL;
+        int extraLength = (zip64Size ? 8 : 0) + (zip64Csize ? 8 : 0) + (zip64Offset ? 8 : 0);
+        writeInt(CENSIG);
+        writeShort(extraLength > 0 ? ZIP64_VERSION : VERSION);
+        writeShort(extraLength > 0 ? ZIP64_VERSION : VERSION);
+        writeShort(FLAG);
+        writeShort(Deflater.DEFLATED);
+        writeInt(cenEntry.dosTime);
+        writeInt(cenEntry.crc);
+        writeInt(zip64Csize ? ZIP64_MAGICVAL : cenEntry.csize);
+        writeInt(zip64Size ? ZIP64_MAGICVAL : cenEntry.size);
+        writeShort(cenEntry.name.length);
+        writeShort(extraLength > 0 ? extraLength + 4 : 0);
+        // comment length, disk number, internal and external attributes
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(zip64Offset ? ZIP64_MAGICVAL : cenEntry.offset);
+        writeBytes(cenEntry.name, 0, cenEntry.name.length);
+        if (extraLength > 0) {
+            writeShort(0x0001);
+            writeShort(extraLength);
+            if (zip64Size) {
+                writeLong(cenEntry.size);
+            }
+            if (zip64Csize) {
+                writeLong(cenEntry.csize);
+            }
+            if (zip64Offset) {
+                writeLong(cenEntry.offset);
+            }
+        }
+    }
+
+    private void writeShort(int v) throws IOException {
+        buffer[0] = (byte) (v & 0xff);
+        buffer[1] = (byte) ((v >>> 8) & 0xff);
+        writeBytes(buffer, 0, 2);
+    }
+
+    private void writeInt(long v) throws IOException {
+        buffer[0] = (byte) (v & 0xff);
+        buffer[1] = (byte) ((v >>> 8) & 0xff);
+        buffer[2] = (byte) ((v >>> 16) & 0xff);
+        buffer[3] = (byte) ((v >>> 24) & 0xff);
+        writeBytes(buffer, 0, 4);
+    }
+
+    private void writeLong(long v) throws IOException {
+        for (int i = 0; i < 8; i++) {
+            buffer[i] = (byte) ((v >>> (i * 8)) & 0xff);
+        }
+        writeBytes(buffer, 0, 8);
+    }
+
+    private void writeBytes(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private static long javaToDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+                | (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    private static class Entry {
+        private final byte[] name;
+        private final long dosTime;
+        private final long offset;
+        private long crc = 0;
+        private long size = 0;
+        private long csize = 0;
+
+        private Entry(byte[] name, long dosTime, long offset) {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.offset = offset;
+        }
+    }
+}
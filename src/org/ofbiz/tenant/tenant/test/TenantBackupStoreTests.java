@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import javolution.util.FastList;
+import javolution.util.FastSet;
+
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.GenericValue;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.service.testtools.OFBizTestCase;
+import org.ofbiz.tenant.tenant.TenantBackupStore;
+import org.ofbiz.tenant.tenant.TenantBackupWriter;
+
+/**
+ * Tenant Backup Store Tests
+ */
+public class TenantBackupStoreTests extends OFBizTestCase {
+
+    public final static String module = TenantBackupStoreTests.class.getName();
+
+    protected final static String TEST_CONTENT_ID = "TEST_BACKUP_STORE";
+
+    protected File testDir = null;
+    protected List<String> testHashes = FastList.newInstance();
+
+    public TenantBackupStoreTests(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        testDir = File.createTempFile("tenant-backup-store-test", "");
+        testDir.delete();
+        testDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delegator.removeByAnd("TenantBackupChunkRelease", UtilMisc.toMap("contentId", TEST_CONTENT_ID));
+        for (String hash : testHashes) {
+            delegator.removeByAnd("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash));
+        }
+        deleteDir(testDir);
+    }
+
+    public void testChunksAfterInsert() throws Exception {
+        byte[] data = makeData(1048576, 2);
+        byte[] inserted = new byte[data.length + 100];
+        System.arraycopy(makeData(100, 3), 0, inserted, 0, 100);
+        System.arraycopy(data, 0, inserted, 100, data.length);
+
+        List<byte[]> chunks = cut(data, 16384);
+        List<byte[]> insertedChunks = cut(inserted, 16384);
+        TenantBackupWriter.Chunker chunker = new TenantBackupWriter.Chunker(16384);
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            assertTrue(chunks.get(i).length >= chunker.getMinChunkSize());
+            assertTrue(chunks.get(i).length <= chunker.getMaxChunkSize());
+        }
+
+        // the bytes after the insert are cut at the same positions, only the first chunks differ
+        Set<String> hashes = FastSet.newInstance();
+        for (byte[] chunk : chunks) {
+            hashes.add(Arrays.toString(chunk));
+        }
+        int shared = 0;
+        for (byte[] chunk : insertedChunks) {
+            if (hashes.contains(Arrays.toString(chunk))) {
+                shared++;
+            }
+        }
+        assertTrue(chunks.size() > 8);
+        assertTrue(shared >= chunks.size() - 2);
+    }
+
+    public void testStoreReferences() throws Exception {
+        TenantBackupStore backupStore = new TenantBackupStore(testDir, delegator, Deflater.DEFAULT_COMPRESSION);
+        byte[] data = makeData(10000, 4);
+
+        // the same bytes are stored once with a reference of every backup
+        String hash = backupStore.put(data, data.length);
+        testHashes.add(hash);
+        assertEquals(hash, backupStore.put(data, data.length));
+        assertTrue(backupStore.getChunkFile(hash).exists());
+        assertEquals(2, getRefCount(hash));
+        byte[] twice = new byte[2 * data.length];
+        System.arraycopy(data, 0, twice, 0, data.length);
+        System.arraycopy(data, 0, twice, data.length, data.length);
+        assertTrue(Arrays.equals(twice, readChunks(backupStore, UtilMisc.toList(hash, hash))));
+
+        // the chunk is removed with its last reference
+        assertEquals(0, backupStore.release(UtilMisc.toList(hash)));
+        assertTrue(backupStore.getChunkFile(hash).exists());
+        assertEquals(1, getRefCount(hash));
+        assertEquals(1, backupStore.release(UtilMisc.toList(hash)));
+        assertFalse(backupStore.getChunkFile(hash).exists());
+        assertNull(delegator.findOne("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash), false));
+    }
+
+    public void testStoreTakesOverStaleRemoval() throws Exception {
+        TenantBackupStore backupStore = new TenantBackupStore(testDir, delegator, Deflater.DEFAULT_COMPRESSION);
+        byte[] data = makeData(10000, 5);
+        String hash = backupStore.put(data, data.length);
+        testHashes.add(hash);
+
+        // a node stopped after it had begun to remove the chunk
+        backupStore.getChunkFile(hash).delete();
+        delegator.storeByCondition("TenantBackupChunk", UtilMisc.toMap("refCount", Long.valueOf(-1)
+                , "removedDate", new Timestamp(System.currentTimeMillis() - 3600000)), EntityCondition.makeCondition("chunkHash", hash));
+        GenericValue chunk = delegator.findOne("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash), false);
+        assertEquals(-1, chunk.getLong("refCount").longValue());
+
+        assertEquals(hash, backupStore.put(data, data.length));
+        assertEquals(1, getRefCount(hash));
+        assertTrue(Arrays.equals(data, readChunks(backupStore, UtilMisc.toList(hash))));
+    }
+
+    public void testStoreReleasesOncePerBackup() throws Exception {
+        TenantBackupStore backupStore = new TenantBackupStore(testDir, delegator, Deflater.DEFAULT_COMPRESSION);
+        byte[] data = makeData(10000, 6);
+        String hash = backupStore.put(data, data.length);
+        testHashes.add(hash);
+        backupStore.put(data, data.length);
+        assertEquals(2, getRefCount(hash));
+
+        // a delete of the backup stopped after it had released its reference, it is not released again
+        delegator.create("TenantBackupChunkRelease", UtilMisc.toMap("contentId", TEST_CONTENT_ID, "chunkHash", hash, "releasedCount", Long.valueOf(1)));
+        assertEquals(0, backupStore.release(TEST_CONTENT_ID, UtilMisc.toList(hash)));
+        assertEquals(2, getRefCount(hash));
+        assertNull(delegator.findOne("TenantBackupChunkRelease", UtilMisc.toMap("contentId", TEST_CONTENT_ID, "chunkHash", hash), false));
+
+        // the same hash twice is released twice
+        assertEquals(1, backupStore.release(TEST_CONTENT_ID, UtilMisc.toList(hash, hash)));
+        assertFalse(backupStore.getChunkFile(hash).exists());
+        assertNull(delegator.findOne("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash), false));
+    }
+
+    private long getRefCount(String hash) throws Exception {
+        GenericValue chunk = delegator.findOne("TenantBackupChunk", UtilMisc.toMap("chunkHash", hash), false);
+        return chunk.getLong("refCount").longValue();
+    }
+
+    private static byte[] readChunks(TenantBackupStore backupStore, List<String> hashes) throws IOException {
+        InputStream in = backupStore.open(hashes);
+        try {
+            return readAll(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static List<byte[]> cut(byte[] data, int chunkSize) {
+        List<byte[]> chunks = FastList.newInstance();
+        TenantBackupWriter.Chunker chunker = new TenantBackupWriter.Chunker(chunkSize);
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (chunker.add(data[i])) {
+                chunks.add(Arrays.copyOfRange(data, start, i + 1));
+                start = i + 1;
+            }
+        }
+        if (start < data.length) {
+            chunks.add(Arrays.copyOfRange(data, start, data.length));
+        }
+        return chunks;
+    }
+
+    private static byte[] makeData(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len = 0;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+}
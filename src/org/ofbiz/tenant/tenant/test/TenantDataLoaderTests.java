@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant.test;
+
+import java.net.URL;
+import java.util.List;
+
+import javolution.util.FastList;
+
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.service.testtools.OFBizTestCase;
+import org.ofbiz.tenant.tenant.TenantDataLoader;
+import org.ofbiz.tenant.tenant.TenantDataLoader.DataFile;
+
+/**
+ * Tenant Data Loader Tests
+ */
+public class TenantDataLoaderTests extends OFBizTestCase {
+
+    public final static String module = TenantDataLoaderTests.class.getName();
+
+    public TenantDataLoaderTests(String name) {
+        super(name);
+    }
+
+    public void testGetLevels() throws Exception {
+        DataFile partyTypes = makeDataFile("PartyTypeData.xml", "PartyType");
+        DataFile productTypes = makeDataFile("ProductTypeData.xml", "ProductType");
+        DataFile parties = makeDataFile("PartyData.xml", "Party", "PartyType");
+        DataFile products = makeDataFile("ProductData.xml", "Product", "ProductType");
+        DataFile roles = makeDataFile("PartyRoleData.xml", "PartyRole", "Party");
+        List<DataFile> dataFiles = UtilMisc.toList(partyTypes, productTypes, parties, products, roles);
+
+        // a file is loaded after the earlier files it depends on, the others at the same time
+        List<List<DataFile>> levels = TenantDataLoader.getLevels(dataFiles);
+        assertEquals(3, levels.size());
+        assertEquals(UtilMisc.toList(partyTypes, productTypes), levels.get(0));
+        assertEquals(UtilMisc.toList(parties, products), levels.get(1));
+        assertEquals(UtilMisc.toList(roles), levels.get(2));
+    }
+
+    public void testGetLevelsOfSameEntity() throws Exception {
+        DataFile parties = makeDataFile("PartyData.xml", "Party");
+        DataFile moreParties = makeDataFile("MorePartyData.xml", "Party");
+        DataFile partyTypes = makeDataFile("PartyTypeData.xml", "PartyType");
+
+        // files of the same entity keep their order
+        List<List<DataFile>> levels = TenantDataLoader.getLevels(UtilMisc.toList(parties, moreParties, partyTypes));
+        assertEquals(2, levels.size());
+        assertEquals(UtilMisc.toList(parties, partyTypes), levels.get(0));
+        assertEquals(UtilMisc.toList(moreParties), levels.get(1));
+    }
+
+    private static DataFile makeDataFile(String fileName, String entityName, String... relEntityNames) throws Exception {
+        List<String> relatedEntityNames = FastList.newInstance();
+        relatedEntityNames.add(entityName);
+        for (String relEntityName : relEntityNames) {
+            relatedEntityNames.add(relEntityName);
+        }
+        return new DataFile(new URL("file:/data/" + fileName), UtilMisc.toList(entityName), relatedEntityNames);
+    }
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant.test;
+
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.entity.condition.EntityCondition;
+import org.ofbiz.entity.tenant.TenantDomainTrie;
+import org.ofbiz.entity.tenant.TenantRoute;
+import org.ofbiz.entity.tenant.TenantRoutingTable;
+import org.ofbiz.service.testtools.OFBizTestCase;
+
+/**
+ * Tenant Routing Tests
+ */
+public class TenantRoutingTests extends OFBizTestCase {
+
+    public final static String module = TenantRoutingTests.class.getName();
+
+    protected final static String TEST_TENANT_ID = "TEST_ROUTING";
+
+    public TenantRoutingTests(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delegator.removeByAnd("TenantDomainName", UtilMisc.toMap("tenantId", TEST_TENANT_ID));
+        delegator.removeByAnd("Tenant", UtilMisc.toMap("tenantId", TEST_TENANT_ID));
+    }
+
+    public void testTrieFindsDeepestPattern() throws Exception {
+        TenantDomainTrie trie = new TenantDomainTrie();
+        TenantRoute exampleRoute = new TenantRoute("EXAMPLE", "*.example.com", null, "default#EXAMPLE");
+        TenantRoute shopRoute = new TenantRoute("SHOP", "*.shop.example.com", null, "default#SHOP");
+        trie.put("*.example.com", exampleRoute);
+        trie.put("*.shop.example.com", shopRoute);
+
+        assertSame(shopRoute, trie.find("www.shop.example.com"));
+        assertSame(shopRoute, trie.find("a.b.shop.example.com"));
+        assertSame(exampleRoute, trie.find("www.example.com"));
+        assertSame(exampleRoute, trie.find("shop.example.com"));
+        assertNull(trie.find("example.com"));
+        assertNull(trie.find("com"));
+        assertNull(trie.find("www.example.org"));
+        assertEquals(2, trie.getRoutes().size());
+    }
+
+    public void testTrieRemovesPattern() throws Exception {
+        TenantDomainTrie trie = new TenantDomainTrie();
+        TenantRoute exampleRoute = new TenantRoute("EXAMPLE", "*.example.com", null, "default#EXAMPLE");
+        TenantRoute shopRoute = new TenantRoute("SHOP", "*.shop.example.com", null, "default#SHOP");
+        trie.put("*.example.com", exampleRoute);
+        trie.put("*.shop.example.com", shopRoute);
+
+        trie.remove("*.shop.example.com");
+        assertNull(trie.get("*.shop.example.com"));
+        assertSame(exampleRoute, trie.find("www.shop.example.com"));
+        trie.remove("*.other.com");
+        assertEquals(1, trie.getRoutes().size());
+    }
+
+    public void testIsWildcard() throws Exception {
+        assertTrue(TenantDomainTrie.isWildcard("*.example.com"));
+        assertFalse(TenantDomainTrie.isWildcard("*."));
+        assertFalse(TenantDomainTrie.isWildcard("www.example.com"));
+        assertFalse(TenantDomainTrie.isWildcard(null));
+    }
+
+    public void testRoutingTableRefresh() throws Exception {
+        delegator.create("Tenant", UtilMisc.toMap("tenantId", TEST_TENANT_ID, "tenantName", "Test Routing"));
+        delegator.create("TenantDomainName", UtilMisc.toMap("tenantId", TEST_TENANT_ID, "domainName", "Test-Routing.Example.com", "initialPath", "/test"));
+        delegator.create("TenantDomainName", UtilMisc.toMap("tenantId", TEST_TENANT_ID, "domainName", "*.test-routing.example.com"));
+        TenantRoutingTable.refresh("test-routing.example.com", delegator);
+        TenantRoutingTable.refresh("*.test-routing.example.com", delegator);
+
+        // the server names are matched in any case
+        TenantRoute route = TenantRoutingTable.getRoute("TEST-ROUTING.example.com", delegator);
+        assertNotNull(route);
+        assertEquals(TEST_TENANT_ID, route.getTenantId());
+        assertEquals("/test", route.getInitialPath());
+        TenantRoute wildcardRoute = TenantRoutingTable.getRoute("www.test-routing.example.com", delegator);
+        assertNotNull(wildcardRoute);
+        assertEquals(TEST_TENANT_ID, wildcardRoute.getTenantId());
+
+        // the routes of removed domain names are removed
+        delegator.removeByAnd("TenantDomainName", UtilMisc.toMap("tenantId", TEST_TENANT_ID));
+        TenantRoutingTable.refreshTenant(TEST_TENANT_ID, delegator);
+        assertNull(TenantRoutingTable.getRoute("test-routing.example.com", delegator));
+        assertNull(TenantRoutingTable.getRoute("www.test-routing.example.com", delegator));
+    }
+
+    public void testRoutingTableSkipsDisabledTenants() throws Exception {
+        delegator.create("Tenant", UtilMisc.toMap("tenantId", TEST_TENANT_ID, "tenantName", "Test Routing"));
+        delegator.create("TenantDomainName", UtilMisc.toMap("tenantId", TEST_TENANT_ID, "domainName", "test-routing.example.com"));
+        TenantRoutingTable.refresh("test-routing.example.com", delegator);
+        assertNotNull(TenantRoutingTable.getRoute("test-routing.example.com", delegator));
+
+        // a disabled tenant keeps its routes, but they are not returned until it is enabled again
+        delegator.storeByCondition("Tenant", UtilMisc.toMap("disabled", "Y"), EntityCondition.makeCondition("tenantId", TEST_TENANT_ID));
+        TenantRoutingTable.refreshTenant(TEST_TENANT_ID, delegator);
+        assertNull(TenantRoutingTable.getRoute("test-routing.example.com", delegator));
+        delegator.storeByCondition("Tenant", UtilMisc.toMap("disabled", "N"), EntityCondition.makeCondition("tenantId", TEST_TENANT_ID));
+        TenantRoutingTable.refreshTenant(TEST_TENANT_ID, delegator);
+        assertNotNull(TenantRoutingTable.getRoute("test-routing.example.com", delegator));
+    }
+}
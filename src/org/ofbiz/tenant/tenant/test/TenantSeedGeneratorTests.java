@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant.test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.service.testtools.OFBizTestCase;
+import org.ofbiz.tenant.tenant.TenantSeedGenerator;
+
+/**
+ * Tenant Seed Generator Tests
+ */
+public class TenantSeedGeneratorTests extends OFBizTestCase {
+
+    public final static String module = TenantSeedGeneratorTests.class.getName();
+
+    public TenantSeedGeneratorTests(String name) {
+        super(name);
+    }
+
+    public void testReadRecord() throws Exception {
+        BufferedReader reader = new BufferedReader(new StringReader("tenantId,tenantName,domainName\n"
+                + "T1,\"Shop, Inc.\",t1.example.com\n"
+                + "T2,\"The \"\"Best\"\" Shop\",\n"
+                + "T3,\"First line\nSecond line\",t3.example.com\n"));
+        assertEquals(UtilMisc.toList("tenantId", "tenantName", "domainName"), TenantSeedGenerator.readRecord(reader, ','));
+        assertEquals(UtilMisc.toList("T1", "Shop, Inc.", "t1.example.com"), TenantSeedGenerator.readRecord(reader, ','));
+        assertEquals(UtilMisc.toList("T2", "The \"Best\" Shop", ""), TenantSeedGenerator.readRecord(reader, ','));
+        assertEquals(UtilMisc.toList("T3", "First line\nSecond line", "t3.example.com"), TenantSeedGenerator.readRecord(reader, ','));
+        assertNull(TenantSeedGenerator.readRecord(reader, ','));
+    }
+
+    public void testReadTabRecord() throws Exception {
+        BufferedReader reader = new BufferedReader(new StringReader("T1\tShop, Inc.\t\n\t\"a\tb\"\n"));
+        assertEquals(UtilMisc.toList("T1", "Shop, Inc.", ""), TenantSeedGenerator.readRecord(reader, '\t'));
+        assertEquals(UtilMisc.toList("", "a\tb"), TenantSeedGenerator.readRecord(reader, '\t'));
+        assertNull(TenantSeedGenerator.readRecord(reader, '\t'));
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *******************************************************************************/
+package org.ofbiz.tenant.tenant.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import javolution.util.FastList;
+
+import org.ofbiz.base.util.UtilMisc;
+import org.ofbiz.service.testtools.OFBizTestCase;
+import org.ofbiz.tenant.tenant.TenantZipWriter;
+
+/**
+ * Tenant Zip Writer Tests
+ */
+public class TenantZipWriterTests extends OFBizTestCase {
+
+    public final static String module = TenantZipWriterTests.class.getName();
+
+    protected File testDir = null;
+
+    public TenantZipWriterTests(String name) {
+        super(name);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        testDir = File.createTempFile("tenant-zip-test", "");
+        testDir.delete();
+        testDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDir(testDir);
+    }
+
+    public void testZipWriterRoundTrip() throws Exception {
+        byte[] manifest = "tenantId=TEST\n".getBytes("UTF-8");
+        byte[] values = makeData(200000, 1);
+        byte[] empty = new byte[0];
+
+        // an entry deflated by the caller and entries deflated by the writer
+        File zip = new File(testDir, "test.zip");
+        FileOutputStream fileOut = new FileOutputStream(zip);
+        try {
+            TenantZipWriter zipWriter = new TenantZipWriter(fileOut);
+            long time = System.currentTimeMillis();
+            byte[] deflated = deflate(values);
+            CRC32 crc = new CRC32();
+            crc.update(values);
+            zipWriter.beginEntry("Party.xml", time);
+            for (int off = 0; off < deflated.length; off += 65536) {
+                zipWriter.writeDeflated(deflated, off, Math.min(65536, deflated.length - off));
+            }
+            zipWriter.endEntry(crc.getValue(), values.length, deflated.length);
+            zipWriter.writeEntry("Empty.xml", time, empty, Deflater.DEFAULT_COMPRESSION);
+            zipWriter.writeEntry("manifest.properties", time, manifest, Deflater.NO_COMPRESSION);
+            zipWriter.finish();
+            assertEquals(zipWriter.getWritten(), zip.length());
+        } finally {
+            fileOut.close();
+        }
+
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(3, zipFile.size());
+            assertTrue(Arrays.equals(values, readAll(zipFile.getInputStream(zipFile.getEntry("Party.xml")))));
+            assertTrue(Arrays.equals(empty, readAll(zipFile.getInputStream(zipFile.getEntry("Empty.xml")))));
+            assertTrue(Arrays.equals(manifest, readAll(zipFile.getInputStream(zipFile.getEntry("manifest.properties")))));
+        } finally {
+            zipFile.close();
+        }
+
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(zip));
+        try {
+            List<String> names = FastList.newInstance();
+            ZipEntry zipEntry = null;
+            while ((zipEntry = zipIn.getNextEntry()) != null) {
+                names.add(zipEntry.getName());
+                byte[] data = readAll(zipIn);
+                if ("Party.xml".equals(zipEntry.getName())) {
+                    assertTrue(Arrays.equals(values, data));
+                }
+            }
+            assertEquals(UtilMisc.toList("Party.xml", "Empty.xml", "manifest.properties"), names);
+        } finally {
+            zipIn.close();
+        }
+    }
+
+    private static byte[] makeData(int length, long seed) {
+        byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int len = 0;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private static void deleteDir(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDir(file);
+            }
+        }
+        dir.delete();
+    }
+}
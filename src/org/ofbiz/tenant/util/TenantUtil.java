@@ -19,11 +19,27 @@
 package org.ofbiz.tenant.util;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.Connection;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -60,18 +76,153 @@ public class TenantUtil {
      * @return
      */
     public static boolean deleteDirectory(File directory) {
-        if (directory.isDirectory()) {
-            String[] children = directory.list();
+        List<String> failures = deleteDirectory(directory, 1);
+        for (String failure : failures) {
+            Debug.logWarning(failure, module);
+        }
+        return failures.isEmpty();
+    }
+    
+    /**
+     * delete directory, the sub directories are walked in parallel and a failed file does not stop the others
+     * @param directory
+     * @param maxThreads
+     * @return the files which could not be deleted, empty if the directory has been deleted
+     */
+    public static List<String> deleteDirectory(File directory, int maxThreads) {
+        final List<String> failures = Collections.synchronizedList(new LinkedList<String>());
+        Path root = directory.toPath();
+        if (!Files.exists(root, LinkOption.NOFOLLOW_LINKS)) {
+            return failures;
+        }
+        List<Path> children = FastList.newInstance();
+        if (Files.isDirectory(root, LinkOption.NOFOLLOW_LINKS)) {
+            DirectoryStream<Path> directoryStream = null;
+            try {
+                directoryStream = Files.newDirectoryStream(root);
+                for (Path child : directoryStream) {
+                    children.add(child);
+                }
+            } catch (IOException e) {
+                failures.add("Could not list " + root + " : " + e);
+            } finally {
+                if (directoryStream != null) {
+                    try {
+                        directoryStream.close();
+                    } catch (IOException e) {
+                        Debug.logWarning(e, module);
+                    }
+                }
+            }
+        }
+        
+        if (maxThreads > 1 && children.size() > 1) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxThreads, children.size()));
+            try {
+                List<Future<?>> futures = FastList.newInstance();
+                for (final Path child : children) {
+                    futures.add(executor.submit(new Runnable() {
+                        public void run() {
+                            deleteTree(child, failures);
+                        }
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (Exception e) {
+                        failures.add("Could not delete a sub directory of " + root + " : " + e);
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        } else {
+            for (Path child : children) {
+                deleteTree(child, failures);
+            }
+        }
+        
+        // the directory is now empty unless a file has failed
+        if (failures.isEmpty()) {
+            try {
+                Files.delete(root);
+            } catch (IOException e) {
+                failures.add("Could not delete " + root + " : " + e);
+            }
+        }
+        return failures;
+    }
+    
+    private static void deleteTree(Path path, final List<String> failures) {
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    try {
+                        Files.delete(file);
+                    } catch (IOException e) {
+                        failures.add("Could not delete " + file + " : " + e);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    failures.add("Could not visit " + file + " : " + e);
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                    if (e != null) {
+                        failures.add("Could not list " + dir + " : " + e);
+                    }
+                    try {
+                        Files.delete(dir);
+                    } catch (DirectoryNotEmptyException ex) {
+                        // a file in it has failed, it is reported already
+                    } catch (IOException ex) {
+                        failures.add("Could not delete " + dir + " : " + ex);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            failures.add("Could not delete " + path + " : " + e);
+        }
+    }
+    
+    /**
+     * copy directory
+     * @param sourceDirectory
+     * @param targetDirectory
+     * @throws IOException
+     */
+    public static void copyDirectory(File sourceDirectory, File targetDirectory) throws IOException {
+        if (sourceDirectory.isDirectory()) {
+            if (!targetDirectory.exists() && !targetDirectory.mkdirs()) {
+                throw new IOException("Could not create directory: " + targetDirectory);
+            }
+            String[] children = sourceDirectory.list();
             for (int i=0; i<children.length; i++) {
-                boolean success = TenantUtil.deleteDirectory(new File(directory, children[i]));
-                if (!success) {
-                    return false;
+                TenantUtil.copyDirectory(new File(sourceDirectory, children[i]), new File(targetDirectory, children[i]));
+            }
+        } else {
+            FileInputStream in = new FileInputStream(sourceDirectory);
+            try {
+                FileOutputStream out = new FileOutputStream(targetDirectory);
+                try {
+                    long size = in.getChannel().size();
+                    long position = 0;
+                    while (position < size) {
+                        position += in.getChannel().transferTo(position, size - position, out.getChannel());
+                    }
+                } finally {
+                    out.close();
                 }
+            } finally {
+                in.close();
             }
         }
-
-        // The directory is now empty so delete it
-        return directory.delete();
     }
     
     /**